@@ -0,0 +1,79 @@
+/*
+ * Copyright 2014 Henning Norén
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package se.norenh.rkfread;
+
+import java.io.IOException;
+
+import android.nfc.tech.MifareClassic;
+
+/**
+ * A tag of the phone's reader as a CardTransport. Each command first
+ * checks that its read has not been cancelled or passed its deadline.
+ */
+final class AndroidTransport implements CardTransport {
+    private final MifareClassic mfc;
+    private final CardReader.Read<?> read;
+    private final int timeout;
+
+    /** @param t the time in ms one command may take */
+    AndroidTransport(final MifareClassic m, final CardReader.Read<?> r, int t) {
+	mfc = m;
+	read = r;
+	timeout = t;
+    }
+
+    @Override
+    public void connect() throws IOException {
+	read.checkDeadline();
+	mfc.connect();
+	mfc.setTimeout(timeout);
+    }
+
+    @Override
+    public void close() throws IOException {
+	mfc.close();
+    }
+
+    @Override
+    public byte[] getUid() {
+	return mfc.getTag().getId();
+    }
+
+    @Override
+    public int getSectorCount() {
+	return mfc.getSectorCount();
+    }
+
+    @Override
+    public int sectorToBlock(int sector) {
+	return mfc.sectorToBlock(sector);
+    }
+
+    @Override
+    public boolean authenticateSectorWithKeyA(int sector, final byte[] key) throws IOException {
+	read.checkDeadline();
+	return mfc.authenticateSectorWithKeyA(sector, key);
+    }
+
+    @Override
+    public byte[] readBlock(int block) throws IOException {
+	read.checkDeadline();
+	return mfc.readBlock(block);
+    }
+}
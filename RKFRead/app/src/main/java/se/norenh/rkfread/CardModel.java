@@ -0,0 +1,341 @@
+/*
+ * Copyright 2014 Henning Norén
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package se.norenh.rkfread;
+
+import android.content.res.Resources;
+
+/**
+ * What the main view and the ticket and contract views show of a card,
+ * made on the card reader thread so the UI thread only sets the texts.
+ *
+ * A text is null if the card has none. For a card read in full that
+ * means it is not on the card and the button of a missing ticket or
+ * contract is disabled; for a card still being read it is not known
+ * yet and what is shown stays.
+ */
+final class CardModel {
+    /** Serial number and operator */
+    final String top;
+    /** Shown instead of top, e.g. when the card is one stored before */
+    final String status;
+    final String purse;
+    /** The last ticket and its origin and destination, for the main view */
+    final String ticketInfo;
+    final String ticketPlaces;
+    /** The end of the last contract, for the main view */
+    final String contractInfo;
+    /** The texts of the ticket and contract views */
+    final String ticket;
+    final String contract;
+    /** Whether the card was read in full */
+    final boolean whole;
+    /** What the read logged, for the debug view, null if not given */
+    final String log;
+
+    CardModel(final Resources res, final CardType type, final RKFCard c, boolean whole) {
+	Builder b = new Builder(res, type);
+	b.setTop(c);
+	b.setPurse(c);
+	b.setTicket(c);
+	b.setContract(c);
+	top = b.top;
+	status = null;
+	purse = b.purse;
+	ticketInfo = b.ticketInfo;
+	ticketPlaces = b.ticketPlaces;
+	contractInfo = b.contractInfo;
+	ticket = b.ticket;
+	contract = b.contract;
+	this.whole = whole;
+	log = null;
+    }
+
+    private CardModel(final CardModel m, final String s, final String l) {
+	top = m.top;
+	status = s;
+	purse = m.purse;
+	ticketInfo = m.ticketInfo;
+	ticketPlaces = m.ticketPlaces;
+	contractInfo = m.contractInfo;
+	ticket = m.ticket;
+	contract = m.contract;
+	whole = m.whole;
+	log = l;
+    }
+
+    /** The same texts with a status shown on top instead */
+    CardModel withStatus(final String s) {
+	return new CardModel(this, s, log);
+    }
+
+    /** The same texts with the log of the read */
+    CardModel withLog(final String l) {
+	return new CardModel(this, status, l);
+    }
+
+    // formats the texts of one card, only used while it is made
+    private static final class Builder {
+	private final Resources res;
+	private final CardType cardType;
+	String top = null;
+	String purse = null;
+	String ticketInfo = null;
+	String ticketPlaces = null;
+	String contractInfo = null;
+	String ticket = null;
+	String contract = null;
+
+	Builder(final Resources r, final CardType t) {
+	    res = r;
+	    cardType = t;
+	}
+
+	void setTop(final RKFCard c) {
+	    // get vendor and serial number for the top string of main view
+	    if(c.getFirstSector() != null) {
+		top = String.format(res.getString(R.string.top_string),
+				    c.getFirstSector().get(RKFLayout.FirstSector.SERIAL_NUMBER),
+				    c.getOperator().name);
+	    }
+	}
+
+	void setPurse(final RKFCard c) {
+	    // get the purse value as main string of main view
+	    if(c.getDynPurse() != null) {
+		purse = c.getAmount(c.getDynPurse().getInt(RKFLayout.DynPurse.VALUE));
+	    }
+	}
+
+	void setTicket(final RKFCard c) {
+	    final RKFRecord dynTicket = c.getDynTicket();
+	    final RKFRecord specialTicket = c.getSpecialTicket();
+	    if(null == dynTicket && null == specialTicket) {
+		return;
+	    }
+	    boolean hasPlaces = false; // journey origin and destination place
+
+	    String infoString=res.getString(R.string.last_ticket)+": ";
+	    String time="";
+	    String passengers = "";
+	    String journey = "";
+	    String jOrigin = res.getString(R.string.unknown);
+	    String jDest = res.getString(R.string.unknown);
+	    String cicoStatus = "";
+	    String price = "";
+
+	    if(null != dynTicket) { // TCTI
+		// get the time when ticket was bought for main page and ticket message
+		if(dynTicket.has(RKFLayout.Dynamic.VALIDATION_LAST_DATE) &&
+		   dynTicket.has(RKFLayout.Dynamic.VALIDATION_LAST_TIME)) {
+		    time = RKFFormat.date(dynTicket.getInt(RKFLayout.Dynamic.VALIDATION_LAST_DATE))+" "+
+			RKFFormat.time(dynTicket.getInt(RKFLayout.Dynamic.VALIDATION_LAST_TIME));
+		    infoString += time;
+		}
+		ticketInfo = infoString;
+
+		// get price, except for JOJO-cards as they seem to always set it to zero
+		if(CardType.JOJO != cardType) {
+		    if(dynTicket.has(RKFLayout.Dynamic.PRICE)) {
+			price = String.format(res.getString(R.string.price),
+					      c.getAmount(dynTicket.getInt(RKFLayout.Dynamic.PRICE)))+
+			    System.getProperty("line.separator");
+		    }
+		}
+
+		// get journey run, if present
+		if(dynTicket.has(RKFLayout.Dynamic.JOURNEY_RUN)) {
+		    journey = String.format(res.getString(R.string.journey_run),
+					    dynTicket.get(RKFLayout.Dynamic.JOURNEY_RUN))+
+			System.getProperty("line.separator");
+		}
+
+		// get the destination and origin place/zones
+		if(dynTicket.has(RKFLayout.Dynamic.JOURNEY_ORIGIN_PLACE) &&
+		   dynTicket.has(RKFLayout.Dynamic.JOURNEY_DESTINATION_PLACE)) {
+		    hasPlaces = true;
+		    jOrigin = dynTicket.get(RKFLayout.Dynamic.JOURNEY_ORIGIN_PLACE)+"";
+		    jDest = dynTicket.get(RKFLayout.Dynamic.JOURNEY_DESTINATION_PLACE)+"";
+		}
+		// set passengers in ticket-message
+		passengers = getPassengers(dynTicket, RKFLayout.Dynamic.PASSENGER_SUBGROUP);
+	    }
+	    else { // special Ticket
+		// get the time when ticket start on main page and for the ticket message
+		if(specialTicket.has(RKFLayout.TCST.JOURNEY_ORIGIN_DATE)) {
+		    time = RKFFormat.dateTime(specialTicket.getInt(RKFLayout.TCST.JOURNEY_ORIGIN_DATE));
+		    infoString += time;
+		}
+		ticketInfo = infoString;
+
+		// get price, except for JOJO-cards as they seem to always set it to zero
+		if(CardType.JOJO != cardType) {
+		    if(specialTicket.has(RKFLayout.TCST.PRICE)) {
+			price = String.format(res.getString(R.string.price),
+					      c.getAmount(specialTicket.getInt(RKFLayout.TCST.PRICE)))+
+			    System.getProperty("line.separator");
+		    }
+		}
+
+		// get the destination and origin place/zones
+		if(specialTicket.has(RKFLayout.TCST.JOURNEY_ORIGIN_PLACE) &&
+		   specialTicket.has(RKFLayout.TCST.JOURNEY_DESTINATION_PLACE)) {
+		    hasPlaces = true;
+		    jOrigin = specialTicket.get(RKFLayout.TCST.JOURNEY_ORIGIN_PLACE)+"";
+		    jDest = specialTicket.get(RKFLayout.TCST.JOURNEY_DESTINATION_PLACE)+"";
+		}
+
+		// get the check in/check out status if validation model is 1 (check in/check out)
+		if(specialTicket.has(RKFLayout.TCST.VALIDATION_MODEL) &&
+		   1 == specialTicket.get(RKFLayout.TCST.VALIDATION_MODEL)) {
+		    if(specialTicket.has(RKFLayout.TCST.VALIDATION_STATUS)) {
+			String str;
+			switch(specialTicket.getInt(RKFLayout.TCST.VALIDATION_STATUS)) {
+			case 1:
+			    str = res.getString(R.string.cico_open);
+			    break;
+			case 2:
+			    str = res.getString(R.string.cico_closed);
+			    break;
+			default:
+			    str = res.getString(R.string.unspecified);
+			    break;
+			}
+			cicoStatus = String.format(res.getString(R.string.cico), str)+
+			    System.getProperty("line.separator");
+		    }
+		}
+
+		// set passengers in ticket-message
+		passengers = getPassengers(specialTicket, RKFLayout.TCST.PASSENGER_SUBGROUP);
+	    }
+
+	    // set origin and destination on the main-page info line
+	    if(hasPlaces) {
+		infoString = String.format(res.getString(R.string.ticket_orig_dest), jOrigin, jDest);
+		ticketPlaces = infoString;
+	    }
+
+	    // build the full ticket-message string to show
+	    ticket = time+System.getProperty("line.separator")+price+journey+cicoStatus+
+		String.format(res.getString(R.string.from_zone),jOrigin)+System.getProperty("line.separator")+
+		String.format(res.getString(R.string.to_zone),jDest)+System.getProperty("line.separator")+
+		passengers;
+	}
+
+	void setContract(final RKFCard c) {
+	    final RKFRecord dynContract = c.getDynContract();
+	    if(dynContract == null) {
+		// if no dynamic contract exist on the card, the contract button is disabled and nothing shown
+		return;
+	    }
+	    // strings to build up the final contract-message string
+	    String startTime = "";
+	    String endTime = "";
+	    String zones = "";
+	    String passengers = "";
+	    // infoString is used for the main page info line
+	    String infoString = res.getString(R.string.last_contract)+": ";
+
+	    // set Validity start time and date in contract-message
+	    if(dynContract.has(RKFLayout.Dynamic.VALIDITY_START_DATE) &&
+	       dynContract.has(RKFLayout.Dynamic.VALIDITY_START_TIME)) {
+		String str = RKFFormat.date(dynContract.getInt(RKFLayout.Dynamic.VALIDITY_START_DATE))+
+		    " "+RKFFormat.time(dynContract.getInt(RKFLayout.Dynamic.VALIDITY_START_TIME));
+
+		startTime = String.format(res.getString(R.string.validity_start_time), str)+System.getProperty("line.separator");
+	    }
+
+	    // set validity end time and date in contract-message and the main page
+	    if(dynContract.has(RKFLayout.Dynamic.VALIDITY_END_DATE) &&
+	       dynContract.has(RKFLayout.Dynamic.VALIDITY_END_TIME)) {
+		String str = RKFFormat.date(dynContract.getInt(RKFLayout.Dynamic.VALIDITY_END_DATE))+" "+
+		    RKFFormat.time(dynContract.getInt(RKFLayout.Dynamic.VALIDITY_END_TIME));
+		infoString += str;
+		endTime =  String.format(res.getString(R.string.validity_end_time), str)+System.getProperty("line.separator");
+	    }
+	    contractInfo = infoString;
+
+	    // set zones in contract-message
+	    zones = getZones(dynContract);
+
+	    // set passengers in contract-message
+	    passengers = getPassengers(dynContract, RKFLayout.Dynamic.PASSENGER_SUBGROUP);
+
+	    // build the full contract-message string to show
+	    contract = startTime+endTime+passengers+zones;
+	}
+
+	private String getPassengers(final RKFRecord r, int subgroup) {
+	    String ret = "";
+	    // Passenger subgroup(1) to (3)
+	    for(int i=0;i<r.count(subgroup);i++) {
+		ret += parsePassengerVal((int)r.get(subgroup, i));
+	    }
+	    return ret;
+	}
+
+	private String parsePassengerVal(int i) {
+	    String ret = "";
+	    int nr = (i&0xFF);
+	    if(0 == nr) {
+		return "";
+	    }
+
+	    if((CardType.JOJO == cardType) && (0x103 == i)) {
+		// JOJO cards seems to encode family/duo tickets as 3 Adults
+		return String.format(res.getString(R.string.passenger), 1)+" "+ 
+		    res.getString(R.string.passenger_jojo_duo)+System.getProperty("line.separator");
+	    }
+
+	    ret =  String.format(res.getString(R.string.passenger), nr)+" ";
+
+	    switch (i>>8) {
+	    case 0:
+		ret += res.getString(R.string.unspecified);
+		break;
+	    case 1:
+		ret += res.getString(R.string.passenger_adult);
+		break;
+	    case 2:
+		ret += res.getString(R.string.passenger_child);
+		break;
+	    case 3:
+		ret += res.getString(R.string.passenger_student);
+		break;
+	    case 4:
+		ret += res.getString(R.string.passenger_pensioner);
+		break;
+	    default:
+		ret += res.getString(R.string.unknown);
+		break;
+	    }
+	    return ret+System.getProperty("line.separator");
+	}
+
+	private String getZones(final RKFRecord r) {
+	    String ret = "";
+	    // build up a string of all the zones, latest first
+	    for(int i=r.count(RKFLayout.Dynamic.VALIDITY_ZONE_PLACE)-1;i>=0;i--) {
+		ret += res.getString(R.string.zone)+": "+
+		    r.get(RKFLayout.Dynamic.VALIDITY_ZONE_PLACE, i)+System.getProperty("line.separator");
+	    }
+	    return ret;
+	}
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright 2014 Henning Norén
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package se.norenh.rkfread;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import android.nfc.tech.MifareClassic;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+/**
+ * Runs the card reads of the app, one at a time on a thread of its own
+ * that is the only one talking to the tags.
+ *
+ * Starting a read cancels the one before it, so a new tap never waits
+ * behind a stale read: the tag of the old read is closed, which makes
+ * any blocked I/O on it fail at once. Every read has a deadline for the
+ * whole tap. Progress and the end of a read are posted to the main
+ * thread and dropped if the read has been cancelled by then, so an
+ * activity that cancels its read when paused gets no callbacks after.
+ */
+final class CardReader {
+    private static final CardReader INSTANCE = new CardReader();
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+	    @Override
+	    public Thread newThread(Runnable r) {
+		Thread t = new Thread(r, "RKFRead card reader");
+		t.setDaemon(true);
+		return t;
+	    }
+	});
+    private final Handler main = new Handler(Looper.getMainLooper());
+    private Read<?> current = null; // only used on the main thread
+
+    private CardReader() {
+    }
+
+    static CardReader get() {
+	return INSTANCE;
+    }
+
+    /**
+     * A read of a tag. read() runs on the reader thread, onProgress()
+     * and onDone() on the main thread unless the read was cancelled.
+     */
+    abstract static class Read<P> {
+	private final MifareClassic tag;
+	private volatile boolean cancelled = false;
+	private volatile long deadline = Long.MAX_VALUE;
+	private Handler handler;
+
+	Read(final MifareClassic t) {
+	    tag = t;
+	}
+
+	protected abstract void read();
+
+	protected void onProgress(P progress) {
+	}
+
+	protected void onDone() {
+	}
+
+	protected final boolean isCancelled() {
+	    return cancelled;
+	}
+
+	/** Fails if the read was cancelled or has run past its deadline,
+	    called before each operation on the tag */
+	protected final void checkDeadline() throws IOException {
+	    if(cancelled) {
+		throw new IOException("Read cancelled");
+	    }
+	    if(SystemClock.elapsedRealtime() > deadline) {
+		throw new IOException("Read deadline passed");
+	    }
+	}
+
+	protected final void publishProgress(final P progress) {
+	    handler.post(new Runnable() {
+		    @Override
+		    public void run() {
+			if(!cancelled) {
+			    onProgress(progress);
+			}
+		    }
+		});
+	}
+
+	private void cancel() {
+	    cancelled = true;
+	    try {
+		tag.close();
+	    }
+	    catch(IOException e) {
+		// closed either way
+	    }
+	}
+    }
+
+    /** Cancels the current read and starts r, which has budget ms to
+	finish. Called on the main thread. */
+    void start(final Read<?> r, long budget) {
+	cancel();
+	current = r;
+	r.handler = main;
+	r.deadline = SystemClock.elapsedRealtime() + budget;
+	executor.execute(new Runnable() {
+		@Override
+		public void run() {
+		    if(r.cancelled) {
+			return;
+		    }
+		    try {
+			r.read();
+		    }
+		    finally {
+			main.post(new Runnable() {
+				@Override
+				public void run() {
+				    if(current == r) {
+					current = null;
+				    }
+				    if(!r.cancelled) {
+					r.onDone();
+				    }
+				}
+			    });
+		    }
+		}
+	    });
+    }
+
+    /** Cancels r if it is the current read. Called on the main thread. */
+    void cancel(final Read<?> r) {
+	if(null != r && current == r) {
+	    cancel();
+	}
+    }
+
+    private void cancel() {
+	if(null != current) {
+	    current.cancel();
+	    current = null;
+	}
+    }
+}
@@ -19,26 +19,163 @@ package se.norenh.rkfread;
 
 import android.app.Activity;
 import android.content.Intent;
+import android.graphics.Typeface;
 import android.os.Bundle;
+import android.text.Editable;
+import android.text.TextWatcher;
 import android.text.method.ScrollingMovementMethod;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.AdapterView;
+import android.widget.ArrayAdapter;
+import android.widget.BaseAdapter;
+import android.widget.EditText;
+import android.widget.ListView;
+import android.widget.Spinner;
 import android.widget.TextView;
+import java.util.ArrayList;
+import java.util.List;
 
 
 public class DisplayMessage extends Activity {
+    private DebugRows rows = null;
+    private RowAdapter adapter = null;
+    private String application = null;
+    private String field = null;
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
-        setContentView(R.layout.display_message);
 
 	Intent intent = getIntent();
 	String title = intent.getStringExtra(RKFRead.DISPLAY_TITLE);
 
 	this.setTitle(title);
 
+	// the debug view gets the card to decode, the others their text
+	byte[] snapshot = intent.getByteArrayExtra(RKFRead.DISPLAY_SNAPSHOT);
+	if(null != snapshot) {
+	    showDebug(CardSnapshot.fromBytes(snapshot));
+	    return;
+	}
+        setContentView(R.layout.display_message);
+
 	String message = intent.getStringExtra(RKFRead.DISPLAY_MESSAGE);
 
 	TextView tv = (TextView) findViewById(R.id.displayMessage);
 	tv.setText(message);
+	if(intent.getBooleanExtra(RKFRead.DISPLAY_MONOSPACE, false)) {
+	    tv.setTypeface(Typeface.MONOSPACE);
+	}
 	tv.setMovementMethod(new ScrollingMovementMethod());
     }
+
+    /** Shows the card a row per field, the list only makes the rows on
+	screen so a card with many fields scrolls as fast as a small one */
+    private void showDebug(final CardSnapshot s) {
+	setContentView(R.layout.display_debug);
+	rows = new DebugRows(s.getLog(), s.getCard());
+	adapter = new RowAdapter();
+
+	ListView list = (ListView) findViewById(R.id.debugList);
+	list.setAdapter(adapter);
+	list.setOnItemClickListener(new AdapterView.OnItemClickListener() {
+		@Override
+		public void onItemClick(AdapterView<?> parent, View v, int position, long id) {
+		    if(rows.isBlock(position)) {
+			rows.toggle(position);
+			adapter.notifyDataSetChanged();
+		    }
+		}
+	    });
+
+	final List<String> apps = new ArrayList<String>();
+	apps.add(getString(R.string.all_applications));
+	apps.addAll(rows.getApplications());
+	ArrayAdapter<String> a = new ArrayAdapter<String>(this, android.R.layout.simple_spinner_item, apps);
+	a.setDropDownViewResource(android.R.layout.simple_spinner_dropdown_item);
+	Spinner spinner = (Spinner) findViewById(R.id.debugApplication);
+	spinner.setAdapter(a);
+	spinner.setOnItemSelectedListener(new AdapterView.OnItemSelectedListener() {
+		@Override
+		public void onItemSelected(AdapterView<?> parent, View v, int position, long id) {
+		    application = (0 == position) ? null : apps.get(position);
+		    filter();
+		}
+
+		@Override
+		public void onNothingSelected(AdapterView<?> parent) {
+		    application = null;
+		    filter();
+		}
+	    });
+
+	EditText filter = (EditText) findViewById(R.id.debugFilter);
+	filter.addTextChangedListener(new TextWatcher() {
+		@Override
+		public void beforeTextChanged(CharSequence t, int start, int count, int after) {
+		}
+
+		@Override
+		public void onTextChanged(CharSequence t, int start, int before, int count) {
+		}
+
+		@Override
+		public void afterTextChanged(Editable t) {
+		    field = t.toString().trim();
+		    filter();
+		}
+	    });
+    }
+
+    private void filter() {
+	rows.setFilter(application, field);
+	adapter.notifyDataSetChanged();
+    }
+
+    /** Formats a row when the list shows it, reusing the views scrolled
+	off screen */
+    private final class RowAdapter extends BaseAdapter {
+	@Override
+	public int getCount() {
+	    return rows.size();
+	}
+
+	@Override
+	public Object getItem(int position) {
+	    return rows.getText(position);
+	}
+
+	@Override
+	public long getItemId(int position) {
+	    return position;
+	}
+
+	@Override
+	public boolean areAllItemsEnabled() {
+	    return false;
+	}
+
+	// only the blocks expand
+	@Override
+	public boolean isEnabled(int position) {
+	    return rows.isBlock(position);
+	}
+
+	@Override
+	public View getView(int position, View convertView, ViewGroup parent) {
+	    TextView tv = (null == convertView) ? new TextView(DisplayMessage.this) : (TextView)convertView;
+	    tv.setText(rows.getText(position));
+	    if(rows.isBlock(position)) {
+		tv.setTypeface(Typeface.MONOSPACE);
+	    }
+	    else if(rows.isHeader(position)) {
+		tv.setTypeface(Typeface.DEFAULT_BOLD);
+	    }
+	    else {
+		tv.setTypeface(Typeface.DEFAULT);
+	    }
+	    return tv;
+	}
+    }
 }
@@ -17,8 +17,13 @@
 
 package se.norenh.rkfread;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import android.nfc.TagLostException;
+import java.io.OutputStream;
+import java.text.DateFormat;
+import java.util.Date;
 
 import android.app.Activity;
 import android.content.Intent;
@@ -27,12 +32,11 @@ import android.nfc.NfcAdapter;
 import android.nfc.Tag;
 import android.nfc.tech.MifareClassic;
 import android.nfc.tech.NfcA;
-import android.os.AsyncTask;
 import android.os.Bundle;
 import android.os.IBinder;
 import android.os.Parcel;
+import android.os.SystemClock;
 import android.text.method.ScrollingMovementMethod;
-import java.util.Map;
 import android.view.View;
 import android.view.WindowManager;
 import android.widget.Button;
@@ -53,25 +57,37 @@ public class RKFRead extends Activity {
     private TextView infoTv2b;
 
     private Intent oldIntent = null;
-    private String debugString = "";  
+    private String debugString = ""; // only used on the UI thread
+    private RKFCard debugCard = null; // passed as a snapshot to the debug view
+    // for all activities, read once and then only changed and saved on the
+    // card reader thread; each is synchronized for the stats button
+    private static File filesDir = null;
+    private static final CardTypeCache typeCache = new CardTypeCache();
+    private static final String TYPE_CACHE_FILE = "cardtypes.txt";
+    private static final TripHistory history = new TripHistory();
+    private static final String HISTORY_FILE = "history.bin";
+    private static final int HISTORY_DAYS = 90;
+    private static final TapStats tapStats = new TapStats();
+    private static final String TAP_STATS_FILE = "tapstats.txt";
+    private static final String TAP_STATS_EXPORT = "rkfread-tapstats.txt";
+    // for all activities, only used on the card reader thread: the read
+    // the last card left before it was done, if any
+    private static ReadSession session = null;
+    private static DumpStore dumpStore = null;
+    private static final String DUMP_STORE_FILE = "dumps.bin";
+    private static final int DUMP_STORE_RECORDS = 256;
+    // whole tap and each operation on the tag, in ms
+    private static final long READ_DEADLINE = 5000;
+    private static final int OPERATION_TIMEOUT = 500;
+    private ReadCardTask currentRead = null;
     private String contractString;
     private String ticketString;
     private String mainString;
     private String topString;
     protected final static String DISPLAY_MESSAGE = "se.norenh.rkfread.DISPLAY_MESSAGE";
     protected final static String DISPLAY_TITLE = "se.norenh.rkfread.DISPLAY_TITLE";
-
-    public static enum CardType {
-	GOTLAND,
-	JOJO, // Länstrafiken Kronoberg and Skånetrafiken
-	NORRBOTTEN,
-	REJSEKORT,
-	SL,
-	UNINITIALIZED,
-	UNKNOWN,
-	VASTTRAFIKEN,
-	VL
-    }
+    protected final static String DISPLAY_SNAPSHOT = "se.norenh.rkfread.DISPLAY_SNAPSHOT";
+    protected final static String DISPLAY_MONOSPACE = "se.norenh.rkfread.DISPLAY_MONOSPACE";
 
     /** Called when the activity is first created. */
     @Override
@@ -92,6 +108,8 @@ public class RKFRead extends Activity {
 	infoTv2a = (TextView) findViewById(R.id.infoTextView2a);
 	infoTv2b = (TextView) findViewById(R.id.infoTextView2b);
 
+	openState(getFilesDir());
+	openDumpStore(new File(getFilesDir(), DUMP_STORE_FILE));
    }
 
    @Override
@@ -107,6 +125,7 @@ public class RKFRead extends Activity {
 		    mfc = MifareClassic.get(tag);
 		}
 		debugString = "";
+		debugCard = null;
 		if(null != mfc) {
 		    readCard();
 		}
@@ -119,6 +138,58 @@ public class RKFRead extends Activity {
     @Override
     public void onPause() {
 	super.onPause();
+	// a read in the background gets no callbacks, its session has what
+	// was read for the next tap
+	if(null != currentRead && !currentRead.done) {
+	    CardReader.get().cancel(currentRead);
+	    topTv.setText(R.string.tag_lost);
+	}
+	currentRead = null;
+    }
+
+    @Override
+    public void onDestroy() {
+	super.onDestroy();
+	// nothing of the read is shown after this
+	CardReader.get().cancel(currentRead);
+	currentRead = null;
+    }
+
+    // read by the first activity, before it starts any read
+    private static synchronized void openState(final File dir) {
+	if(null != filesDir)
+	    return;
+	filesDir = dir;
+	try {
+	    typeCache.read(new FileInputStream(new File(dir, TYPE_CACHE_FILE)));
+	}
+	catch(IOException e) {
+	    // not written yet, every card gets probed
+	}
+	try {
+	    history.read(new FileInputStream(new File(dir, HISTORY_FILE)));
+	}
+	catch(IOException e) {
+	    // not written yet, starts with the next card
+	}
+	try {
+	    tapStats.read(new FileInputStream(new File(dir, TAP_STATS_FILE)));
+	}
+	catch(IOException e) {
+	    // not written yet, counts from the next tap
+	}
+    }
+
+    // one store for all activities, it is mapped for as long as the app runs
+    private static synchronized void openDumpStore(final File f) {
+	if(null != dumpStore)
+	    return;
+	try {
+	    dumpStore = new DumpStore(f, DUMP_STORE_RECORDS);
+	}
+	catch(IOException e) {
+	    // cards are only shown once read
+	}
     }
 
     public void buttonContract(View View) {
@@ -130,7 +201,13 @@ public class RKFRead extends Activity {
 
     public void buttonDebug(View View) {
 	Intent intent = new Intent(this, DisplayMessage.class);
-	intent.putExtra(DISPLAY_MESSAGE, debugString);
+	if(null != debugCard) {
+	    // about a kilobyte, the text is made by the debug view
+	    intent.putExtra(DISPLAY_SNAPSHOT, new CardSnapshot(debugCard, debugString).toBytes());
+	}
+	else {
+	    intent.putExtra(DISPLAY_MESSAGE, debugString);
+	}
 	intent.putExtra(DISPLAY_TITLE, res.getString(R.string.debug_title));
 	startActivity(intent);
     }
@@ -142,9 +219,38 @@ public class RKFRead extends Activity {
 	startActivity(intent);
     }
 
+    /** Shows the tap times and writes them where they can be copied off
+	the phone, in the format of TapStats.write() that adds up */
+    public void buttonStats(View View) {
+	String message = tapStats.getStats();
+	if(message.isEmpty()) {
+	    message = res.getString(R.string.stats_none);
+	}
+	else {
+	    File dir = getExternalFilesDir(null);
+	    File f = new File((null == dir) ? getFilesDir() : dir, TAP_STATS_EXPORT);
+	    try {
+		tapStats.write(new FileOutputStream(f));
+		message += String.format(res.getString(R.string.stats_written), f.getPath());
+	    }
+	    catch(IOException e) {
+		message += String.format(res.getString(R.string.stats_not_written), f.getPath());
+	    }
+	}
+	Intent intent = new Intent(this, DisplayMessage.class);
+	intent.putExtra(DISPLAY_MESSAGE, message);
+	intent.putExtra(DISPLAY_TITLE, res.getString(R.string.stats_title));
+	intent.putExtra(DISPLAY_MONOSPACE, true);
+	startActivity(intent);
+    }
+
     private void readCard() {
 	topTv.setText(R.string.reading);
-	new ReadCardTask().execute();
+	mainTv.setText("");
+	ReadCardTask task = new ReadCardTask(mfc);
+	currentRead = task;
+	// any read still going on is of an older tag and is cancelled
+	CardReader.get().start(task, READ_DEADLINE);
     }
 
     /**
@@ -266,507 +372,281 @@ public class RKFRead extends Activity {
     }
 
     
-    private class ReadCardTask extends AsyncTask<Void, Void, Void> {
+    // the saves run on the card reader thread, the files are private to
+    // the app like those of openFileOutput()
+    private static void saveTypeCache() {
+	try {
+	    OutputStream out = new FileOutputStream(new File(filesDir, TYPE_CACHE_FILE));
+	    typeCache.write(out);
+	}
+	catch(IOException e) {
+	    // only costs probing the card again next time
+	}
+    }
+
+    private static void saveHistory() {
+	try {
+	    OutputStream out = new FileOutputStream(new File(filesDir, HISTORY_FILE));
+	    history.write(out);
+	}
+	catch(IOException e) {
+	    // the cards still have their last events for the next time
+	}
+    }
+
+    private static void saveTapStats() {
+	try {
+	    OutputStream out = new FileOutputStream(new File(filesDir, TAP_STATS_FILE));
+	    tapStats.write(out);
+	}
+	catch(IOException e) {
+	    // only the times of this run are lost
+	}
+    }
+
+    /**
+     * Reads the card on the card reader thread. Each sector is decoded
+     * there as it is read, and what it adds to the view is published, so
+     * the purse is shown as soon as its sectors are in, the rest fills in
+     * after and the whole card is parsed once all is read. The UI thread
+     * only sets the texts of each CardModel.
+     */
+    private class ReadCardTask extends CardReader.Read<CardModel> {
 	private boolean tagLost = false;
+	private boolean done = false; // only used on the UI thread
 	private CardType cardType = CardType.UNINITIALIZED; 
 	private RKFCard card = null;
+	private CardModel result = null;
+	private long startTime = 0;
+	private long readTime = 0;
+	// only used on the reader thread
+	private final RKFCard shownCard = new RKFCard();
+	// what the read logs, passed on with the result or to onDone()
+	private final StringBuilder log = new StringBuilder();
+	private boolean topShown = false;
+	private long modelTime = 0;
+	// only used on the UI thread
+	private long firstBalanceTime = -1;
+	private int binds = 0;
+	private long bindTime = 0;
+	private long longestBind = 0;
+
+	// the tag of this read, a newer tap changes the one of the activity
+	private final MifareClassic mfc;
+
+	ReadCardTask(final MifareClassic tag) {
+	    super(tag);
+	    mfc = tag;
+	}
 
-        @Override
-        protected Void doInBackground(Void... arg) {
+	@Override
+	protected void read() {
+	    startTime = SystemClock.elapsedRealtime();
+	    final long tapStart = System.nanoTime();
+	    showStored(mfc.getTag().getId());
+	    final CardTransport t = new AndroidTransport(mfc, this, OPERATION_TIMEOUT);
+	    final TapRead tap = new TapRead(t, typeCache, dumpStore, session, new TapRead.Listener() {
+		    @Override
+		    public void onSector(int sector, byte[][] blocks) {
+			showSector(sector, blocks);
+		    }
+		});
+	    final TapStats.Tap times = tap.getTimes();
 	    try {
-		int bytePos = 0;
-		mfc.connect();
-		card = new RKFCard();
-
-		if(!detectCardType()) {
-		    card = null;
-		    return null;
+		long start = System.nanoTime();
+		t.connect();
+		times.add(TapStats.Phase.CONNECT, System.nanoTime() - start);
+		boolean known = tap.read();
+		cardType = tap.getCardType();
+		card = tap.getCard();
+		if(known) {
+		    readTime = SystemClock.elapsedRealtime() - startTime;
 		}
-		// only read the first 16 sectors
-		for (int sector = 0; (sector < mfc.getSectorCount()) && (sector < 16); sector++) {
-		    if(tryUnlock(sector)) {
-			int startBlock = mfc.sectorToBlock(sector);
-			for (int block = startBlock; block < (startBlock + 3); block++) {
-				card.addBlock(sector, (block%4), mfc.readBlock(block));
-			}
-		    }
-		    else {
-			debugString += "Failed authenticate sector "+sector+System.getProperty("line.separator");;
-		    }
+		saveTypeCache();
+		if(known) {
+		    log.append(typeCache.getStats()).append(System.getProperty("line.separator"));
+		    // a copy to parse here, the card is parsed again to be shown
+		    final byte[] uid = t.getUid();
+		    int added = history.merge(uid, new RKFCard(card.bytes.clone()));
+		    saveHistory();
+		    int now = TripHistory.toTime(System.currentTimeMillis());
+		    log.append("Trip history: ").append(added).append(" new, ")
+			.append(history.count(uid, now - HISTORY_DAYS*24*60*60, Integer.MAX_VALUE))
+			.append(" in the last ").append(HISTORY_DAYS).append(" days")
+			.append(System.getProperty("line.separator"));
 		}
 	    }
-	    catch (TagLostException e) {
-		tagLost = true;
-		card = null;
-		return null;
-	    }
 	    catch (IOException e) {
-		card = null;
+		// a lost tag, keep what was read for the next tap and show it
+		tagLost = true;
+		cardType = tap.getCardType();
+		card = (null == tap.getSession()) ? null : tap.getSession().copyCard();
 	    }
 	    finally {
+		session = tap.getSession();
+		log.append(tap.getLog()).append(times.getSectorLog());
 		try {
-		    mfc.close();
+		    t.close();
 		}
 		catch (IOException e) {
 		    card = null;
 		}
 	    }
-	    return null;
-	}
-
-	protected boolean detectCardType() throws IOException {
-	    if(mfc.authenticateSectorWithKeyA(1, hexStringToByteArray("434f4d4d4f41"))) {
-		cardType = CardType.JOJO;
-	    } else if(mfc.authenticateSectorWithKeyA(6, hexStringToByteArray("a64598a77478"))) {
-		cardType = CardType.SL;
-	    }
-	    else if(mfc.authenticateSectorWithKeyA(6, hexStringToByteArray("0297927c0f77"))) {
-		cardType = CardType.VASTTRAFIKEN;
-	    }
-	    else if(mfc.authenticateSectorWithKeyA(6, hexStringToByteArray("54726176656c"))) {
-		cardType = CardType.NORRBOTTEN;
-	    }
-	    else if(mfc.authenticateSectorWithKeyA(6, hexStringToByteArray("fc00018778f7"))) {
-		cardType = CardType.REJSEKORT;
-	    }
-	    else {
-		cardType = CardType.UNKNOWN;
-		return false;
-	    }
-	    return true;
-	}
-
-	protected boolean tryUnlock(int sector) throws IOException {
-	    boolean ret = false;
-
-	    switch(cardType) {
-	    case NORRBOTTEN:
-		switch(sector) {
-		case 0:
-		case 1:
-		case 2:
-		case 3:
-		case 4:
-		    ret = mfc.authenticateSectorWithKeyA(sector, hexStringToByteArray("fc00018778f7"));
-		    break;
-		case 5:
-		    ret = mfc.authenticateSectorWithKeyA(sector, hexStringToByteArray("0297927c0f77"));
-		    break;
-		case 6:
-		case 7:
-		case 8:
-		case 9:
-		case 10:
-		case 11:
-		case 12:
-		case 13:
-		case 14:
-		case 15:
-		    ret = mfc.authenticateSectorWithKeyA(sector, hexStringToByteArray("54726176656c"));
-		    break;
-		default:
-		    break;
+	    // a lost tag shows what was read if it got the first sector, as a
+	    // partial read that leaves what is not read yet as it is shown
+	    if(null != card && (!tagLost || card.hasSector(0))) {
+		long start = System.nanoTime();
+		card.parseCard();
+		long parsed = System.nanoTime();
+		CardModel m = new CardModel(res, cardType, card, !tagLost);
+		long done = System.nanoTime();
+		times.add(TapStats.Phase.PARSE, parsed - start);
+		times.add(TapStats.Phase.RENDER, done - parsed);
+		modelTime += done - start;
+		if(tagLost) {
+		    log.append("Tag lost, partial read").append(System.getProperty("line.separator"));
 		}
-		break;
-	    case REJSEKORT:
-		switch(sector) {
-		case 0:
-		case 1:
-		case 2:
-		case 3:
-		case 4:
-		case 5:
-		case 6:
-		case 7:
-		case 39:
-		    ret = mfc.authenticateSectorWithKeyA(sector, hexStringToByteArray("fc00018778f7"));
-		    break;
-		case 8:
-		case 9:
-		case 10:
-		case 11:
-		case 12:
-		    ret = mfc.authenticateSectorWithKeyA(sector, hexStringToByteArray("0297927c0f77"));
-		    break;
-		default:
-		    ret = mfc.authenticateSectorWithKeyA(sector, hexStringToByteArray("722bfcc5375f"));
-		    break;
+		else {
+		    log.append("Read time: ").append(readTime).append(" ms").append(System.getProperty("line.separator"));
 		}
-		break;
-	    case SL:
-		switch(sector) {
-		case 0:
-		case 1:
-		case 2:
-		case 3:
-		    ret = mfc.authenticateSectorWithKeyA(sector, hexStringToByteArray("fc00018778f7"));
-		    break;
-		case 4:
-		case 5:
-		case 6:
-		case 7:
-		case 10:
-		case 11:
-		case 12:
-		case 13:
-		case 14:
-		case 15:
-		    ret = mfc.authenticateSectorWithKeyA(sector, hexStringToByteArray("a64598a77478"));
-		    break;
-		case 8:
-		case 9:
-		    ret = mfc.authenticateSectorWithKeyA(sector, hexStringToByteArray("26940b21ff5d"));
-		    break;
-		default:
-		    ret = mfc.authenticateSectorWithKeyA(sector, hexStringToByteArray("ffffffffffff"));
-		    break;
-		}
-		break;
-	    case JOJO:
-		switch(sector) {
-		case 0:
-		case 1:
-		case 2:
-		case 3:
-		    ret = mfc.authenticateSectorWithKeyA(sector, hexStringToByteArray("434f4d4d4f41"));
-		    break;
-		case 4:
-		case 5:
-		case 6:
-		case 7:
-		case 8:
-		case 9:
-		case 10:
-		case 11:
-		case 14:
-		    ret = mfc.authenticateSectorWithKeyA(sector, hexStringToByteArray("47524f555041"));
-		    break;
-		case 12:
-		case 13:
-		case 15:
-		    ret = mfc.authenticateSectorWithKeyA(sector, hexStringToByteArray("505249565441"));
-		    break;
-		default:
-		    break;
-		}
-		break;
-	    case VASTTRAFIKEN:
-		switch(sector) {
-		case 0:
-		case 1:
-		case 2:
-		    ret = mfc.authenticateSectorWithKeyA(sector, hexStringToByteArray("fc00018778f7"));
-		    break;
-		case 3:
-		case 4:
-		case 5:
-		case 6:
-		case 7:
-		case 8:
-		    ret = mfc.authenticateSectorWithKeyA(sector, hexStringToByteArray("0297927c0f77"));
-		    break;
-		case 9:
-		case 10:
-		case 11:
-		case 12:
-		case 13:
-		case 14:
-		case 15:
-		    ret = mfc.authenticateSectorWithKeyA(sector, hexStringToByteArray("54726176656c"));
-		    break;
-		default:
-		    break;
-		}
-		break;
-	    case UNKNOWN:
-		// we could try brute force of known keys here in the future
-		break;
+		result = m.withLog(log.toString());
+	    }
+	    times.add(TapStats.Phase.TAP, System.nanoTime() - tapStart);
+	    // nothing to count before the card has answered
+	    if(CardType.UNINITIALIZED != cardType) {
+		tapStats.add(cardType, times);
+		saveTapStats();
 	    }
-	    return ret;
 	}
 
-	private void setTicket() {
-	    if(null == card.dynTicket && null == card.specialTicket) {
-		buttonTicket.setEnabled(false);
-		return;
+	// decodes what the sector adds and publishes it, if anything
+	private void showSector(int sector, final byte[][] blocks) {
+	    long start = System.nanoTime();
+	    if(null == blocks) {
+		shownCard.skipSector(sector);
 	    }
-	    RKFObject jop = null;  // journey origin place
-	    RKFObject jdp = null;  // journey destination place
-
-	    String infoString=res.getString(R.string.last_ticket)+": ";
-	    String time="";
-	    String passengers = "";
-	    String journey = "";
-	    String jOrigin = res.getString(R.string.unknown);
-	    String jDest = res.getString(R.string.unknown);
-	    String cicoStatus = "";
-	    String price = "";
-
-	    if(null != card.dynTicket) { // TCTI
-		RKFObject valLastTime = null;
-		RKFObject valLastDate = null;
-
-		// get the time when ticket was bought for main page and ticket message
-		valLastDate = card.dynTicket.get("Validation last date");
-		valLastTime = card.dynTicket.get("Validation last time");
-		if(valLastDate != null && valLastTime != null) {
-		    time = RKFCard.getStringFromDate(RKFCard.getDateFromInt((int)valLastDate.getValue()))+" "+
-			RKFCard.getTimeFromInt((int)valLastTime.getValue());
-		    infoString += time;
-		}
-		infoTv1a.setText(infoString);
-
-		// get price, except for JOJO-cards as they seem to always set it to zero
-		if(CardType.JOJO != cardType) {
-		    RKFObject priceO = card.dynTicket.get("Price");
-		    if(null != priceO) {
-			price = String.format(res.getString(R.string.price),
-					      card.getAmount((int)priceO.getValue()))+
-			    System.getProperty("line.separator");
-		    }
-		}
-
-		// get journey run, if present
-		RKFObject jRun = null;
-		jRun = card.dynTicket.get("Journey run");
-		if(jRun != null) {
-		    journey = String.format(res.getString(R.string.journey_run),jRun.getValue())+
-			System.getProperty("line.separator");
-		}
-		
-		// get the destination and origin place/zones
-		jop = card.dynTicket.get("Journey origin place");
-		jdp = card.dynTicket.get("Journey destination place");
-		if(jop != null && jdp != null) {
-		    jOrigin = jop.getValue()+"";
-		    jDest = jdp.getValue()+"";
+	    else {
+		for(int block=0;block<3;block++) {
+		    shownCard.addBlock(sector, block, blocks[block]);
 		}
-		// set passengers in ticket-message
-		passengers = getPassengers(card.dynTicket);
 	    }
-	    else { // special Ticket
-		RKFObject jOriginDate = null;
-
-		// get the time when ticket start on main page and for the ticket message
-		jOriginDate = card.specialTicket.get("Journey origin date");
-		if(jOriginDate != null) {
-		    time = RKFCard.getStringFromDateTime(RKFCard.getDateTimeFromInt((int)jOriginDate.getValue()));
-		    infoString += time;
-		}
-		infoTv1a.setText(infoString);
-
-		// get price, except for JOJO-cards as they seem to always set it to zero
-		if(CardType.JOJO != cardType) {
-		    RKFObject priceO = card.specialTicket.get("Price");
-		    if(null != priceO) {
-			price = String.format(res.getString(R.string.price),
-					      card.getAmount((int)priceO.getValue()))+
-			    System.getProperty("line.separator");
-		    }
-		}
-
-		// get the destination and origin place/zones
-		jop = card.specialTicket.get("Journey origin place");
-		jdp = card.specialTicket.get("Journey destination place");
-		if(jop != null && jdp != null) {
-		    jOrigin = jop.getValue()+"";
-		    jDest = jdp.getValue()+"";
-		}
-
-		// get the check in/check out status if validation model is 1 (check in/check out)
-		RKFObject cico = null;
-		cico = card.specialTicket.get("Validation model");
-		if(cico != null && 1 == cico.getValue()) {
-		    cico = card.specialTicket.get("Validation status");
-		    if(cico != null) {
-			String str;
-			switch((int)cico.getValue()) {
-			case 1:
-			    str = res.getString(R.string.cico_open);
-			    break;
-			case 2:
-			    str = res.getString(R.string.cico_closed);
-			    break;
-			default:
-			    str = res.getString(R.string.unspecified);
-			    break;
-			}
-			cicoStatus = String.format(res.getString(R.string.cico), str)+
-			    System.getProperty("line.separator");
-		    }
-		}
-
-		// set passengers in ticket-message
-		passengers = getPassengers(card.specialTicket);
+	    int apps = shownCard.parseReady();
+	    boolean top = !topShown && null != shownCard.getFirstSector();
+	    if(0 != (apps & (RKFCard.APP_PURSE | RKFCard.APP_TICKET | RKFCard.APP_SPECIAL_TICKET |
+			     RKFCard.APP_CONTRACT)) || top) {
+		topShown |= top;
+		CardModel m = new CardModel(res, cardType, shownCard, false);
+		modelTime += System.nanoTime() - start;
+		publishProgress(m);
 	    }
-
-	    // set origin and destination on the main-page info line
-	    if(null != jop && null != jdp) {
-		infoString = String.format(res.getString(R.string.ticket_orig_dest), jOrigin, jDest);
-		infoTv1b.setText(infoString);
+	    else {
+		modelTime += System.nanoTime() - start;
 	    }
-
-	    // build the full ticket-message string to show
-	    ticketString = time+System.getProperty("line.separator")+price+journey+cicoStatus+
-		String.format(res.getString(R.string.from_zone),jOrigin)+System.getProperty("line.separator")+
-		String.format(res.getString(R.string.to_zone),jDest)+System.getProperty("line.separator")+
-		passengers;
-	    // enable the ticket button
-	    buttonTicket.setEnabled(true);
 	}
 
-	private void setContract() {
-	    if(card.dynContract == null) {
-		// if no dynamic contract exist on the card, make sure contract button is disabled and show nothing
-		buttonContract.setEnabled(false);
+	// shows the card as it was last read until it has been read again
+	private void showStored(final byte[] uid) {
+	    if(null == dumpStore)
 		return;
+	    final DumpStore.Dump d = dumpStore.get(uid);
+	    if(null == d)
+		return;
+	    long start = System.nanoTime();
+	    RKFCard c = new RKFCard(d.bytes);
+	    if(null != c.getOperator().profile) {
+		cardType = c.getOperator().profile;
 	    }
-	    // these are the RKFObjects from the card that we will try get info from
-	    RKFObject valStartDate = null;
-	    RKFObject valStartTime = null;
-	    RKFObject valEndDate = null;
-	    RKFObject valEndTime = null;
-	    RKFObject valZonePlace = null;
-	    // strings to build up the final contract-message string
-	    String startTime = "";
-	    String endTime = "";
-	    String zones = "";
-	    String passengers = "";
-	    // infoString is used for the main page info line
-	    String infoString = res.getString(R.string.last_contract)+": ";
-
-	    // set Validity start time and date in contract-message
-	    valStartDate = card.dynContract.get("Validity start date");
-	    valStartTime = card.dynContract.get("Validity start time");
-	    if(valStartDate != null && valStartTime != null) {
-		String str = RKFCard.getStringFromDate(RKFCard.getDateFromInt((int)valStartDate.getValue()))+
-		    " "+RKFCard.getTimeFromInt((int)valStartTime.getValue());
-		
-		startTime = String.format(res.getString(R.string.validity_start_time), str)+System.getProperty("line.separator");
-	    }
-
-	    // set validity end time and date in contract-message and the main page
-	    valEndDate = card.dynContract.get("Validity end date");
-	    valEndTime = card.dynContract.get("Validity end time");
-	    if(valEndDate != null && valEndTime != null) {
-		String str = RKFCard.getStringFromDate(RKFCard.getDateFromInt((int)valEndDate.getValue()))+" "+RKFCard.getTimeFromInt((int)valEndTime.getValue());
-		infoString += str;
-		endTime =  String.format(res.getString(R.string.validity_end_time), str)+System.getProperty("line.separator");
-	    }
-	    infoTv2a.setText(infoString);
-
-	    // set zones in contract-message
-	    valZonePlace = card.dynContract.get("Validity zone place");    
-	    zones = getZones(valZonePlace);
-
-	    // set passengers in contract-message
-	    passengers = getPassengers(card.dynContract);
-
-	    // build the full contract-message string to show
-	    contractString = startTime+endTime+passengers+zones;
-	    // enable the contract button
-	    buttonContract.setEnabled(true);
+	    String time = DateFormat.getDateTimeInstance(DateFormat.SHORT, DateFormat.SHORT).format(new Date(d.time));
+	    CardModel m = new CardModel(res, cardType, c, true)
+		.withStatus(String.format(res.getString(R.string.reading_stored), time));
+	    modelTime += System.nanoTime() - start;
+	    publishProgress(m);
 	}
 
-	private String getPassengers(final Map<String,RKFObject> m) {
-	    String ret = "";
-	    RKFObject o = m.get("Passenger subgroup(1)");
-	    if(null != o) {
-		ret = parsePassengerVal((int)o.getValue());
+	/** Sets the texts of the model, the only work on the UI thread for
+	    each update, timed to see how long it holds up a frame */
+	private void bind(final CardModel m) {
+	    long start = System.nanoTime();
+	    if(null != m.status) {
+		topTv.setText(m.status);
 	    }
-	    o = m.get("Passenger subgroup(2)");
-	    if(null != o) {
-		ret += parsePassengerVal((int)o.getValue());
+	    else if(null != m.top) {
+		topString = m.top;
+		topTv.setText(topString);
 	    }
-	    o = m.get("Passenger subgroup(3)");
-	    if(null != o) {
-		ret += parsePassengerVal((int)o.getValue());
+	    if(null != m.purse) {
+		mainString = m.purse;
+		mainTv.setText(mainString);
 	    }
-	    return ret;
-	}
-
-	private String parsePassengerVal(int i) {
-	    String ret = "";
-	    int nr = (i&0xFF);
-	    if(0 == nr) {
-		return "";
+	    if(null != m.ticket) {
+		infoTv1a.setText(m.ticketInfo);
+		if(null != m.ticketPlaces) {
+		    infoTv1b.setText(m.ticketPlaces);
+		}
+		ticketString = m.ticket;
+		buttonTicket.setEnabled(true);
 	    }
-
-	    if((CardType.JOJO == cardType) && (0x103 == i)) {
-		// JOJO cards seems to encode family/duo tickets as 3 Adults
-		return String.format(res.getString(R.string.passenger), 1)+" "+ 
-		    res.getString(R.string.passenger_jojo_duo)+System.getProperty("line.separator");
+	    else if(m.whole) {
+		buttonTicket.setEnabled(false);
 	    }
-
-	    ret =  String.format(res.getString(R.string.passenger), nr)+" ";
-
-	    switch (i>>8) {
-	    case 0:
-		ret += res.getString(R.string.unspecified);
-		break;
-	    case 1:
-		ret += res.getString(R.string.passenger_adult);
-		break;
-	    case 2:
-		ret += res.getString(R.string.passenger_child);
-		break;
-	    case 3:
-		ret += res.getString(R.string.passenger_student);
-		break;
-	    case 4:
-		ret += res.getString(R.string.passenger_pensioner);
-		break;
-	    default:
-		ret += res.getString(R.string.unknown);
-		break;
+	    if(null != m.contract) {
+		infoTv2a.setText(m.contractInfo);
+		contractString = m.contract;
+		buttonContract.setEnabled(true);
 	    }
-	    return ret+System.getProperty("line.separator");
+	    else if(m.whole) {
+		buttonContract.setEnabled(false);
+	    }
+	    long t = System.nanoTime() - start;
+	    binds++;
+	    bindTime += t;
+	    longestBind = Math.max(longestBind, t);
 	}
 
-	private String getZones(final RKFObject o) {
-	    RKFObject curr = o;
-	    String ret = "";
-	    // build up a string of all the zones in the single-linked list of RKFObjects
-	    while(curr != null) {
-		ret += res.getString(R.string.zone)+": "+
-		    curr.getValue()+System.getProperty("line.separator");
-		curr = curr.getNext();
+	@Override
+	protected void onProgress(CardModel m) {
+	    bind(m);
+	    if(firstBalanceTime < 0 && null == m.status && null != m.purse) {
+		firstBalanceTime = SystemClock.elapsedRealtime() - startTime;
 	    }
-	    return ret;
 	}
 
 	@Override
-        protected void onPostExecute(Void result) {
-	    if(tagLost) {
-		// handle lost tag while reading
+	protected void onDone() {
+	    done = true;
+	    // the read is over, its log is not changed any more; the times
+	    // of the UI thread are added to it here
+	    debugString = (null == result) ? log.toString() : result.log;
+	    if(tagLost && null == result) {
+		// handle lost tag while reading, before anything to show
 		topTv.setText(R.string.tag_lost);
 		card = null;
 		tagLost = false;
 	    } 
 	    else {
-		// if the tag was not lost during read
-		if(card != null) {
-		    card.parseCard();
-		    // activate and set debug message view after card parsing
-		    debugString += card.getDebug();
+		// if the tag was not lost during read, or after some of it
+		if(result != null) {
+		    // activate debug message view after card parsing, the full
+		    // decode and its text are only done if the debug view is opened
+		    debugCard = card;
 		    buttonDebug.setEnabled(true);
 
-		    // get vendor and serial number and set the top string of main view
-		    if(card.firstSector != null) {
-			topString = String.format(res.getString(R.string.top_string), 
-						  card.firstSector.get("Serial number").getValue(),
-						  RKFCard.getVendor((int)card.firstSector.get("Card provider").getValue()));
-			topTv.setText(topString);
-		    }
-		    // get the purse value and set it as main string of main view
-		    if(card.dynPurse != null) {
-			mainString = card.getAmount((int)card.dynPurse.get("Value").getValue());
-			mainTv.setText(mainString);
+		    bind(result);
+		    if(firstBalanceTime < 0 && null != result.purse) {
+			firstBalanceTime = SystemClock.elapsedRealtime() - startTime;
 		    }
 
-		    // set the ticket and contract buttons and their message views
-		    setTicket();
-		    setContract();
+		    if(firstBalanceTime >= 0) {
+			debugString += "Time to first balance: "+firstBalanceTime+" ms"+System.getProperty("line.separator");
+		    }
+		    if(tagLost) {
+			// the rest is read if the card is back in time
+			topTv.setText(String.format(res.getString(R.string.partial_read), topString));
+			tagLost = false;
+		    }
+		    debugString += String.format("UI thread: %d updates, %.2f ms, longest %.2f ms, views made in %.2f ms",
+						 binds, bindTime/1e6, longestBind/1e6, modelTime/1e6)+
+			System.getProperty("line.separator");
 		}
 		else if(CardType.UNKNOWN == cardType) {
 		    topTv.setText(R.string.unknown_card);
@@ -774,14 +654,4 @@ public class RKFRead extends Activity {
 	    }
 	}
     }
-
-    private static byte[] hexStringToByteArray(final String s) {
-	int len = s.length();
-	byte[] b = new byte[(len/2)];
-	for(int i=0;i<len;i+=2) {
-	    b[(i/2)] = (byte)((Character.digit(s.charAt(i), 16) << 4) +
-			      Character.digit(s.charAt(i+1), 16));
-	}
-	return b;
-    }
 }
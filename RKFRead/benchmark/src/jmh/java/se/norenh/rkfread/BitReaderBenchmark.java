@@ -0,0 +1,153 @@
+/*
+ * Copyright 2014 Henning Norén
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package se.norenh.rkfread;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * BitReader against the byte loop RKFCard.getLongFromPos used before it.
+ * Both read the same fields: every bit position of the dump with the field
+ * lengths used by the RKF layouts, so block and sector boundaries are
+ * crossed as often as on a real card.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class BitReaderBenchmark {
+    private static final int[] LENGTHS = {2, 4, 6, 8, 12, 14, 16, 20, 24, 29, 32, 34};
+
+    private byte[] dump;
+    private BitReader reader;
+    private BitReader bufferReader;
+    private int[] pos;
+    private int[] len;
+
+    @Setup(Level.Trial)
+    public void setup() {
+	dump = SampleDumps.get("SL");
+	reader = new BitReader(dump);
+	ByteBuffer b = ByteBuffer.allocateDirect(dump.length);
+	b.put(dump);
+	bufferReader = new BitReader(b, 0, dump.length, false);
+	int bits = dump.length*8;
+	int n = 0;
+	pos = new int[bits*LENGTHS.length];
+	len = new int[bits*LENGTHS.length];
+	for(int p=0;p<bits;p++) {
+	    for(int l : LENGTHS) {
+		if(p+l > bits)
+		    continue;
+		pos[n] = p;
+		len[n] = l;
+		n++;
+	    }
+	}
+	pos = Arrays.copyOf(pos, n);
+	len = Arrays.copyOf(len, n);
+
+	// the word reader has to give the exact same fields as the byte loop
+	for(int i=0;i<n;i++) {
+	    long a = byteLoop(dump, pos[i], len[i]);
+	    long w = reader.get(pos[i], len[i]);
+	    long m = bufferReader.get(pos[i], len[i]);
+	    if(a != w || a != m) {
+		throw new IllegalStateException("Mismatch at "+pos[i]+"/"+len[i]+": "+a+" != "+w+" or "+m);
+	    }
+	}
+    }
+
+    @Benchmark
+    public long byteLoop() {
+	long r = 0;
+	for(int i=0;i<pos.length;i++) {
+	    r += byteLoop(dump, pos[i], len[i]);
+	}
+	return r;
+    }
+
+    @Benchmark
+    public long bitReader() {
+	long r = 0;
+	for(int i=0;i<pos.length;i++) {
+	    r += reader.get(pos[i], len[i]);
+	}
+	return r;
+    }
+
+    /** In place on a direct buffer, as a card of a DumpArchive */
+    @Benchmark
+    public long bufferReader() {
+	long r = 0;
+	for(int i=0;i<pos.length;i++) {
+	    r += bufferReader.get(pos[i], len[i]);
+	}
+	return r;
+    }
+
+    /** The original RKFCard.getLongFromPos */
+    static long byteLoop(final byte[] bytes, int pos, int length) {
+	int sByte, eByte, sBit, eBits, mask;
+	long r;
+	sByte = pos/8;          // get start byte
+	eByte = (pos+length)/8; // get end byte
+
+	sBit = pos % 8;             // Find what bit to start on
+	eBits = (pos + length) % 8; // number of bits to read for last byte
+
+	// process first byte
+	mask = (0xFF << sBit) & 0xFF;
+	if(sByte == eByte) {
+	    mask = (0xFF >> 8-eBits) & mask;
+	    return (bytes[sByte] & mask) >> sBit;
+	}
+	r = (bytes[sByte] & mask) >> sBit;
+
+	// build up long from whole bytes
+	int bPos = 1;
+	for(int i = sByte+1; i < eByte; i++) {
+	    r = ((long)(bytes[i] & 0xFF) << ((bPos*8)-sBit)) | r;
+	    bPos++;
+	}
+
+	// add last bits
+	if(0 == eBits)    // if there is zero bits left to read we are done
+	    return r;
+	else
+	    mask = (0xFF >> (8-eBits));
+	r = ((long)(bytes[eByte] & mask) << ((bPos*8)-sBit)) | r;
+
+	return r;
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2014 Henning Norén
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package se.norenh.rkfread;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/** The static formatters used for every decoded attribute */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FormatBenchmark {
+    // days since 1997-01-01, minutes since 2000-01-01, packed times,
+    // amounts and AIDs as found on the sample cards
+    private final int[] dates = {0, 1460, 7520, 7530, 8400, 16383};
+    private final int[] dateTimes = {0, 525600, 9000000, 9263125, 16777215};
+    private final int[] times = {0, 0x3D15, 0x8085, 0xBF7D};
+    private final int[] amounts = {0, 9900, 12345, -2500, 0x7FFFFF};
+    private final int[] aids = {0x65, 0xE0, 0xF0, 0x78, 0x7D0, 0x123};
+    private final StringBuilder sb = new StringBuilder(64);
+
+    @Benchmark
+    public void getDateFromInt(Blackhole bh) {
+	for(int i=0;i<dates.length;i++) {
+	    bh.consume(RKFCard.getStringFromDate(RKFCard.getDateFromInt(dates[i])));
+	}
+    }
+
+    @Benchmark
+    public void date(Blackhole bh) {
+	for(int i=0;i<dates.length;i++) {
+	    bh.consume(RKFFormat.date(dates[i]));
+	}
+    }
+
+    @Benchmark
+    public void dateTime(Blackhole bh) {
+	for(int i=0;i<dateTimes.length;i++) {
+	    bh.consume(RKFFormat.dateTime(dateTimes[i]));
+	}
+    }
+
+    @Benchmark
+    public void getTimeFromInt(Blackhole bh) {
+	for(int i=0;i<times.length;i++) {
+	    bh.consume(RKFCard.getTimeFromInt(times[i]));
+	}
+    }
+
+    @Benchmark
+    public void amount(Blackhole bh) {
+	for(int i=0;i<amounts.length;i++) {
+	    bh.consume(RKFFormat.amount(amounts[i], 100));
+	}
+    }
+
+    /** What getDebug() does per field, nothing allocated */
+    @Benchmark
+    public StringBuilder appendAll() {
+	sb.setLength(0);
+	for(int i=0;i<dates.length;i++) {
+	    RKFFormat.appendDate(sb, dates[i]);
+	}
+	for(int i=0;i<dateTimes.length;i++) {
+	    RKFFormat.appendDateTime(sb, dateTimes[i]);
+	}
+	for(int i=0;i<times.length;i++) {
+	    RKFFormat.appendTime(sb, times[i]);
+	}
+	for(int i=0;i<amounts.length;i++) {
+	    RKFFormat.appendAmount(sb, amounts[i], 100);
+	}
+	return sb;
+    }
+
+    @Benchmark
+    public void getVendor(Blackhole bh) {
+	for(int i=0;i<aids.length;i++) {
+	    bh.consume(RKFCard.getVendor(aids[i]));
+	}
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright 2014 Henning Norén
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package se.norenh.rkfread;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/** Whole card and single field decoding, per card type */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ParseBenchmark {
+    @Param({"JOJO", "SL", "VASTTRAFIKEN", "NORRBOTTEN", "REJSEKORT"})
+    public String cardType;
+
+    private byte[] dump;
+    private RKFCard card;
+    // the dump as a whole card, trailers included, outside the heap
+    private ByteBuffer mapped;
+
+    // bit positions and lengths of the first sector fields
+    private static final int[] FIELD_POS = {0, 144, 150, 162, 176, 184, 200};
+    private static final int[] FIELD_LEN = {32, 6, 12, 14, 8, 16, 6};
+
+    @Setup(Level.Trial)
+    public void loadDump() {
+	dump = SampleDumps.get(cardType);
+	card = new RKFCard();
+	card.bytes = dump;
+	card.loadReader();
+	mapped = ByteBuffer.allocateDirect(DumpArchive.CARD_BYTES);
+	for(int s=0;s<RKFCard.SECTORS;s++) {
+	    mapped.position(s*64);
+	    mapped.put(dump, s*48, 48);
+	}
+	mapped.clear();
+    }
+
+    /** Only what parseCard() decodes up front */
+    @Benchmark
+    public RKFCard parseCard() {
+	RKFCard c = new RKFCard();
+	c.bytes = dump;
+	c.parseCard();
+	return c;
+    }
+
+    /** What the main view shows: serial number, purse, ticket and contract */
+    @Benchmark
+    public void parseCardAndRead(Blackhole bh) {
+	RKFCard c = new RKFCard();
+	c.bytes = dump;
+	c.parseCard();
+	bh.consume(c.getFirstSector());
+	bh.consume(c.getDynPurse());
+	bh.consume(c.getDynTicket());
+	bh.consume(c.getSpecialTicket());
+	bh.consume(c.getDynContract());
+    }
+
+    /** As parseCardAndRead, on the card in place as a DumpArchive has it */
+    @Benchmark
+    public void parseInPlaceAndRead(Blackhole bh) {
+	RKFCard c = new RKFCard(mapped, 0, true);
+	bh.consume(c.getFirstSector());
+	bh.consume(c.getDynPurse());
+	bh.consume(c.getDynTicket());
+	bh.consume(c.getSpecialTicket());
+	bh.consume(c.getDynContract());
+    }
+
+    /** The whole card in sector order with a trace, as for the debug view */
+    @Benchmark
+    public RKFCard parseCardFull() {
+	RKFCard c = new RKFCard();
+	c.bytes = dump;
+	c.setTraceLevel(ParseTrace.Level.FULL);
+	c.parseCard();
+	return c;
+    }
+
+    @Benchmark
+    public String parseCardAndDebug() {
+	RKFCard c = new RKFCard();
+	c.bytes = dump;
+	c.parseCard();
+	return c.getDebug();
+    }
+
+    @Benchmark
+    public void getLongFromPos(Blackhole bh) {
+	for(int i=0;i<FIELD_POS.length;i++) {
+	    card.pos = FIELD_POS[i];
+	    bh.consume(card.getLongFromPos(FIELD_LEN[i]));
+	}
+    }
+
+    @Benchmark
+    public RKFRecord decodeFirstSector() {
+	return card.decode(RKFLayout.FirstSector.LAYOUT, 0, 0);
+    }
+}
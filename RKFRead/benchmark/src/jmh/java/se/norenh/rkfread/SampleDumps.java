@@ -0,0 +1,430 @@
+/*
+ * Copyright 2014 Henning Norén
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package se.norenh.rkfread;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Card dumps used by the benchmarks.
+ *
+ * If the system property rkfread.dumps points at a directory containing
+ * &lt;type&gt;.bin (for example sl.bin), that dump is used. Otherwise a
+ * synthetic dump is built that follows the layout RKFCard expects for the
+ * card type, so every parser path of that card type is exercised.
+ */
+public final class SampleDumps {
+    public static final String[] TYPES = {
+	"JOJO", "SL", "VASTTRAFIKEN", "NORRBOTTEN", "REJSEKORT"
+    };
+
+    private SampleDumps() {
+    }
+
+    public static byte[] get(final String type) {
+	String dir = System.getProperty("rkfread.dumps");
+	if(dir != null && dir.length() > 0) {
+	    File f = new File(dir, type.toLowerCase()+".bin");
+	    if(f.isFile()) {
+		try {
+		    return toDataBlocks(readFile(f));
+		}
+		catch (IOException e) {
+		    throw new IllegalStateException("Could not read "+f, e);
+		}
+	    }
+	}
+	return synthetic(type);
+    }
+
+    /** Strips the sector trailers of a 1024 byte Mifare Classic 1K dump */
+    public static byte[] toDataBlocks(final byte[] b) {
+	if(b.length == 16*48) {
+	    return b;
+	}
+	if(b.length < 16*64) {
+	    throw new IllegalArgumentException("Unexpected dump size "+b.length);
+	}
+	byte[] r = new byte[16*48];
+	for(int s=0;s<16;s++) {
+	    System.arraycopy(b, s*64, r, s*48, 48);
+	}
+	return r;
+    }
+
+    private static byte[] readFile(final File f) throws IOException {
+	byte[] b = new byte[(int)f.length()];
+	InputStream in = new FileInputStream(f);
+	try {
+	    int n = 0;
+	    while(n < b.length) {
+		int r = in.read(b, n, b.length-n);
+		if(r < 0)
+		    throw new IOException("Short read of "+f);
+		n += r;
+	    }
+	}
+	finally {
+	    in.close();
+	}
+	return b;
+    }
+
+    public static byte[] synthetic(final String type) {
+	if("JOJO".equals(type)) {
+	    return jojo();
+	}
+	else if("SL".equals(type)) {
+	    return sl();
+	}
+	else if("VASTTRAFIKEN".equals(type)) {
+	    return purseOnly(0xF0, 0x2752, 2);
+	}
+	else if("NORRBOTTEN".equals(type)) {
+	    return purseOnly(0x78, 0x2752, 2);
+	}
+	else if("REJSEKORT".equals(type)) {
+	    return rejsekort();
+	}
+	throw new IllegalArgumentException("Unknown card type "+type);
+    }
+
+    // sector ids used in the directory
+    private static final int FREE = 0x00;
+    private static final int TCAS = 0x05;
+    private static final int TCDI = 0x06;
+    private static final int TCEL = 0x0A;
+    private static final int TCPU = 0x0B;
+
+    private static byte[] jojo() {
+	Writer w = new Writer();
+	firstSector(w, 0x12345678L, 2, 0xE0, 0x2752);
+	int[] aid = {TCDI, TCAS, TCEL, TCPU, 0xE0, 0xE0, 0xE0, 0xE0, 0xE0, 0xE0,
+		     FREE, FREE, FREE, FREE, FREE};
+	directory(w, 128*3, aid, null);
+	appStatus(w, 2, 5);
+	eventLog(w, 3, 0xE0);
+	purse(w, 4, 2, 0xE0, 128, 25000, 31000);
+	ticketContract(w, 5, 0x86, 0xE0, false);
+	ticketContract(w, 7, 0x87, 0xE0, false);
+	discount(w, 9, 0xE0);
+	customerProfile(w, 10, 0xE0);
+	return w.b;
+    }
+
+    private static byte[] sl() {
+	Writer w = new Writer();
+	firstSector(w, 0x0BADCAFEL, 4, 0x65, 0x2752);
+	// SL keeps the valid directory in sector 2
+	int[] aid = {TCDI, TCDI, TCAS, TCEL, TCPU, 0x65, 0x65, 0x65, 0x65, 0x65,
+		     0x65, 0x65, 0x65, 0x01, FREE};
+	int[] pix = new int[15];
+	pix[13] = 0x01; // sector 14 defective
+	directory(w, 128*3, aid, pix);
+	directory(w, 256*3, aid, pix);
+	appStatus(w, 3, 6);
+	eventLog(w, 4, 0x65);
+	purse(w, 5, 3, 0x65, 128, 12050, 9900);
+	ticketContract(w, 6, 0x86, 0x65, true);
+	ticketContract(w, 8, 0x87, 0x65, true);
+	specialTicket(w, 10, 0x65, true);
+	// extra contract that the parser should ignore
+	ticketContract(w, 11, 0x87, 0x65, true);
+	discount(w, 12, 0x65);
+	customerProfile(w, 13, 0x65);
+	return w.b;
+    }
+
+    private static byte[] purseOnly(int provider, int currency, int purseVersion) {
+	Writer w = new Writer();
+	firstSector(w, 0x00C0FFEEL, 2, provider, currency);
+	int[] aid = {TCDI, TCAS, TCEL, TCPU, TCPU, FREE, FREE, FREE, FREE, FREE,
+		     FREE, FREE, FREE, FREE, FREE};
+	directory(w, 128*3, aid, null);
+	appStatus(w, 2, -1);
+	eventLog(w, 3, provider);
+	purse(w, 4, purseVersion, provider, 128, 40000, 41500);
+	// backup purse, skipped by the parser
+	purse(w, 5, purseVersion, provider, 128, 1, 2);
+	return w.b;
+    }
+
+    private static byte[] rejsekort() {
+	Writer w = new Writer();
+	firstSector(w, 0x7D07D007L, 6, 0x7D0, 0x2208);
+	int[] aid = {TCDI, TCAS, TCEL, TCPU, TCPU, FREE, FREE, FREE, FREE, FREE,
+		     FREE, FREE, FREE, FREE, FREE};
+	directory(w, 128*3, aid, null);
+	appStatus(w, 2, -1);
+	eventLog(w, 3, 0x7D0);
+	// Rejsekort uses 256 bit purse blocks, the second copy lives in sector 5
+	purse(w, 4, 6, 0x7D0, 256, 15075, 17575);
+	return w.b;
+    }
+
+    private static void firstSector(final Writer w, long serial, int version, int provider, int currency) {
+	w.put(0, 32, serial);
+	w.pos = 16*9;
+	w.add(6, version);
+	w.add(12, provider);
+	w.add(14, 8400);   // card validity end date, days since 1997-01-01
+	w.add(8, 0x01);    // status OK
+	w.add(16, currency);
+	w.add(6, 1);       // event log version
+    }
+
+    private static void directory(final Writer w, int start, final int[] aid, final int[] pix) {
+	w.pos = start;
+	int s = 0;
+	boolean aidBool = true;
+	for(int i=1;i<31;i++) {
+	    if(aidBool) {
+		w.add(12, aid[s]);
+	    }
+	    else {
+		w.add(12, (pix == null) ? 0x10+s : pix[s]);
+		s++;
+	    }
+	    if(i%10 == 0) { // MAC at end of block
+		w.add(8, 0x5A);
+	    }
+	    aidBool = !aidBool;
+	}
+    }
+
+    private static void appStatus(final Writer w, int sector, int swappedSector) {
+	w.pos = sector*48*8;
+	w.add(8, 0xA0);
+	w.add(6, 1);
+	for(int i=0;i<16;i++) {
+	    w.add(2, (i == swappedSector) ? 2 : 1);
+	}
+	w.add(8, 0x42); // transaction number
+	w.add(4, 2);    // event log record number
+	w.add(4, 3);    // ticket log area sector pointer
+	for(int i=0;i<8;i++) {
+	    w.add(4, i);
+	}
+    }
+
+    private static void eventLog(final Writer w, int sector, int aid) {
+	w.pos = sector*48*8;
+	w.add(8, 0x84);
+	for(int i=0;i<3;i++) {
+	    w.add(14, 7520+i);
+	    w.add(16, time(7+i, 15+i*3, 42));
+	    w.add(12, aid);
+	    w.add(16, 0x1000+i);
+	    w.add(24, 0x2000+i);
+	    w.add(6, i+1);
+	    w.add(24, 0x3000+i);
+	    w.add(8, 0x77);  // checksum
+	    w.add(8, 0x84);  // next identifier
+	}
+    }
+
+    private static void purse(final Writer w, int sector, int version, int aid, int blockLen,
+			      int value, int oldValue) {
+	int n = sector*48*8;
+	w.pos = n;
+	w.add(8, 0x85);
+	w.add(6, version);
+	w.add(12, aid);
+	if(version < 6) {
+	    w.add(32, 0x01020304L);
+	    w.add(14, 7000);
+	}
+	w.pos = n+blockLen;
+	dynPurse(w, version, 0x0101, oldValue);
+	w.pos = n+(blockLen*2);
+	dynPurse(w, version, 0x0102, value);
+    }
+
+    private static void dynPurse(final Writer w, int version, int tx, int value) {
+	w.add(16, tx);
+	if(version < 6) {
+	    w.add(14, 9000);
+	}
+	w.add(24, value & 0xFFFFFF);
+	if(version == 2) {
+	    w.add(8, 0x01);
+	    w.add(20, 5000);
+	}
+    }
+
+    /** Writes a TCTI (0x86) or TCCO (0x87) with two 256 bit dynamic fields */
+    private static void ticketContract(final Writer w, int sector, int ident, int aid, boolean sl) {
+	int n = sector*48*8;
+	w.pos = n;
+	w.add(8, ident);
+	w.add(6, 1);
+	w.add(4, 1);    // dynamic data starts at block 1
+	w.add(4, 2);    // each dynamic field is two blocks long
+	for(int copy=0;copy<2;copy++) {
+	    int start = n+128+(256*copy);
+	    w.pos = start;
+	    w.add(8, 0x88);
+	    w.add(12, 0x100+copy);
+	    if(sl && ident == 0x87) {
+		w.add(4, 0);
+	    }
+	    if(ident == 0x86) {
+		w.add(8, 0x9E);
+		w.add(14, 7530+copy);
+		w.add(16, time(16, 4+copy, 10));
+		w.add(8, 0x97);
+		w.add(12, aid);
+		w.add(14, 1100+copy);
+		w.add(12, aid);
+		w.add(14, 1200+copy);
+		w.add(12, 35);
+		w.add(12, 4+copy);
+		w.add(12, aid);
+		w.add(14, 1300);
+		w.add(12, aid);
+		w.add(14, 1400);
+		w.add(6, 2);
+		w.add(8, 0x94);
+		w.add(20, 3600+copy);
+	    }
+	    else {
+		w.add(8, 0x9C);
+		w.add(2, 1);
+		w.add(14, 0x101);
+		w.add(14, 0x201);
+		w.add(14, 0);
+		w.add(8, 0x96);
+		w.add(14, 7500+copy);
+		w.add(16, time(0, 0, 0));
+		w.add(14, 7530+copy);
+		w.add(16, time(23, 59, 58));
+		w.add(8, 30);
+		w.add(14, 7530+copy);
+		w.add(8, 0);
+		w.add(8, 0);
+		w.add(8, 0);
+		w.add(8, 0x99);
+		w.add(12, aid);
+		w.add(14, 1+copy);
+	    }
+	    w.add(8, 0x93);
+	}
+    }
+
+    private static void specialTicket(final Writer w, int sector, int aid, boolean sl) {
+	w.pos = sector*48*8;
+	w.add(8, 0xA3);
+	w.add(6, 1);
+	w.add(12, aid);
+	w.add(12, 0x20);
+	w.add(8, 0x01);
+	w.add(2, 1);
+	w.add(14, 0x102);
+	w.add(14, 0);
+	w.add(14, 0);
+	w.add(2, 1);
+	w.add(2, 1);
+	w.add(2, 0);
+	w.add(20, 4400);
+	w.add(6, 0);
+	if(sl) {
+	    w.add(4, 0);
+	}
+	w.add(12, aid);
+	w.add(14, 9021);
+	w.add(24, 9300000); // minutes since 2000-01-01, summer 2017
+	w.add(12, aid);
+	w.add(14, 9040);
+	w.add(10, 32);
+	w.add(12, aid);
+	w.add(14, 9050);
+	w.add(10, 75);
+	w.add(2, 1);
+	w.add(6, 3);
+	w.add(12, aid);
+	w.add(14, 9021);
+	w.add(12, 14);
+	w.add(12, aid);
+	w.add(14, 9030);
+	w.add(10, 20);
+    }
+
+    private static void discount(final Writer w, int sector, int aid) {
+	w.pos = sector*48*8;
+	w.add(8, 0xA1);
+	w.add(6, 1);
+	w.add(12, aid);
+	w.add(8, 1);
+	w.add(8, 2);
+	w.add(8, 3);
+	w.pos += 78;
+	w.add(8, 0x01);
+	w.add(8, 7);
+	w.add(29, 1000);
+	w.add(29, 2000);
+	w.add(29, 3000);
+    }
+
+    private static void customerProfile(final Writer w, int sector, int aid) {
+	w.pos = sector*48*8;
+	w.add(8, 0xA2);
+	w.add(6, 1);
+	w.add(12, aid);
+	w.add(8, 0x01);
+	w.add(34, 0x2FFFFFFFFL);
+	w.add(2, 1);
+	w.add(14, 0x101);
+	w.add(14, 0);
+	w.add(14, 0);
+	w.add(2, 1);
+	w.add(11, 1234);
+	w.add(4, 1);
+	w.add(8, 0);
+	w.add(12, aid);
+	w.add(8, 0);
+    }
+
+    private static int time(int h, int m, int s) {
+	return (h << 11) | (m << 5) | (s/2);
+    }
+
+    /** Writes fields least significant bit first, the way RKFCard reads them */
+    private static final class Writer {
+	final byte[] b = new byte[16*48];
+	int pos = 0;
+
+	void add(int length, long value) {
+	    put(pos, length, value);
+	    pos += length;
+	}
+
+	void put(int p, int length, long value) {
+	    for(int i=0;i<length;i++) {
+		int bit = p+i;
+		if(((value >>> i) & 1) != 0) {
+		    b[bit/8] |= (byte)(1 << (bit%8));
+		}
+		else {
+		    b[bit/8] &= (byte)~(1 << (bit%8));
+		}
+	    }
+	}
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright 2014 Henning Norén
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package se.norenh.rkfread;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Whole taps of TapRead against a SimulatedCard of each sample dump.
+ *
+ * The score is the CPU time of a tap; the counters add what the tap
+ * would have cost on a card: simulatedMicros, auths and blockReads are
+ * totals over the iteration, divide by taps for one tap.
+ *
+ *   new    the card has not been seen, its type is probed for
+ *   known  the type cache has the card
+ *   delta  known and its last dump is stored, only changes are read
+ *   lossy  new, and each command loses the card with a 2% chance; the
+ *          card is tapped again until the read is done
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class TapBenchmark {
+    private static final byte[] UID = {0x04, 0x12, 0x34, 0x56};
+
+    @Param({"JOJO", "SL", "VASTTRAFIKEN", "NORRBOTTEN", "REJSEKORT"})
+    public String cardType;
+
+    @Param({"new", "known", "delta", "lossy"})
+    public String scenario;
+
+    private byte[] dump;
+    private CardType type;
+    private CardTypeCache known;
+    private File storeFile;
+    private DumpStore store;
+    private long seed = 0;
+
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class Counters {
+	public long taps;
+	public long simulatedMicros;
+	public long auths;
+	public long blockReads;
+
+	@Setup(Level.Iteration)
+	public void clear() {
+	    taps = 0;
+	    simulatedMicros = 0;
+	    auths = 0;
+	    blockReads = 0;
+	}
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+	dump = SampleDumps.get(cardType);
+	type = CardType.valueOf(cardType);
+	known = new CardTypeCache();
+	known.put(UID, type, 0, false);
+	if("delta".equals(scenario)) {
+	    storeFile = File.createTempFile("tapbench", ".bin");
+	    store = new DumpStore(storeFile, 16);
+	    store.put(UID, 0, (1L << RKFCard.SECTORS) - 1, dump);
+	}
+	// the read has to give the card it was made from
+	RKFCard c = tap(new Counters());
+	long wanted = new RKFCard(dump).getSectorsToRead() | ((1L << RKFCard.DIRECTORY_SECTORS) - 1);
+	for(int sector=0;sector<RKFCard.SECTORS;sector++) {
+	    if(0 != (wanted & (1L << sector)) &&
+	       !Arrays.equals(Arrays.copyOfRange(c.bytes, sector*48, (sector+1)*48),
+			      Arrays.copyOfRange(dump, sector*48, (sector+1)*48))) {
+		throw new IllegalStateException(cardType+"/"+scenario+": sector "+sector+" differs from the dump");
+	    }
+	}
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+	if(null != store) {
+	    store.close();
+	    storeFile.delete();
+	}
+    }
+
+    @Benchmark
+    public RKFCard tap(final Counters n) throws IOException {
+	CardTypeCache cache = "new".equals(scenario) || "lossy".equals(scenario) ? new CardTypeCache() : known;
+	SimulatedCard sim = SimulatedCard.of(type, UID, dump);
+	if("lossy".equals(scenario)) {
+	    sim.setFieldLoss(0.02, seed++);
+	}
+	ReadSession session = null;
+	RKFCard card;
+	while(true) {
+	    TapRead r = new TapRead(sim, cache, store, session, null);
+	    n.taps++;
+	    try {
+		sim.connect();
+		r.read();
+		card = r.getCard();
+		break;
+	    }
+	    catch(IOException e) {
+		session = r.getSession();
+	    }
+	    finally {
+		sim.close();
+	    }
+	}
+	n.simulatedMicros += sim.getElapsed();
+	n.auths += sim.getAuths();
+	n.blockReads += sim.getBlockReads();
+	return card;
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright 2014 Henning Norén
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package se.norenh.rkfread;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * What the dump analyzer reports of a card: the serial number and
+ * provider, the purse, the latest ticket, the validity of the contract
+ * and the event log. Values the card does not have are null.
+ */
+final class CardSummary {
+    /** An entry of the event log (TCEL) */
+    static final class Event {
+	final String time;
+	final int aid;
+	final long device;
+	final long code;
+	final long data;
+
+	Event(final String t, int a, long dev, long c, long d) {
+	    time = t;
+	    aid = a;
+	    device = dev;
+	    code = c;
+	    data = d;
+	}
+    }
+
+    final long serial;
+    final int providerAid;
+    final String provider;
+    final String currency;
+    /** In minor units of the currency */
+    final Long purseValue;
+    final String purse;
+    final String ticketTime;
+    final String ticketOrigin;
+    final String ticketDestination;
+    final String ticketPrice;
+    final String contractStart;
+    final String contractEnd;
+    /** Oldest first */
+    final List<Event> events;
+
+    /** @param c a parsed card */
+    CardSummary(final RKFCard c) {
+	final RKFRecord first = c.getFirstSector();
+	serial = (null == first) ? 0 : first.get(RKFLayout.FirstSector.SERIAL_NUMBER);
+	providerAid = (null == first) ? 0 : first.getInt(RKFLayout.FirstSector.CARD_PROVIDER);
+	provider = (null == first) ? null : c.getOperator().name;
+	currency = c.currency;
+
+	final RKFRecord p = c.getDynPurse();
+	if(null != p && p.has(RKFLayout.DynPurse.VALUE)) {
+	    purseValue = p.get(RKFLayout.DynPurse.VALUE);
+	    purse = c.getAmount(p.getInt(RKFLayout.DynPurse.VALUE));
+	}
+	else {
+	    purseValue = null;
+	    purse = null;
+	}
+
+	final RKFRecord t = c.getDynTicket();
+	final RKFRecord st = c.getSpecialTicket();
+	if(null != t) {
+	    ticketTime = (t.has(RKFLayout.Dynamic.VALIDATION_LAST_DATE) && t.has(RKFLayout.Dynamic.VALIDATION_LAST_TIME)) ?
+		RKFFormat.date(t.getInt(RKFLayout.Dynamic.VALIDATION_LAST_DATE))+" "+
+		RKFFormat.time(t.getInt(RKFLayout.Dynamic.VALIDATION_LAST_TIME)) : null;
+	    ticketOrigin = place(t, RKFLayout.Dynamic.JOURNEY_ORIGIN_PLACE);
+	    ticketDestination = place(t, RKFLayout.Dynamic.JOURNEY_DESTINATION_PLACE);
+	    ticketPrice = t.has(RKFLayout.Dynamic.PRICE) ? c.getAmount(t.getInt(RKFLayout.Dynamic.PRICE)) : null;
+	}
+	else if(null != st) {
+	    ticketTime = st.has(RKFLayout.TCST.JOURNEY_ORIGIN_DATE) ?
+		RKFFormat.dateTime(st.getInt(RKFLayout.TCST.JOURNEY_ORIGIN_DATE)) : null;
+	    ticketOrigin = place(st, RKFLayout.TCST.JOURNEY_ORIGIN_PLACE);
+	    ticketDestination = place(st, RKFLayout.TCST.JOURNEY_DESTINATION_PLACE);
+	    ticketPrice = st.has(RKFLayout.TCST.PRICE) ? c.getAmount(st.getInt(RKFLayout.TCST.PRICE)) : null;
+	}
+	else {
+	    ticketTime = null;
+	    ticketOrigin = null;
+	    ticketDestination = null;
+	    ticketPrice = null;
+	}
+
+	final RKFRecord k = c.getDynContract();
+	contractStart = (null == k) ? null :
+	    dateTime(k, RKFLayout.Dynamic.VALIDITY_START_DATE, RKFLayout.Dynamic.VALIDITY_START_TIME);
+	contractEnd = (null == k) ? null :
+	    dateTime(k, RKFLayout.Dynamic.VALIDITY_END_DATE, RKFLayout.Dynamic.VALIDITY_END_TIME);
+
+	final RKFRecord e = c.getEventLog();
+	if(null == e) {
+	    events = Collections.emptyList();
+	}
+	else {
+	    List<Event> l = new ArrayList<Event>(3);
+	    // oldest first, the log is a ring after the latest record
+	    for(int i : c.getEventLogOrder()) {
+		int date = (int)e.get(RKFLayout.TCEL.EVENT_DATE_STAMP, i);
+		int time = (int)e.get(RKFLayout.TCEL.EVENT_TIME_STAMP, i);
+		long code = e.get(RKFLayout.TCEL.EVENT_CODE, i);
+		if(0 == date && 0 == time && 0 == code)
+		    continue; // never written
+		l.add(new Event(RKFFormat.date(date)+" "+RKFFormat.time(time),
+				(int)e.get(RKFLayout.TCEL.AID, i),
+				e.get(RKFLayout.TCEL.DEVICE, i), code,
+				e.get(RKFLayout.TCEL.EVENT_DATA, i)));
+	    }
+	    events = l;
+	}
+    }
+
+    private static String place(final RKFRecord r, int field) {
+	return r.has(field) ? Long.toString(r.get(field)) : null;
+    }
+
+    private static String dateTime(final RKFRecord r, int date, int time) {
+	if(!r.has(date))
+	    return null;
+	String s = RKFFormat.date(r.getInt(date));
+	return r.has(time) ? s+" "+RKFFormat.time(r.getInt(time)) : s;
+    }
+}
@@ -0,0 +1,319 @@
+/*
+ * Copyright 2014 Henning Norén
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package se.norenh.rkfread;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decodes directories of card dumps and writes a record of each card as
+ * JSON Lines or CSV. A file can be a dump or an archive of many, in any
+ * format DumpArchive reads; the cards of large archives are decoded in
+ * place from the mapped file and split over the threads.
+ *
+ * The directories are walked on the main thread, which hands the files
+ * in batches to a fork-join pool of a thread per core. Only a few batches
+ * are let in at a time, so memory does not grow with the number of
+ * files. Records come in the order the cards are done, not the order of
+ * the files. A file that cannot be read or decoded is reported on stderr
+ * and the run goes on; the exit status is 1 if there was any.
+ */
+public final class DumpAnalyzer {
+    private static final String USAGE =
+	"usage: rkfdump [-f jsonl|csv] [-o file] [-j threads] <dir or file>...";
+    /** Files handed to the pool at a time */
+    private static final int BATCH = 256;
+    /** Files a task decodes itself instead of forking */
+    private static final int LEAF = 8;
+    /** Cards of an archive a task decodes itself */
+    private static final int RECORDS = 64;
+
+    private final ForkJoinPool pool;
+    private final Semaphore batches;
+    private final DumpFormat format;
+    private final Writer out;
+    private final PrintStream err;
+    private final AtomicLong cards = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+
+    DumpAnalyzer(int threads, final DumpFormat f, final Writer o, final PrintStream e) {
+	pool = new ForkJoinPool(threads);
+	// one waiting for each thread busy with another
+	batches = new Semaphore(2*threads);
+	format = f;
+	out = o;
+	err = e;
+    }
+
+    public static void main(final String[] args) {
+	DumpFormat f = DumpFormat.JSONL;
+	String output = null;
+	int threads = Runtime.getRuntime().availableProcessors();
+	List<Path> roots = new ArrayList<Path>();
+	try {
+	    for(int i=0;i<args.length;i++) {
+		if("-f".equals(args[i]) && i+1 < args.length) {
+		    f = DumpFormat.valueOf(args[++i].toUpperCase());
+		}
+		else if("-o".equals(args[i]) && i+1 < args.length) {
+		    output = args[++i];
+		}
+		else if("-j".equals(args[i]) && i+1 < args.length) {
+		    threads = Integer.parseInt(args[++i]);
+		}
+		else if(args[i].startsWith("-")) {
+		    throw new IllegalArgumentException(args[i]);
+		}
+		else {
+		    roots.add(Paths.get(args[i]));
+		}
+	    }
+	}
+	catch(IllegalArgumentException e) {
+	    roots.clear();
+	}
+	if(roots.isEmpty() || threads < 1) {
+	    System.err.println(USAGE);
+	    System.exit(2);
+	}
+
+	int status;
+	try {
+	    OutputStream os = (null == output) ? System.out : new FileOutputStream(output);
+	    Writer w = new BufferedWriter(new OutputStreamWriter(os, "UTF-8"), 1 << 16);
+	    DumpAnalyzer a = new DumpAnalyzer(threads, f, w, System.err);
+	    long start = System.nanoTime();
+	    try {
+		a.run(roots);
+	    }
+	    finally {
+		w.close();
+	    }
+	    double s = (System.nanoTime() - start)/1e9;
+	    System.err.println(String.format("%d cards, %d errors in %.2f s, %.0f cards/s on %d threads",
+					     a.getCards(), a.getErrors(), s, a.getCards()/s, threads));
+	    status = (0 == a.getErrors()) ? 0 : 1;
+	}
+	catch(IOException e) {
+	    System.err.println("rkfdump: "+e.getMessage());
+	    status = 1;
+	}
+	System.exit(status);
+    }
+
+    /** Decodes every file under the roots, returns when all are written */
+    void run(final List<Path> roots) throws IOException {
+	StringBuilder sb = new StringBuilder();
+	format.header(sb);
+	out.write(sb.toString());
+
+	final List<Path> batch = new ArrayList<Path>(BATCH);
+	SimpleFileVisitor<Path> v = new SimpleFileVisitor<Path>() {
+	    @Override
+	    public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+		if(attrs.isRegularFile()) {
+		    batch.add(file);
+		    if(BATCH == batch.size()) {
+			submit(batch);
+			batch.clear();
+		    }
+		}
+		return FileVisitResult.CONTINUE;
+	    }
+
+	    @Override
+	    public FileVisitResult visitFileFailed(Path file, IOException e) {
+		error(file+": "+e);
+		return FileVisitResult.CONTINUE;
+	    }
+	};
+	try {
+	    for(Path root : roots) {
+		Files.walkFileTree(root, v);
+	    }
+	    submit(batch);
+	    // every batch is done when all permits are back
+	    batches.acquireUninterruptibly(2*pool.getParallelism());
+	}
+	finally {
+	    pool.shutdown();
+	}
+	try {
+	    pool.awaitTermination(1, TimeUnit.MINUTES);
+	}
+	catch(InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	}
+	synchronized(out) {
+	    out.flush();
+	}
+    }
+
+    long getCards() { return cards.get(); }
+    long getErrors() { return errors.get(); }
+
+    private void submit(final List<Path> files) {
+	if(files.isEmpty())
+	    return;
+	batches.acquireUninterruptibly();
+	pool.execute(new Decode(files.toArray(new Path[files.size()]), 0, files.size(), true));
+    }
+
+    /** Decodes files[from, to) */
+    private final class Decode extends RecursiveAction {
+	private static final long serialVersionUID = 1L;
+
+	private final Path[] files;
+	private final int from;
+	private final int to;
+	private final boolean batch;
+
+	Decode(final Path[] f, int a, int b, boolean whole) {
+	    files = f;
+	    from = a;
+	    to = b;
+	    batch = whole;
+	}
+
+	@Override
+	protected void compute() {
+	    try {
+		if(to - from <= LEAF) {
+		    decode();
+		}
+		else {
+		    int mid = (from + to) >>> 1;
+		    invokeAll(new Decode(files, from, mid, false), new Decode(files, mid, to, false));
+		}
+	    }
+	    finally {
+		if(batch) {
+		    batches.release();
+		}
+	    }
+	}
+
+	private void decode() {
+	    StringBuilder sb = new StringBuilder(1024*(to - from));
+	    for(int i=from;i<to;i++) {
+		final String name = files[i].toString();
+		DumpArchive a;
+		try {
+		    a = DumpArchive.open(files[i].toFile());
+		}
+		catch(IOException e) {
+		    // the message has the file
+		    error(e.getMessage());
+		    continue;
+		}
+		if(a.size() > RECORDS) {
+		    // an archive, its cards are split over the pool
+		    new Records(name, a, 0, a.size()).invoke();
+		}
+		else {
+		    for(int k=0;k<a.size();k++) {
+			record(sb, (1 == a.size()) ? name : name+"#"+k, a, k);
+		    }
+		}
+	    }
+	    write(sb);
+	}
+    }
+
+    /** Decodes cards [from, to) of an archive */
+    private final class Records extends RecursiveAction {
+	private static final long serialVersionUID = 1L;
+
+	private final String name;
+	private final DumpArchive archive;
+	private final int from;
+	private final int to;
+
+	Records(final String n, final DumpArchive a, int f, int t) {
+	    name = n;
+	    archive = a;
+	    from = f;
+	    to = t;
+	}
+
+	@Override
+	protected void compute() {
+	    if(to - from <= RECORDS) {
+		StringBuilder sb = new StringBuilder(1024*(to - from));
+		for(int k=from;k<to;k++) {
+		    record(sb, name+"#"+k, archive, k);
+		}
+		write(sb);
+	    }
+	    else {
+		int mid = (from + to) >>> 1;
+		invokeAll(new Records(name, archive, from, mid), new Records(name, archive, mid, to));
+	    }
+	}
+    }
+
+    private void record(final StringBuilder sb, final String name, final DumpArchive a, int k) {
+	try {
+	    format.record(sb, name, new CardSummary(a.getCard(k)));
+	    cards.incrementAndGet();
+	}
+	catch(RuntimeException e) {
+	    // not an RKF card, or one the parser does not know
+	    error(name+": could not decode: "+e);
+	}
+    }
+
+    private void write(final StringBuilder sb) {
+	if(0 == sb.length())
+	    return;
+	synchronized(out) {
+	    try {
+		out.write(sb.toString());
+	    }
+	    catch(IOException e) {
+		error("could not write: "+e.getMessage());
+	    }
+	}
+    }
+
+    private void error(final String message) {
+	errors.incrementAndGet();
+	synchronized(err) {
+	    err.println(message);
+	}
+    }
+}
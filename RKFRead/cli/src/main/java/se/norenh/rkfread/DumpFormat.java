@@ -0,0 +1,159 @@
+/*
+ * Copyright 2014 Henning Norén
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package se.norenh.rkfread;
+
+/**
+ * The record formats of the dump analyzer, one line per card.
+ */
+enum DumpFormat {
+    /** JSON Lines, a JSON object per line with the event log as an array */
+    JSONL {
+	@Override
+	void header(final StringBuilder sb) {
+	}
+
+	@Override
+	void record(final StringBuilder sb, final String file, final CardSummary s) {
+	    sb.append("{\"file\":");
+	    string(sb, file);
+	    sb.append(",\"serial\":").append(s.serial);
+	    sb.append(",\"provider_aid\":").append(s.providerAid);
+	    sb.append(",\"provider\":");
+	    string(sb, s.provider);
+	    sb.append(",\"currency\":");
+	    string(sb, s.currency);
+	    sb.append(",\"purse_value\":").append(s.purseValue);
+	    sb.append(",\"purse\":");
+	    string(sb, s.purse);
+	    sb.append(",\"ticket\":");
+	    if(null == s.ticketTime && null == s.ticketOrigin && null == s.ticketPrice) {
+		sb.append("null");
+	    }
+	    else {
+		sb.append("{\"time\":");
+		string(sb, s.ticketTime);
+		sb.append(",\"origin\":");
+		string(sb, s.ticketOrigin);
+		sb.append(",\"destination\":");
+		string(sb, s.ticketDestination);
+		sb.append(",\"price\":");
+		string(sb, s.ticketPrice);
+		sb.append('}');
+	    }
+	    sb.append(",\"contract\":");
+	    if(null == s.contractStart && null == s.contractEnd) {
+		sb.append("null");
+	    }
+	    else {
+		sb.append("{\"valid_from\":");
+		string(sb, s.contractStart);
+		sb.append(",\"valid_to\":");
+		string(sb, s.contractEnd);
+		sb.append('}');
+	    }
+	    sb.append(",\"events\":[");
+	    for(int i=0;i<s.events.size();i++) {
+		CardSummary.Event e = s.events.get(i);
+		if(0 != i)
+		    sb.append(',');
+		sb.append("{\"time\":");
+		string(sb, e.time);
+		sb.append(",\"aid\":").append(e.aid);
+		sb.append(",\"device\":").append(e.device);
+		sb.append(",\"code\":").append(e.code);
+		sb.append(",\"data\":").append(e.data).append('}');
+	    }
+	    sb.append("]}\n");
+	}
+
+	private void string(final StringBuilder sb, final String s) {
+	    if(null == s) {
+		sb.append("null");
+		return;
+	    }
+	    sb.append('"');
+	    for(int i=0;i<s.length();i++) {
+		char c = s.charAt(i);
+		if('"' == c || '\\' == c) {
+		    sb.append('\\').append(c);
+		}
+		else if(c < 0x20) {
+		    sb.append(String.format("\\u%04x", (int)c));
+		}
+		else {
+		    sb.append(c);
+		}
+	    }
+	    sb.append('"');
+	}
+    },
+
+    /** Comma separated with a header line, the event log is one field of
+	"time code aid device data" entries separated by '|' */
+    CSV {
+	@Override
+	void header(final StringBuilder sb) {
+	    sb.append("file,serial,provider_aid,provider,currency,purse_value,purse,"+
+		      "ticket_time,ticket_origin,ticket_destination,ticket_price,"+
+		      "contract_valid_from,contract_valid_to,events\n");
+	}
+
+	@Override
+	void record(final StringBuilder sb, final String file, final CardSummary s) {
+	    field(sb, file).append(',');
+	    sb.append(s.serial).append(',');
+	    sb.append(s.providerAid).append(',');
+	    field(sb, s.provider).append(',');
+	    field(sb, s.currency).append(',');
+	    if(null != s.purseValue)
+		sb.append(s.purseValue);
+	    sb.append(',');
+	    field(sb, s.purse).append(',');
+	    field(sb, s.ticketTime).append(',');
+	    field(sb, s.ticketOrigin).append(',');
+	    field(sb, s.ticketDestination).append(',');
+	    field(sb, s.ticketPrice).append(',');
+	    field(sb, s.contractStart).append(',');
+	    field(sb, s.contractEnd).append(',');
+	    StringBuilder ev = new StringBuilder();
+	    for(int i=0;i<s.events.size();i++) {
+		CardSummary.Event e = s.events.get(i);
+		if(0 != i)
+		    ev.append('|');
+		ev.append(e.time).append(' ').append(e.code).append(' ').append(e.aid).append(' ')
+		    .append(e.device).append(' ').append(e.data);
+	    }
+	    field(sb, ev.toString()).append('\n');
+	}
+
+	private StringBuilder field(final StringBuilder sb, final String s) {
+	    if(null == s)
+		return sb;
+	    if(s.indexOf(',') < 0 && s.indexOf('"') < 0 && s.indexOf('\n') < 0)
+		return sb.append(s);
+	    return sb.append('"').append(s.replace("\"", "\"\"")).append('"');
+	}
+    };
+
+    /** Appends what comes before the first record */
+    abstract void header(StringBuilder sb);
+
+    /** Appends the line of a card */
+    abstract void record(StringBuilder sb, String file, CardSummary s);
+}
@@ -0,0 +1,225 @@
+/*
+ * Copyright 2014 Henning Norén
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package se.norenh.rkfread;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Looks for the bit positions of fields in card dumps, with BitSearch.
+ *
+ * Fields are given as name:bits, or name:bits=value for a value that is
+ * the same on every card. Values that differ per card, such as the
+ * balance each card had when it was dumped, come from a CSV file with a
+ * header line "file,name,..." and a line per dump; a dump is matched by
+ * its path or its file name, with "#n" for the n:th dump of an archive,
+ * and an empty value is not known. The positions that held the values in
+ * the most dumps are listed in the format of RKFCard's debug output.
+ */
+public final class FieldSearch {
+    private static final String USAGE =
+	"usage: rkfsearch [-n hits] [-v values.csv] name:bits[=value]... <dump, archive or dir>...";
+
+    private final BitSearch search = new BitSearch();
+    private Long[] constants = new Long[0];
+    private final Map<String,Long[]> perDump = new HashMap<String,Long[]>();
+    private int errors = 0;
+
+    public static void main(final String[] args) {
+	FieldSearch s = new FieldSearch();
+	int top = 20;
+	String values = null;
+	List<String> fields = new ArrayList<String>();
+	List<Path> roots = new ArrayList<Path>();
+	try {
+	    for(int i=0;i<args.length;i++) {
+		if("-n".equals(args[i]) && i+1 < args.length) {
+		    top = Integer.parseInt(args[++i]);
+		}
+		else if("-v".equals(args[i]) && i+1 < args.length) {
+		    values = args[++i];
+		}
+		else if(args[i].startsWith("-")) {
+		    throw new IllegalArgumentException(args[i]);
+		}
+		else if(args[i].indexOf(':') > 0 && !Files.exists(Paths.get(args[i]))) {
+		    fields.add(args[i]);
+		}
+		else {
+		    roots.add(Paths.get(args[i]));
+		}
+	    }
+	    for(String f : fields) {
+		s.addField(f);
+	    }
+	}
+	catch(IllegalArgumentException e) {
+	    System.err.println("rkfsearch: "+e.getMessage());
+	    roots.clear();
+	}
+	if(roots.isEmpty() || 0 == s.search.getFieldCount()) {
+	    System.err.println(USAGE);
+	    System.exit(2);
+	}
+	try {
+	    if(null != values) {
+		s.readValues(values);
+	    }
+	    long start = System.nanoTime();
+	    for(Path root : roots) {
+		s.scan(root);
+	    }
+	    double t = (System.nanoTime() - start)/1e9;
+	    List<BitSearch.Hit> hits = s.search.getHits(1);
+	    for(int i=0;i<hits.size() && i<top;i++) {
+		System.out.println(hits.get(i));
+	    }
+	    System.err.println(String.format("%d dumps, %d errors in %.2f s, %.0f dumps/s",
+					     s.search.getDumps(), s.errors, t, s.search.getDumps()/t));
+	}
+	catch(IOException e) {
+	    System.err.println("rkfsearch: "+e.getMessage());
+	    System.exit(1);
+	}
+	System.exit((0 == s.errors) ? 0 : 1);
+    }
+
+    /** Adds a field of name:bits or name:bits=value */
+    private void addField(final String spec) {
+	int c = spec.indexOf(':');
+	int e = spec.indexOf('=', c);
+	try {
+	    int bits = Integer.parseInt(spec.substring(c+1, (e < 0) ? spec.length() : e));
+	    int f = search.addField(spec.substring(0, c), bits);
+	    constants = java.util.Arrays.copyOf(constants, f+1);
+	    if(e >= 0) {
+		constants[f] = Long.decode(spec.substring(e+1));
+	    }
+	}
+	catch(NumberFormatException x) {
+	    throw new IllegalArgumentException("bad field "+spec);
+	}
+    }
+
+    private void readValues(final String file) throws IOException {
+	BufferedReader r = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+	try {
+	    String s = r.readLine();
+	    if(null == s) {
+		return;
+	    }
+	    String[] header = s.split(",", -1);
+	    int[] field = new int[header.length];
+	    for(int i=1;i<header.length;i++) {
+		field[i] = search.getField(header[i].trim());
+		if(field[i] < 0) {
+		    throw new IOException(file+": no field "+header[i]+" given");
+		}
+	    }
+	    int n = 1;
+	    while(null != (s = r.readLine())) {
+		n++;
+		if(0 == s.trim().length())
+		    continue;
+		String[] w = s.split(",", -1);
+		Long[] v = new Long[search.getFieldCount()];
+		for(int i=1;i<w.length && i<header.length;i++) {
+		    if(0 == w[i].trim().length())
+			continue;
+		    try {
+			v[field[i]] = Long.decode(w[i].trim());
+		    }
+		    catch(NumberFormatException e) {
+			throw new IOException(file+":"+n+": bad value "+w[i]);
+		    }
+		}
+		perDump.put(w[0].trim(), v);
+	    }
+	}
+	finally {
+	    r.close();
+	}
+    }
+
+    private void scan(final Path root) throws IOException {
+	Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+		@Override
+		public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+		    if(attrs.isRegularFile()) {
+			scanFile(file);
+		    }
+		    return FileVisitResult.CONTINUE;
+		}
+
+		@Override
+		public FileVisitResult visitFileFailed(Path file, IOException e) {
+		    errors++;
+		    System.err.println(file+": "+e);
+		    return FileVisitResult.CONTINUE;
+		}
+	    });
+    }
+
+    private void scanFile(final Path file) {
+	DumpArchive a;
+	try {
+	    a = DumpArchive.open(file.toFile());
+	}
+	catch(IOException e) {
+	    errors++;
+	    System.err.println(e.getMessage());
+	    return;
+	}
+	String path = file.toString();
+	String name = file.getFileName().toString();
+	for(int k=0;k<a.size();k++) {
+	    String suffix = (1 == a.size()) ? "" : "#"+k;
+	    Long[] v = perDump.get(path+suffix);
+	    if(null == v) {
+		v = perDump.get(name+suffix);
+	    }
+	    // a word is loaded at every bit, which the packed copy does
+	    // faster than the buffer
+	    search.scan(new BitReader(a.getBytes(k)), values(v));
+	}
+    }
+
+    // the values of a dump over the constants
+    private Long[] values(final Long[] v) {
+	Long[] r = constants.clone();
+	for(int i=0;null != v && i<v.length && i<r.length;i++) {
+	    if(null != v[i]) {
+		r[i] = v[i];
+	    }
+	}
+	return r;
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright 2014 Henning Norén
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package se.norenh.rkfread;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Reads bit fields of up to 64 bits from a card dump.
+ *
+ * RKF fields are stored least significant bit first: bit 0 of a field is
+ * the lowest bit of the byte at pos/8. The dump is packed into little
+ * endian longs once, so every field is one or two word loads, a shift and
+ * a mask no matter where it starts.
+ *
+ * A reader on a ByteBuffer, such as a slice of a mapped dump archive,
+ * loads the words from the buffer instead and copies nothing. Its dump can
+ * have the sector trailers of a whole card between the 48 data bytes of
+ * each sector, which are then skipped.
+ *
+ * A field that does not fit in the dump is refused with an
+ * IndexOutOfBoundsException, like the byte loop this replaced did, rather
+ * than read as zeros past its end.
+ */
+public final class BitReader {
+    private static final long[] MASK = new long[65];
+    static {
+	for(int i=0;i<64;i++) {
+	    MASK[i] = (1L << i) - 1;
+	}
+	MASK[64] = -1L;
+    }
+
+    private static final int SECTOR = 48;
+    private static final int SECTOR_WITH_TRAILER = 64;
+
+    private final long[] words;
+    private final int bits;
+    // for a reader on a buffer, words is then null
+    private final ByteBuffer buffer;
+    private final int base;
+    private final int stride;
+
+    public BitReader(final byte[] b) {
+	this(b, 0, b.length);
+    }
+
+    public BitReader(final byte[] b, int offset, int length) {
+	// one spare word so the second load of a field in the last word is
+	// always inside the array
+	words = new long[(length/8) + 2];
+	bits = length*8;
+	int whole = length/8;
+	ByteBuffer.wrap(b, offset, whole*8).order(ByteOrder.LITTLE_ENDIAN)
+	    .asLongBuffer().get(words, 0, whole);
+	for(int i=whole*8;i<length;i++) {
+	    words[whole] |= (long)(b[offset+i] & 0xFF) << ((i-(whole*8))*8);
+	}
+	buffer = null;
+	base = 0;
+	stride = SECTOR;
+    }
+
+    /**
+     * A reader on the buffer, which must not change while it is used.
+     *
+     * @param length bytes of the dump, without the trailers
+     * @param trailers true if each sector is followed by its 16 byte trailer
+     */
+    public BitReader(final ByteBuffer b, int offset, int length, boolean trailers) {
+	stride = trailers ? SECTOR_WITH_TRAILER : SECTOR;
+	int end = offset + ((length/SECTOR)*stride) + (length % SECTOR);
+	if(offset < 0 || end > b.limit()) {
+	    throw new IndexOutOfBoundsException("Dump at "+offset+" of "+length+" bytes is outside the buffer");
+	}
+	// absolute loads only, the duplicate is just for the byte order
+	buffer = b.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+	base = offset;
+	bits = length*8;
+	words = null;
+    }
+
+    /** @return number of bits in the dump */
+    public int length() {
+	return bits;
+    }
+
+    /**
+     * @param pos bit position of the first (least significant) bit
+     * @param length number of bits, 0 to 64
+     * @throws IndexOutOfBoundsException if the field is not all in the dump
+     */
+    public long get(int pos, int length) {
+	if(pos < 0 || length > bits - pos) {
+	    throw new IndexOutOfBoundsException("Bits "+pos+" to "+(pos+length)+" of a dump of "+bits);
+	}
+	if(null == words) {
+	    return getFromBuffer(pos, length);
+	}
+	int i = pos >>> 6;
+	int s = pos & 63;
+	// (w << 1) << (63-s) is w << (64-s) but gives 0 instead of w when
+	// s is 0, so the second word needs no branch
+	long r = (words[i] >>> s) | ((words[i+1] << 1) << (63-s));
+	return r & MASK[length];
+    }
+
+    private long getFromBuffer(int pos, int length) {
+	int s = pos & 7;
+	long r = load(pos >>> 3) >>> s;
+	if(length + s > 64) {
+	    r |= load((pos >>> 3) + 8) << (64-s);
+	}
+	return r & MASK[length];
+    }
+
+    // the 8 bytes from byte b of the dump, zero past its end
+    private long load(int b) {
+	int in = b % SECTOR;
+	if((SECTOR == stride || in <= SECTOR-8) && (b+8)*8 <= bits) {
+	    return buffer.getLong(base + (b/SECTOR)*stride + in);
+	}
+	long w = 0;
+	for(int k=0;k<8 && (b+k)*8 < bits;k++) {
+	    int i = b + k;
+	    w |= (long)(buffer.get(base + (i/SECTOR)*stride + (i % SECTOR)) & 0xFF) << (k*8);
+	}
+	return w;
+    }
+}
@@ -0,0 +1,279 @@
+/*
+ * Copyright 2014 Henning Norén
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package se.norenh.rkfread;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Finds where fields of known values are stored, by trying every bit
+ * position of many dumps at once.
+ *
+ * A field is a name and a length in bits; each dump scanned gives the
+ * value the field has on that card, such as the balance shown on a
+ * receipt, or the same value for all. For every position the dump holds
+ * at least one field value at, the fields are looked up by value among
+ * those of that length, so a scan costs about one word load and a hash
+ * probe per position and field length, however many fields there are.
+ * Positions are counted per field over all dumps, and those that held
+ * the value in the largest share of the dumps it was known on rank
+ * first: a real field holds it in all.
+ *
+ * Positions are in bits of the data blocks, as for RKFCard and BitReader.
+ * Not thread safe.
+ */
+public final class BitSearch {
+    /** A position a field had its value at */
+    public static final class Hit {
+	public final String name;
+	public final int length;
+	public final int pos;
+	/** Dumps with the value at pos */
+	public final int dumps;
+	/** Dumps the value of the field was known on */
+	public final int known;
+
+	Hit(final String n, int l, int p, int d, int k) {
+	    name = n;
+	    length = l;
+	    pos = p;
+	    dumps = d;
+	    known = k;
+	}
+
+	@Override
+	public String toString() {
+	    return name+"/"+length+" in "+dumps+" of "+known+" dumps, "+posToHuman(pos);
+	}
+    }
+
+    private static final int BITS = RKFCard.SECTORS*48*8;
+
+    private final List<String> names = new ArrayList<String>();
+    private final List<Integer> lengths = new ArrayList<Integer>();
+    private int[][] counts = new int[0][];
+    private int[] known = new int[0];
+    private int dumps = 0;
+
+    /**
+     * Adds a field to look for.
+     *
+     * @param length bits, 1 to 64
+     * @return the index of the field in the values given to scan()
+     */
+    public int addField(final String name, int length) {
+	if(length < 1 || length > 64) {
+	    throw new IllegalArgumentException("length "+length);
+	}
+	names.add(name);
+	lengths.add(length);
+	counts = Arrays.copyOf(counts, names.size());
+	counts[names.size()-1] = new int[BITS];
+	known = Arrays.copyOf(known, names.size());
+	return names.size()-1;
+    }
+
+    public int getFieldCount() {
+	return names.size();
+    }
+
+    /** Index of the field, -1 if there is none by that name */
+    public int getField(final String name) {
+	return names.indexOf(name);
+    }
+
+    /** Number of dumps scanned */
+    public int getDumps() {
+	return dumps;
+    }
+
+    /**
+     * Scans a dump for the values of the fields on it.
+     *
+     * @param values by field index, null for a field whose value is not
+     *        known on this dump
+     */
+    public void scan(final BitReader r, final Long[] values) {
+	dumps++;
+	int bits = Math.min(r.length(), BITS);
+	// the fields of each length, as a hash table of their values
+	final Table[] tables = new Table[65];
+	for(int f=0;f<names.size();f++) {
+	    if(f >= values.length || null == values[f])
+		continue;
+	    known[f]++;
+	    int l = lengths.get(f);
+	    if(null == tables[l]) {
+		tables[l] = new Table(l);
+	    }
+	    tables[l].add(values[f], f);
+	}
+	List<Table> used = new ArrayList<Table>();
+	for(Table t : tables) {
+	    if(null != t) {
+		t.build();
+		used.add(t);
+	    }
+	}
+	final Table[] t = used.toArray(new Table[used.size()]);
+	for(int pos=0;pos<bits;pos++) {
+	    // one load for every length, the tables mask it
+	    long w = r.get(pos, Math.min(64, bits - pos));
+	    for(int i=0;i<t.length;i++) {
+		if(pos + t[i].length > bits)
+		    continue;
+		t[i].count(w, pos);
+	    }
+	}
+    }
+
+    /** Scans a dump for fields whose value is the same on every card */
+    public void scan(final BitReader r, long value) {
+	Long[] v = new Long[names.size()];
+	Arrays.fill(v, value);
+	scan(r, v);
+    }
+
+    /**
+     * The positions of each field that held its value in at least
+     * minDumps dumps. Those in the largest share of the dumps the field
+     * was known on come first, then those in the most dumps, then by
+     * field and position.
+     */
+    public List<Hit> getHits(int minDumps) {
+	List<Hit> l = new ArrayList<Hit>();
+	for(int f=0;f<names.size();f++) {
+	    for(int pos=0;pos<BITS;pos++) {
+		if(counts[f][pos] > 0 && counts[f][pos] >= minDumps) {
+		    l.add(new Hit(names.get(f), lengths.get(f), pos, counts[f][pos], known[f]));
+		}
+	    }
+	}
+	final List<String> n = names;
+	Collections.sort(l, new Comparator<Hit>() {
+		@Override
+		public int compare(Hit a, Hit b) {
+		    // a.dumps/a.known against b.dumps/b.known
+		    long x = (long)a.dumps*b.known, y = (long)b.dumps*a.known;
+		    if(x != y)
+			return (x > y) ? -1 : 1;
+		    if(a.dumps != b.dumps)
+			return (a.dumps > b.dumps) ? -1 : 1;
+		    int fa = n.indexOf(a.name), fb = n.indexOf(b.name);
+		    if(fa != fb)
+			return (fa < fb) ? -1 : 1;
+		    return (a.pos < b.pos) ? -1 : ((a.pos > b.pos) ? 1 : 0);
+		}
+	    });
+	return l;
+    }
+
+    /** A bit position as sector, block and bit in the block */
+    public static String posToHuman(int i) {
+	int s = (i/(48*8));
+	int b = ((i%(48*8))/128);
+	int bp= ((i%(48*8))%128);
+	return "Pos: "+i+", Sector: "+s+", Block: "+b+", Bit position: "+bp;
+    }
+
+    /** The values of the fields of one length on a dump, by open
+	addressing; fields with the same value are kept next to each other */
+    private final class Table {
+	final int length;
+	final long mask;
+	private long[] values = new long[4];
+	private int[] fields = new int[4];
+	private int n = 0;
+	private int[] slots; // index+1 of the first entry of a value, 0 if free
+	private int shift;
+
+	Table(int l) {
+	    length = l;
+	    mask = (64 == l) ? -1L : (1L << l) - 1;
+	}
+
+	void add(long value, int field) {
+	    if(n == values.length) {
+		values = Arrays.copyOf(values, n*2);
+		fields = Arrays.copyOf(fields, n*2);
+	    }
+	    values[n] = value & mask;
+	    fields[n] = field;
+	    n++;
+	}
+
+	void build() {
+	    // sort by value so a hit walks the fields with that value
+	    Integer[] order = new Integer[n];
+	    for(int i=0;i<n;i++) {
+		order[i] = i;
+	    }
+	    final long[] v = values;
+	    Arrays.sort(order, new Comparator<Integer>() {
+		    @Override
+		    public int compare(Integer a, Integer b) {
+			return (v[a] < v[b]) ? -1 : ((v[a] > v[b]) ? 1 : 0);
+		    }
+		});
+	    long[] sv = new long[n];
+	    int[] sf = new int[n];
+	    for(int i=0;i<n;i++) {
+		sv[i] = v[order[i]];
+		sf[i] = fields[order[i]];
+	    }
+	    values = sv;
+	    fields = sf;
+	    int size = Integer.highestOneBit(Math.max(n, 2)*2)*2;
+	    shift = 64 - Integer.numberOfTrailingZeros(size);
+	    slots = new int[size];
+	    for(int i=0;i<n;i++) {
+		if(i > 0 && values[i] == values[i-1])
+		    continue;
+		int s = slot(values[i]);
+		while(0 != slots[s]) {
+		    s = (s+1) & (slots.length-1);
+		}
+		slots[s] = i+1;
+	    }
+	}
+
+	void count(long w, int pos) {
+	    long v = w & mask;
+	    int s = slot(v);
+	    int e;
+	    while(0 != (e = slots[s])) {
+		if(values[e-1] == v) {
+		    for(int i=e-1;i<n && values[i] == v;i++) {
+			counts[fields[i]][pos]++;
+		    }
+		    return;
+		}
+		s = (s+1) & (slots.length-1);
+	    }
+	}
+
+	private int slot(long v) {
+	    // Fibonacci hashing
+	    return (int)((v * 0x9E3779B97F4A7C15L) >>> shift);
+	}
+    }
+}
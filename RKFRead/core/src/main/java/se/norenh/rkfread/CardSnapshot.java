@@ -0,0 +1,108 @@
+/*
+ * Copyright 2014 Henning Norén
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package se.norenh.rkfread;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * A read card as a small byte array, to hand to another activity or
+ * keep, in place of its rendered text.
+ *
+ * It holds the dump, which is every raw value the card has, and the log
+ * of the read. The fields are decoded again from the dump, and only
+ * when they are asked for, so what is passed is about a kilobyte
+ * whatever the card has on it and the debug text is only made for the
+ * screen that shows it.
+ */
+public final class CardSnapshot {
+    private static final int MAGIC = 0x524b4653; // "RKFS"
+    private static final int VERSION = 1;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final byte[] dump;
+    private final String log;
+    private RKFCard card = null;
+
+    /** A snapshot of a card, with the dump copied so the card can be read
+	on */
+    public CardSnapshot(final RKFCard c, final String log) {
+	this(c.bytes.clone(), log);
+    }
+
+    private CardSnapshot(final byte[] dump, final String log) {
+	this.dump = dump;
+	this.log = (null == log) ? "" : log;
+    }
+
+    /** The layout is magic, version, dump length and dump, log length and
+	log in UTF-8, big endian */
+    public byte[] toBytes() {
+	byte[] l = log.getBytes(UTF8);
+	ByteBuffer b = ByteBuffer.allocate(16 + dump.length + l.length);
+	b.putInt(MAGIC).putInt(VERSION);
+	b.putInt(dump.length).put(dump);
+	b.putInt(l.length).put(l);
+	return b.array();
+    }
+
+    /** Reads what toBytes() wrote */
+    public static CardSnapshot fromBytes(final byte[] a) {
+	ByteBuffer b = ByteBuffer.wrap(a);
+	try {
+	    if(MAGIC != b.getInt() || VERSION != b.getInt()) {
+		throw new IllegalArgumentException("Not a card snapshot");
+	    }
+	    byte[] d = new byte[checkLength(b, b.getInt())];
+	    b.get(d);
+	    byte[] l = new byte[checkLength(b, b.getInt())];
+	    b.get(l);
+	    return new CardSnapshot(d, new String(l, UTF8));
+	}
+	catch(BufferUnderflowException e) {
+	    throw new IllegalArgumentException("Card snapshot of "+a.length+" bytes is cut short");
+	}
+    }
+
+    private static int checkLength(final ByteBuffer b, int n) {
+	if(n < 0 || n > b.remaining()) {
+	    throw new IllegalArgumentException("Bad card snapshot, length "+n);
+	}
+	return n;
+    }
+
+    public String getLog() {
+	return log;
+    }
+
+    /** The card, decoded on the first call */
+    public synchronized RKFCard getCard() {
+	if(null == card) {
+	    card = new RKFCard(dump, ParseTrace.Level.FULL);
+	}
+	return card;
+    }
+
+    /** The log of the read followed by the decoded card, as the debug
+	view shows them */
+    public String getDebug() {
+	return log + getCard().getDebug();
+    }
+}
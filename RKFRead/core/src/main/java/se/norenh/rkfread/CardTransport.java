@@ -0,0 +1,45 @@
+/*
+ * Copyright 2014 Henning Norén
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package se.norenh.rkfread;
+
+import java.io.IOException;
+
+/**
+ * The commands a read of a Mifare Classic card needs, as the app gets
+ * them from android.nfc.tech.MifareClassic, so a read can also be run
+ * against a SimulatedCard. A lost tag is an IOException.
+ */
+public interface CardTransport {
+    void connect() throws IOException;
+
+    void close() throws IOException;
+
+    byte[] getUid();
+
+    int getSectorCount();
+
+    int sectorToBlock(int sector);
+
+    /** @return false if the key is wrong, the card then has to be
+	selected again before the next command */
+    boolean authenticateSectorWithKeyA(int sector, byte[] key) throws IOException;
+
+    /** 16 bytes of a block of the sector authenticated last */
+    byte[] readBlock(int block) throws IOException;
+}
@@ -0,0 +1,31 @@
+/*
+ * Copyright 2014 Henning Norén
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package se.norenh.rkfread;
+
+/** The kinds of travel cards, told apart by the keys that open them */
+public enum CardType {
+    GOTLAND,
+    JOJO, // Länstrafiken Kronoberg and Skånetrafiken
+    NORRBOTTEN,
+    REJSEKORT,
+    SL,
+    UNINITIALIZED,
+    UNKNOWN,
+    VASTTRAFIKEN,
+    VL
+}
@@ -0,0 +1,242 @@
+/*
+ * Copyright 2014 Henning Norén
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package se.norenh.rkfread;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The card types of cards seen before, by tag UID, and how often each
+ * type has been seen.
+ *
+ * A known card is read with the keys of its type without probing, and
+ * the sectors whose key failed on it are not tried again. New cards are
+ * probed with the most seen types first. Every failed authentication
+ * costs a re-select of the tag, so the stats count how many the cache
+ * saved compared to probing in the fixed order and trying every sector.
+ *
+ * Kept in a small text file between runs, see read() and write().
+ */
+public final class CardTypeCache {
+    /** Cards remembered, the least recently seen are dropped first */
+    public static final int MAX_CARDS = 64;
+    /** Taps the failed sectors of a card are skipped before they are
+	tried again, a failure may have been a weak field */
+    public static final int RETRY_FAILED = 8;
+
+    /** A remembered card */
+    public static final class Entry {
+	public final CardType type;
+	/** Sectors, as bits, whose key of the plan failed on this card */
+	public final long failedSectors;
+	/** Taps in a row the failed sectors have been skipped */
+	public final int skips;
+
+	Entry(final CardType t, long failed, int s) {
+	    type = t;
+	    failedSectors = failed;
+	    skips = s;
+	}
+
+	public boolean hasFailed(int sector) {
+	    return 0 != (failedSectors & (1L << sector));
+	}
+
+	/** Whether the failed sectors are tried again on this tap */
+	public boolean isRetryDue() {
+	    return skips >= RETRY_FAILED;
+	}
+    }
+
+    private final LinkedHashMap<String,Entry> cards = new LinkedHashMap<String,Entry>(16, 0.75f, true) {
+	@Override
+	protected boolean removeEldestEntry(Map.Entry<String,CardTypeCache.Entry> eldest) {
+	    return size() > MAX_CARDS;
+	}
+    };
+    private final int[] seen = new int[CardType.values().length];
+    private long taps = 0;
+    private long hits = 0;
+    private long auths = 0;
+    private long saved = 0;
+
+    public synchronized Entry get(final byte[] uid) {
+	return cards.get(toHex(uid));
+    }
+
+    public synchronized void forget(final byte[] uid) {
+	cards.remove(toHex(uid));
+    }
+
+    /**
+     * Remembers the type of a card that was read.
+     *
+     * @param failedSectors sectors whose key failed on this tap, or that
+     *        were skipped as they failed before
+     * @param skipped whether failed sectors were skipped, counted until
+     *        they are tried again
+     */
+    public synchronized void put(final byte[] uid, final CardType type, long failedSectors, boolean skipped) {
+	Entry old = cards.get(toHex(uid));
+	int skips = (skipped && null != old) ? old.skips + 1 : 0;
+	cards.put(toHex(uid), new Entry(type, failedSectors, skips));
+	seen[type.ordinal()]++;
+    }
+
+    /** The plans to probe a new card with, the most seen types first and
+	otherwise in the order of rkf-keys.txt */
+    public synchronized List<KeyPlan> getProbeOrder() {
+	List<KeyPlan> order = new ArrayList<KeyPlan>(KeyPlan.getProbeOrder());
+	final int[] s = seen.clone();
+	// stable, so types seen equally often keep their order
+	Collections.sort(order, new Comparator<KeyPlan>() {
+		@Override
+		public int compare(KeyPlan a, KeyPlan b) {
+		    int na = s[a.getType().ordinal()];
+		    int nb = s[b.getType().ordinal()];
+		    return (na > nb) ? -1 : ((na < nb) ? 1 : 0);
+		}
+	    });
+	return order;
+    }
+
+    /**
+     * Counts a tap.
+     *
+     * @param type the card type found, UNKNOWN if none
+     * @param hit true if the type came from the cache
+     * @param made authentications made
+     * @param sectors sectors read or skipped after the type was known
+     */
+    public synchronized void countTap(final CardType type, boolean hit, int made, int sectors) {
+	taps++;
+	if(hit) {
+	    hits++;
+	}
+	auths += made;
+	// the fixed order probes until the type is found, then tries every sector
+	List<KeyPlan> fixed = KeyPlan.getProbeOrder();
+	int probes = fixed.size();
+	for(int i=0;i<fixed.size();i++) {
+	    if(fixed.get(i).getType() == type) {
+		probes = i+1;
+		break;
+	    }
+	}
+	if(CardType.UNKNOWN != type) {
+	    probes += sectors;
+	}
+	saved += probes - made;
+    }
+
+    public synchronized long getTaps() { return taps; }
+    public synchronized long getHits() { return hits; }
+    public synchronized long getAuths() { return auths; }
+    public synchronized long getAuthsSaved() { return saved; }
+
+    public synchronized String getStats() {
+	return "Card type cache: "+hits+" of "+taps+" taps known, "+auths+" authentications, "+saved+" saved ("+
+	    String.format("%.1f", (0 == taps) ? 0.0 : (double)saved/taps)+" per tap)";
+    }
+
+    /**
+     * Reads what write() wrote, lines of
+     *
+     *   seen <type> <count>
+     *   card <uid> <type> <failed sectors> <skips>
+     *   stats <taps> <hits> <auths> <saved>
+     *
+     * in hex for the uid and sectors, a card line without skips is of an
+     * older file. Unknown lines and types are skipped
+     * so an old file never stops a card from being read.
+     */
+    public synchronized void read(final InputStream in) throws IOException {
+	BufferedReader r = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+	try {
+	    String s;
+	    int n = 0;
+	    while(null != (s = r.readLine())) {
+		n++;
+		String[] w = RKFSchema.tokenize("card type cache", s, n);
+		try {
+		    if(3 == w.length && "seen".equals(w[0])) {
+			seen[CardType.valueOf(w[1]).ordinal()] = Integer.parseInt(w[2]);
+		    }
+		    else if((4 == w.length || 5 == w.length) && "card".equals(w[0])) {
+			int skips = (5 == w.length) ? Integer.parseInt(w[4]) : 0;
+			cards.put(w[1], new Entry(CardType.valueOf(w[2]), Long.parseLong(w[3], 16), skips));
+		    }
+		    else if(5 == w.length && "stats".equals(w[0])) {
+			taps = Long.parseLong(w[1]);
+			hits = Long.parseLong(w[2]);
+			auths = Long.parseLong(w[3]);
+			saved = Long.parseLong(w[4]);
+		    }
+		}
+		catch(IllegalArgumentException e) {
+		    // skipped, see above
+		}
+	    }
+	}
+	finally {
+	    r.close();
+	}
+    }
+
+    public synchronized void write(final OutputStream out) throws IOException {
+	Writer w = new OutputStreamWriter(out, "UTF-8");
+	try {
+	    for(CardType t : CardType.values()) {
+		if(0 != seen[t.ordinal()]) {
+		    w.write("seen "+t+" "+seen[t.ordinal()]+"\n");
+		}
+	    }
+	    // least recently seen first, so reading it back keeps the order
+	    Iterator<Map.Entry<String,Entry>> i = cards.entrySet().iterator();
+	    while(i.hasNext()) {
+		Map.Entry<String,Entry> e = i.next();
+		w.write("card "+e.getKey()+" "+e.getValue().type+" "+Long.toHexString(e.getValue().failedSectors)+" "+
+			e.getValue().skips+"\n");
+	    }
+	    w.write("stats "+taps+" "+hits+" "+auths+" "+saved+"\n");
+	}
+	finally {
+	    w.close();
+	}
+    }
+
+    static String toHex(final byte[] b) {
+	StringBuilder sb = new StringBuilder(b.length*2);
+	for(int i=0;i<b.length;i++) {
+	    sb.append(Character.forDigit((b[i] >> 4) & 0xF, 16)).append(Character.forDigit(b[i] & 0xF, 16));
+	}
+	return sb.toString();
+    }
+}
@@ -0,0 +1,341 @@
+/*
+ * Copyright 2014 Henning Norén
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package se.norenh.rkfread;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * The debug view of a card as a list of rows, for a list view that only
+ * renders the rows on screen.
+ *
+ * Rows are grouped by sector: a header, the log of decoding the sector
+ * one row per trace entry, and a row per data block that shows the raw
+ * bytes when expanded. The lines of the read log come first. Building
+ * the rows only walks the trace; the text of a row is made by getText()
+ * when it is shown.
+ *
+ * Rows can be filtered by application, the layout of the records, and
+ * by a part of the field name. Positions are of the rows that pass the
+ * filter.
+ */
+public final class DebugRows {
+    // row kinds
+    private static final int LOG = 0;
+    private static final int HEADER = 1;
+    private static final int ENTRY = 2;
+    private static final int BLOCK = 3;
+    // the entry of a header without a SECTOR entry
+    private static final int NOT_DECODED = -1;
+    private static final int NO_ENTRY = -2;
+
+    private final RKFCard card;
+    private final ParseTrace trace;
+    private final String[] log;
+    private int size = 0;
+    private byte[] kind = new byte[256];
+    // log line, trace entry, or sector*3+block
+    private int[] ref = new int[256];
+    private byte[] sector = new byte[256];
+    // layout id of the record the row is in, -1 if none
+    private short[] app = new short[256];
+    private int[] baseTime = new int[256];
+    private final List<String> apps = new ArrayList<String>();
+    private final List<Integer> appIds = new ArrayList<Integer>();
+    private long expanded = 0;
+
+    private int[] visible;
+    private int visibleCount;
+    private String appFilter = null;
+    private String nameFilter = null;
+
+    /**
+     * @param log the log of the read, shown a row per line first
+     * @param c a card with its dump in bytes, its trace is made with
+     *        ParseTrace.Level.FULL if it has none
+     */
+    public DebugRows(final String log, final RKFCard c) {
+	card = (null == c.getTrace()) ? new RKFCard(c.bytes, ParseTrace.Level.FULL) : c;
+	trace = card.getTrace();
+	this.log = (null == log || log.isEmpty()) ? new String[0] : log.split("\r?\n");
+	for(int i=0;i<this.log.length;i++) {
+	    add(LOG, i, -1, -1, 0);
+	}
+	addTrace();
+	filter();
+    }
+
+    private void addTrace() {
+	int n = (null == trace) ? 0 : trace.size();
+	// the sector of each entry by its position. A text is in the sector
+	// of the entry after it, or of the one before it if the next sector
+	// starts after it.
+	int[] sectorOf = new int[n];
+	int next = 0;
+	boolean sectorNext = true;
+	for(int i=n-1;i>=0;i--) {
+	    switch(trace.getKind(i)) {
+	    case ParseTrace.TEXT:
+		sectorOf[i] = sectorNext ? -1 : next;
+		continue;
+	    case ParseTrace.SECTOR:
+		next = (int)trace.getValue(i);
+		sectorNext = true;
+		break;
+	    default:
+		next = trace.getPos(i)/(48*8);
+		sectorNext = false;
+		break;
+	    }
+	    sectorOf[i] = Math.min(next, RKFCard.SECTORS-1);
+	}
+	int last = 0;
+	for(int i=0;i<n;i++) {
+	    if(sectorOf[i] < 0) {
+		sectorOf[i] = last;
+	    }
+	    last = sectorOf[i];
+	}
+	boolean[] shown = new boolean[RKFCard.SECTORS];
+	int current = -1;
+	int base = 0;
+	for(int i=0;i<n;i++) {
+	    int k = trace.getKind(i);
+	    int s = sectorOf[i];
+	    if(s != current) {
+		addBlocks(current, shown);
+		// sectors not decoded before this one, so the sectors keep their order
+		for(int j=0;j<s;j++) {
+		    if(!shown[j]) {
+			add(HEADER, NOT_DECODED, j, -1, 0);
+			addBlocks(j, shown);
+		    }
+		}
+		current = s;
+		if(ParseTrace.SECTOR != k) {
+		    add(HEADER, NO_ENTRY, s, -1, 0);
+		}
+	    }
+	    if(ParseTrace.SECTOR == k) {
+		add(HEADER, i, s, -1, 0);
+		continue;
+	    }
+	    if(ParseTrace.FIELD == k && RKFObject.RKFType.DateTime == trace.getType(i)) {
+		base = (int)trace.getValue(i);
+	    }
+	    int a = -1;
+	    if(ParseTrace.FIELD == k) {
+		a = trace.getLayout(i).getId();
+		if(!appIds.contains(a)) {
+		    apps.add(trace.getLayout(i).getName());
+		    appIds.add(a);
+		}
+	    }
+	    add(ENTRY, i, s, a, base);
+	}
+	addBlocks(current, shown);
+	for(int j=0;j<RKFCard.SECTORS;j++) {
+	    if(!shown[j]) {
+		add(HEADER, NOT_DECODED, j, -1, 0);
+		addBlocks(j, shown);
+	    }
+	}
+	fillApplications();
+    }
+
+    // rows before the first field of a record are in the application of
+    // that record, the rest in the one of the field before them
+    private void fillApplications() {
+	int next = -1;
+	for(int r=size-1;r>=0;r--) {
+	    if(ENTRY == kind[r]) {
+		if(app[r] >= 0) {
+		    next = app[r];
+		}
+		else {
+		    app[r] = (short)next;
+		}
+	    }
+	    else if(HEADER == kind[r]) {
+		next = -1;
+	    }
+	}
+	int last = -1;
+	for(int r=0;r<size;r++) {
+	    if(HEADER == kind[r]) {
+		last = -1;
+	    }
+	    else if(ENTRY == kind[r]) {
+		if(ParseTrace.FIELD == trace.getKind(ref[r])) {
+		    last = app[r];
+		}
+		else if(last >= 0) {
+		    app[r] = (short)last;
+		}
+	    }
+	}
+    }
+
+    // each sector once, after the rows of decoding it
+    private void addBlocks(int s, final boolean[] shown) {
+	if(s < 0 || shown[s]) {
+	    return;
+	}
+	shown[s] = true;
+	for(int b=0;b<3;b++) {
+	    add(BLOCK, s*3 + b, s, -1, 0);
+	}
+    }
+
+    private void add(int k, int r, int s, int a, int base) {
+	if(size == kind.length) {
+	    int c = size*2;
+	    kind = Arrays.copyOf(kind, c);
+	    ref = Arrays.copyOf(ref, c);
+	    sector = Arrays.copyOf(sector, c);
+	    app = Arrays.copyOf(app, c);
+	    baseTime = Arrays.copyOf(baseTime, c);
+	}
+	kind[size] = (byte)k;
+	ref[size] = r;
+	sector[size] = (byte)s;
+	app[size] = (short)a;
+	baseTime[size] = base;
+	size++;
+    }
+
+    /** The applications of the card, in the order they were decoded */
+    public List<String> getApplications() {
+	return apps;
+    }
+
+    /**
+     * Shows only the rows of an application, and of those only the fields
+     * whose name has the given part, ignoring case. The headers and blocks
+     * of sectors with rows shown are kept.
+     *
+     * @param application a name of getApplications(), null for all
+     * @param name part of the field name, null or empty for all
+     */
+    public void setFilter(final String application, final String name) {
+	appFilter = application;
+	nameFilter = (null == name || name.isEmpty()) ? null : name.toLowerCase(Locale.ROOT);
+	filter();
+    }
+
+    private void filter() {
+	visible = new int[size];
+	visibleCount = 0;
+	if(null == appFilter && null == nameFilter) {
+	    for(int r=0;r<size;r++) {
+		visible[r] = r;
+	    }
+	    visibleCount = size;
+	    return;
+	}
+	int wanted = (null == appFilter) ? -1 : appIds.get(apps.indexOf(appFilter));
+	boolean[] sectors = new boolean[RKFCard.SECTORS];
+	boolean[] pass = new boolean[size];
+	for(int r=0;r<size;r++) {
+	    if(ENTRY != kind[r] || (wanted >= 0 && app[r] != wanted)) {
+		continue;
+	    }
+	    if(null != nameFilter) {
+		if(ParseTrace.FIELD != trace.getKind(ref[r]) ||
+		   !trace.getName(ref[r]).toLowerCase(Locale.ROOT).contains(nameFilter)) {
+		    continue;
+		}
+	    }
+	    pass[r] = true;
+	    if(sector[r] >= 0) {
+		sectors[sector[r]] = true;
+	    }
+	}
+	for(int r=0;r<size;r++) {
+	    if(pass[r] || ((HEADER == kind[r] || BLOCK == kind[r]) && sector[r] >= 0 && sectors[sector[r]])) {
+		visible[visibleCount++] = r;
+	    }
+	}
+    }
+
+    /** Rows that pass the filter */
+    public int size() {
+	return visibleCount;
+    }
+
+    /** Whether the row is a block, which toggle() expands */
+    public boolean isBlock(int position) {
+	return BLOCK == kind[visible[position]];
+    }
+
+    public boolean isHeader(int position) {
+	return HEADER == kind[visible[position]];
+    }
+
+    /** Shows or hides the bytes of a block row */
+    public void toggle(int position) {
+	int r = visible[position];
+	if(BLOCK == kind[r]) {
+	    expanded ^= 1L << ref[r];
+	}
+    }
+
+    /** The text of a row, with the bytes of an expanded block on a second
+	line */
+    public String getText(int position) {
+	int r = visible[position];
+	StringBuilder sb = new StringBuilder(64);
+	switch(kind[r]) {
+	case LOG:
+	    sb.append(log[ref[r]]);
+	    break;
+	case HEADER:
+	    if(NOT_DECODED == ref[r]) {
+		sb.append("-- Sector ").append(sector[r]).append(", not decoded");
+	    }
+	    else if(NO_ENTRY == ref[r]) {
+		sb.append("-- Sector ").append(sector[r]);
+	    }
+	    else {
+		card.appendEntry(sb, ref[r], 0);
+	    }
+	    break;
+	case ENTRY:
+	    card.appendEntry(sb, ref[r], baseTime[r]);
+	    break;
+	case BLOCK:
+	    int b = ref[r];
+	    boolean open = 0 != (expanded & (1L << b));
+	    sb.append(open ? "[-] " : "[+] ").append("Block ").append(b/3).append('.').append(b%3);
+	    if(open) {
+		sb.append('\n');
+		for(int i=0;i<16;i++) {
+		    int v = card.bytes[b*16 + i] & 0xFF;
+		    sb.append(Character.forDigit(v >> 4, 16)).append(Character.forDigit(v & 0xF, 16));
+		    sb.append((7 == i) ? "  " : " ");
+		}
+		sb.setLength(sb.length()-1);
+	    }
+	    break;
+	}
+	return sb.toString();
+    }
+}
@@ -0,0 +1,249 @@
+/*
+ * Copyright 2014 Henning Norén
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package se.norenh.rkfread;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Card dumps in a file, handed out as cards decoded in place.
+ *
+ * A binary file (.mfd, .bin) is one or more dumps one after another,
+ * either 1024 bytes of a whole Mifare Classic 1K card with the sector
+ * trailers or 768 bytes of data blocks as RKFCard.bytes. Large files are
+ * memory mapped, in chunks below 2 GB of whole dumps, and nothing is
+ * copied: the offset of each dump follows from its index and getCard()
+ * decodes the card where it lies. Small files are read into one buffer,
+ * since every mapping is a kernel resource that is only released when
+ * the buffer is collected.
+ *
+ * A text file in the format of Mifare Classic Tool, a "+Sector: n" line
+ * followed by a line of 32 hex digits per block, is read into a buffer
+ * of 1024 byte dumps once. Unknown bytes ('-') are read as 0 and a
+ * sector 0 after other sectors starts the next card.
+ *
+ * Only the 1K part of a card is decoded: a binary dump of a 4K card is
+ * read as four cards, of a text dump the sectors past 15 are skipped. The
+ * buffers are only read, so cards of one archive can be
+ * decoded on many threads.
+ */
+public final class DumpArchive {
+    /** Bytes of a dump of the data blocks, as RKFCard.bytes */
+    public static final int DUMP_BYTES = RKFCard.SECTORS*48;
+    /** Bytes of a dump of a whole card */
+    public static final int CARD_BYTES = RKFCard.SECTORS*64;
+    /** Files of at least this size are mapped */
+    static final int MAP_THRESHOLD = 1 << 16;
+
+    private static final String SECTOR_LINE = "+Sector:";
+
+    private final ByteBuffer[] chunks;
+    private final int perChunk; // dumps in each chunk
+    private final int dumpBytes;
+    private final int count;
+
+    private DumpArchive(final ByteBuffer[] c, int p, int d, int n) {
+	chunks = c;
+	perChunk = p;
+	dumpBytes = d;
+	count = n;
+    }
+
+    /** Dumps of whole cards, or of data blocks, in a buffer */
+    public static DumpArchive wrap(final ByteBuffer b, boolean trailers) {
+	int d = trailers ? CARD_BYTES : DUMP_BYTES;
+	return new DumpArchive(new ByteBuffer[] {b}, Integer.MAX_VALUE, d, b.limit()/d);
+    }
+
+    public static DumpArchive open(final File f) throws IOException {
+	RandomAccessFile file = new RandomAccessFile(f, "r");
+	try {
+	    long size = file.length();
+	    if(0 == size) {
+		throw new IOException(f+": empty");
+	    }
+	    if(size < MAP_THRESHOLD) {
+		byte[] b = new byte[(int)size];
+		file.readFully(b);
+		if(isText(b)) {
+		    return readText(f, new ByteArrayInputStream(b));
+		}
+		return wrap(ByteBuffer.wrap(b), CARD_BYTES == getDumpBytes(f, size, b));
+	    }
+	    byte[] head = new byte[64];
+	    file.readFully(head);
+	    if(isText(head)) {
+		return readText(f, new FileInputStream(f));
+	    }
+	    int d = getDumpBytes(f, size, head);
+	    long n = size/d;
+	    if(n > Integer.MAX_VALUE) {
+		throw new IOException(f+": too many dumps");
+	    }
+	    FileChannel ch = file.getChannel();
+	    int per = Integer.MAX_VALUE/d;
+	    ByteBuffer[] c = new ByteBuffer[(int)((n + per - 1)/per)];
+	    for(int i=0;i<c.length;i++) {
+		long start = (long)i*per*d;
+		// the mapping stays valid after the file is closed
+		c[i] = ch.map(FileChannel.MapMode.READ_ONLY, start, Math.min((long)per*d, size - start));
+	    }
+	    return new DumpArchive(c, per, d, (int)n);
+	}
+	finally {
+	    file.close();
+	}
+    }
+
+    /** Number of dumps */
+    public int size() {
+	return count;
+    }
+
+    /** Whether the dumps have the sector trailers */
+    public boolean hasTrailers() {
+	return CARD_BYTES == dumpBytes;
+    }
+
+    /** Dump i decoded in place, see RKFCard(ByteBuffer, int, boolean) */
+    public RKFCard getCard(int i) {
+	return getCard(i, ParseTrace.Level.OFF);
+    }
+
+    public RKFCard getCard(int i, final ParseTrace.Level level) {
+	if(i < 0 || i >= count) {
+	    throw new IndexOutOfBoundsException("dump "+i+" of "+count);
+	}
+	return new RKFCard(chunks[i/perChunk], (i % perChunk)*dumpBytes, hasTrailers(), level);
+    }
+
+    /** A copy of the data blocks of dump i, as RKFCard.bytes */
+    public byte[] getBytes(int i) {
+	if(i < 0 || i >= count) {
+	    throw new IndexOutOfBoundsException("dump "+i+" of "+count);
+	}
+	final ByteBuffer b = chunks[i/perChunk].duplicate();
+	int o = (i % perChunk)*dumpBytes;
+	byte[] r = new byte[DUMP_BYTES];
+	for(int s=0;s<RKFCard.SECTORS;s++) {
+	    b.position(o + s*(dumpBytes/RKFCard.SECTORS));
+	    b.get(r, s*48, 48);
+	}
+	return r;
+    }
+
+    private static boolean isText(final byte[] head) throws IOException {
+	return head.length >= SECTOR_LINE.length() &&
+	    SECTOR_LINE.equals(new String(head, 0, SECTOR_LINE.length(), "US-ASCII"));
+    }
+
+    /** The size of the dumps of a binary file, head is at least its
+	first 64 bytes */
+    private static int getDumpBytes(final File f, long size, final byte[] head) throws IOException {
+	if(0 == size % CARD_BYTES && (0 != size % DUMP_BYTES || hasTrailer(head))) {
+	    return CARD_BYTES;
+	}
+	if(0 == size % DUMP_BYTES) {
+	    return DUMP_BYTES;
+	}
+	throw new IOException(f+": "+size+" bytes, not 768 or 1024 byte dumps");
+    }
+
+    // the access bits of a sector trailer are stored twice, the second
+    // time inverted, which 768 bytes of data blocks hardly ever match
+    private static boolean hasTrailer(final byte[] head) {
+	int b6 = head[54] & 0xFF, b7 = head[55] & 0xFF, b8 = head[56] & 0xFF;
+	return (b7 >> 4) == (~b6 & 0xF) && (b8 & 0xF) == ((~b6 >> 4) & 0xF) && (b8 >> 4) == (~b7 & 0xF);
+    }
+
+    private static DumpArchive readText(final File f, final InputStream in) throws IOException {
+	BufferedReader r = new BufferedReader(new InputStreamReader(in, "US-ASCII"));
+	ByteBuffer b = ByteBuffer.allocate(CARD_BYTES);
+	int cards = 0;
+	try {
+	    String s;
+	    int n = 0;
+	    int sector = -1;
+	    int block = 0;
+	    while(null != (s = r.readLine())) {
+		n++;
+		s = s.trim();
+		if(0 == s.length()) {
+		    continue;
+		}
+		if(s.startsWith(SECTOR_LINE)) {
+		    int next;
+		    try {
+			next = Integer.parseInt(s.substring(SECTOR_LINE.length()).trim());
+		    }
+		    catch(NumberFormatException e) {
+			throw new IOException(f+":"+n+": bad sector "+s);
+		    }
+		    if(next <= sector || cards == 0) {
+			// a new card
+			cards++;
+			if(b.capacity() < cards*CARD_BYTES) {
+			    ByteBuffer g = ByteBuffer.allocate(b.capacity()*2);
+			    g.put(b.array());
+			    b = g;
+			}
+		    }
+		    sector = next;
+		    block = 0;
+		    continue;
+		}
+		if(sector < 0 || 32 != s.length()) {
+		    throw new IOException(f+":"+n+": expected a block of 32 hex digits");
+		}
+		if(sector >= RKFCard.SECTORS || block >= 4) {
+		    continue; // the 4K part
+		}
+		int o = (cards-1)*CARD_BYTES + sector*64 + block*16;
+		for(int i=0;i<16;i++) {
+		    b.put(o+i, (byte)((hex(f, n, s.charAt(2*i)) << 4) | hex(f, n, s.charAt(2*i+1))));
+		}
+		block++;
+	    }
+	}
+	finally {
+	    r.close();
+	}
+	b.limit(cards*CARD_BYTES);
+	return wrap(b, true);
+    }
+
+    private static int hex(final File f, int n, char c) throws IOException {
+	if('-' == c) {
+	    return 0;
+	}
+	int d = Character.digit(c, 16);
+	if(d < 0) {
+	    throw new IOException(f+":"+n+": bad hex digit "+c);
+	}
+	return d;
+    }
+}
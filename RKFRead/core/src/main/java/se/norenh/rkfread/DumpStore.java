@@ -0,0 +1,220 @@
+/*
+ * Copyright 2014 Henning Norén
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package se.norenh.rkfread;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The last dumps of the cards read, kept in a memory mapped file so a
+ * card can be shown as it was before it has been read again.
+ *
+ * The file has a header and room for a fixed number of records of the
+ * same size: time, UID, the sectors read and the 768 bytes of
+ * RKFCard.bytes, where sectors not read are left as zeros. Records are
+ * only appended, an index in memory points to the latest record of each
+ * UID. When the file is full it is compacted in place to the latest
+ * record of the cards read most recently, dropping the cards read
+ * longest ago, so it never grows.
+ */
+public final class DumpStore implements Closeable {
+    /** Bytes of a dump, as RKFCard.bytes */
+    public static final int DUMP_BYTES = RKFCard.SECTORS*48;
+    /** Longest UID kept, the triple size UIDs of ISO 14443-3 */
+    public static final int MAX_UID = 10;
+
+    private static final int MAGIC = 0x524b4644; // "RKFD"
+    private static final int VERSION = 2;
+    // magic, version, capacity and count
+    private static final int HEADER = 16;
+    private static final int COUNT_POS = 12;
+    // time, UID length and UID, then the sectors read at 24 and the
+    // dump at 32
+    private static final int SECTORS_POS = 24;
+    private static final int DUMP_POS = 32;
+    private static final int RECORD = DUMP_POS + DUMP_BYTES;
+
+    /** A stored dump and when it was stored */
+    public static final class Dump {
+	public final long time;
+	/** The sectors read, as bits, the others are zeros in bytes */
+	public final long sectors;
+	public final byte[] bytes;
+
+	Dump(long t, long s, final byte[] b) {
+	    time = t;
+	    sectors = s;
+	    bytes = b;
+	}
+
+	public boolean hasSector(int sector) {
+	    return 0 != (sectors & (1L << sector));
+	}
+    }
+
+    private final RandomAccessFile file;
+    private final MappedByteBuffer buf;
+    private final int capacity;
+    private int count;
+    private final Map<String,Integer> index = new HashMap<String,Integer>();
+
+    /**
+     * Opens the store, creating it if the file is missing. A file that is
+     * not a store of this capacity is started over.
+     *
+     * @param capacity records the file has room for, at least 4
+     */
+    public DumpStore(final File f, int capacity) throws IOException {
+	if(capacity < 4) {
+	    throw new IllegalArgumentException("capacity "+capacity);
+	}
+	this.capacity = capacity;
+	long size = HEADER + (long)capacity*RECORD;
+	file = new RandomAccessFile(f, "rw");
+	boolean valid = file.length() == size;
+	try {
+	    if(!valid) {
+		file.setLength(size);
+	    }
+	    buf = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+	}
+	catch(IOException e) {
+	    file.close();
+	    throw e;
+	}
+	count = buf.getInt(COUNT_POS);
+	if(!valid || MAGIC != buf.getInt(0) || VERSION != buf.getInt(4) ||
+	   capacity != buf.getInt(8) || count < 0 || count > capacity) {
+	    buf.putInt(0, MAGIC);
+	    buf.putInt(4, VERSION);
+	    buf.putInt(8, capacity);
+	    count = 0;
+	    buf.putInt(COUNT_POS, 0);
+	}
+	for(int i=0;i<count;i++) {
+	    index.put(CardTypeCache.toHex(readUid(i)), i);
+	}
+    }
+
+    /** The latest dump of a card, null if none is stored */
+    public synchronized Dump get(final byte[] uid) {
+	Integer i = index.get(CardTypeCache.toHex(uid));
+	if(null == i) {
+	    return null;
+	}
+	int o = HEADER + i*RECORD;
+	byte[] b = new byte[DUMP_BYTES];
+	buf.position(o + DUMP_POS);
+	buf.get(b);
+	return new Dump(buf.getLong(o), buf.getLong(o + SECTORS_POS), b);
+    }
+
+    /**
+     * Appends a dump of a card, compacting the file first if it is full.
+     *
+     * @param sectors the sectors of dump that were read, as bits
+     */
+    public synchronized void put(final byte[] uid, long time, long sectors, final byte[] dump) {
+	if(uid.length > MAX_UID) {
+	    throw new IllegalArgumentException("UID of "+uid.length+" bytes");
+	}
+	if(count == capacity) {
+	    compact();
+	}
+	writeRecord(count, time, uid, sectors, dump);
+	index.put(CardTypeCache.toHex(uid), count);
+	count++;
+	buf.putInt(COUNT_POS, count);
+    }
+
+    /** Number of cards stored */
+    public synchronized int size() {
+	return index.size();
+    }
+
+    /** Number of records in the file, with the older dumps of a card */
+    public synchronized int getRecords() {
+	return count;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+	buf.force();
+	file.close();
+    }
+
+    /**
+     * Keeps the latest record of each card, of at most three quarters of
+     * the capacity of cards read most recently, in the order they were
+     * stored.
+     */
+    private void compact() {
+	int[] latest = new int[index.size()];
+	int n = 0;
+	for(Integer i : index.values()) {
+	    latest[n++] = i;
+	}
+	// slots are in the order stored, so the oldest come first
+	Arrays.sort(latest);
+	int keep = Math.min(n, capacity - (capacity/4));
+	byte[][] records = new byte[keep][RECORD];
+	for(int k=0;k<keep;k++) {
+	    buf.position(HEADER + latest[n-keep+k]*RECORD);
+	    buf.get(records[k]);
+	}
+	index.clear();
+	for(int k=0;k<keep;k++) {
+	    buf.position(HEADER + k*RECORD);
+	    buf.put(records[k]);
+	    index.put(CardTypeCache.toHex(readUid(k)), k);
+	}
+	count = keep;
+	buf.putInt(COUNT_POS, count);
+    }
+
+    private void writeRecord(int slot, long time, final byte[] uid, long sectors, final byte[] dump) {
+	int o = HEADER + slot*RECORD;
+	buf.putLong(o, time);
+	buf.put(o+8, (byte)uid.length);
+	buf.position(o+9);
+	buf.put(uid);
+	for(int i=o+9+uid.length;i<o+SECTORS_POS;i++) {
+	    buf.put(i, (byte)0);
+	}
+	buf.putLong(o+SECTORS_POS, sectors);
+	buf.position(o+DUMP_POS);
+	buf.put(dump, 0, DUMP_BYTES);
+    }
+
+    private byte[] readUid(int slot) {
+	int o = HEADER + slot*RECORD;
+	int len = Math.min(buf.get(o+8) & 0xFF, MAX_UID);
+	byte[] uid = new byte[len];
+	buf.position(o+9);
+	buf.get(uid);
+	return uid;
+    }
+}
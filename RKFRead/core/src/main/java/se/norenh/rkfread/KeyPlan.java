@@ -0,0 +1,184 @@
+/*
+ * Copyright 2014 Henning Norén
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package se.norenh.rkfread;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The Mifare Classic key A of every sector of a card type.
+ *
+ * The plans are read from the rkf-keys.txt resource once per process. The
+ * keys are ready byte arrays in a table indexed by sector, so reading a
+ * card is a walk over the table and nothing is parsed per sector. The
+ * arrays are shared and must not be changed.
+ */
+public final class KeyPlan {
+    private static final String RESOURCE = "rkf-keys.txt";
+    /** Sectors of the largest Mifare Classic card (4K) */
+    public static final int SECTORS = 40;
+
+    private final CardType type;
+    private final int probeSector;
+    private final byte[][] keys = new byte[SECTORS][];
+
+    private static final KeyPlan[] PLANS = new KeyPlan[CardType.values().length];
+    private static final List<KeyPlan> PROBE_ORDER;
+
+    static {
+	InputStream in = KeyPlan.class.getResourceAsStream(RESOURCE);
+	if(null == in) {
+	    throw new IllegalStateException("Missing resource "+RESOURCE);
+	}
+	List<KeyPlan> order = new ArrayList<KeyPlan>();
+	try {
+	    read(RESOURCE, in, order);
+	}
+	catch(IOException e) {
+	    throw new IllegalStateException("Could not read "+RESOURCE, e);
+	}
+	for(KeyPlan p : order) {
+	    PLANS[p.type.ordinal()] = p;
+	}
+	PROBE_ORDER = Collections.unmodifiableList(order);
+    }
+
+    private KeyPlan(final CardType t, int probe) {
+	type = t;
+	probeSector = probe;
+    }
+
+    public CardType getType() { return type; }
+    public int getProbeSector() { return probeSector; }
+    public byte[] getProbeKey() { return keys[probeSector]; }
+
+    /** Key A of the sector, null if no key is known */
+    public byte[] getKey(int sector) {
+	if(sector < 0 || sector >= SECTORS)
+	    return null;
+	return keys[sector];
+    }
+
+    /** The plan of a card type, null if it has none */
+    public static KeyPlan get(final CardType t) {
+	return PLANS[t.ordinal()];
+    }
+
+    /** The plans in the order to probe a new card with */
+    public static List<KeyPlan> getProbeOrder() {
+	return PROBE_ORDER;
+    }
+
+    private static void read(final String source, final InputStream in, final List<KeyPlan> order) throws IOException {
+	BufferedReader r = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+	try {
+	    KeyPlan p = null;
+	    String s;
+	    int n = 0;
+	    while(null != (s = r.readLine())) {
+		n++;
+		String[] w = RKFSchema.tokenize(source, s, n);
+		if(0 == w.length) {
+		    continue;
+		}
+		if(null == p) {
+		    if(4 != w.length || !"card".equals(w[0]) || !"probe".equals(w[2])) {
+			throw new IllegalStateException(source+":"+n+": expected card <type> probe <sector>");
+		    }
+		    CardType t;
+		    try {
+			t = CardType.valueOf(w[1]);
+		    }
+		    catch(IllegalArgumentException e) {
+			throw new IllegalStateException(source+":"+n+": no card type "+w[1]);
+		    }
+		    p = new KeyPlan(t, sector(source, n, w[3]));
+		}
+		else if(1 == w.length && "end".equals(w[0])) {
+		    if(null == p.getProbeKey()) {
+			throw new IllegalStateException(source+":"+n+": no key for probe sector "+p.probeSector);
+		    }
+		    order.add(p);
+		    p = null;
+		}
+		else if(2 == w.length) {
+		    byte[] key = key(source, n, w[1]);
+		    if("*".equals(w[0])) {
+			for(int i=0;i<SECTORS;i++) {
+			    if(null == p.keys[i])
+				p.keys[i] = key;
+			}
+			continue;
+		    }
+		    for(String range : w[0].split(",")) {
+			int dash = range.indexOf('-');
+			int from = sector(source, n, (dash < 0) ? range : range.substring(0, dash));
+			int to = (dash < 0) ? from : sector(source, n, range.substring(dash+1));
+			for(int i=from;i<=to;i++) {
+			    p.keys[i] = key;
+			}
+		    }
+		}
+		else {
+		    throw new IllegalStateException(source+":"+n+": expected <sectors> <key> or end");
+		}
+	    }
+	    if(null != p) {
+		throw new IllegalStateException(source+":"+n+": missing end");
+	    }
+	}
+	finally {
+	    r.close();
+	}
+    }
+
+    private static int sector(final String source, int n, final String s) {
+	int i;
+	try {
+	    i = Integer.parseInt(s);
+	}
+	catch(NumberFormatException e) {
+	    i = -1;
+	}
+	if(i < 0 || i >= SECTORS) {
+	    throw new IllegalStateException(source+":"+n+": bad sector "+s);
+	}
+	return i;
+    }
+
+    private static byte[] key(final String source, int n, final String s) {
+	if(12 != s.length()) {
+	    throw new IllegalStateException(source+":"+n+": a key is 12 hex digits");
+	}
+	byte[] b = new byte[6];
+	for(int i=0;i<12;i+=2) {
+	    int hi = Character.digit(s.charAt(i), 16);
+	    int lo = Character.digit(s.charAt(i+1), 16);
+	    if(hi < 0 || lo < 0) {
+		throw new IllegalStateException(source+":"+n+": bad key "+s);
+	    }
+	    b[i/2] = (byte)((hi << 4) + lo);
+	}
+	return b;
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright 2014 Henning Norén
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package se.norenh.rkfread;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Structured record of what the parser decoded, in decoding order.
+ *
+ * Entries are kept in parallel primitive arrays and are only turned into
+ * text when someone asks for it (see RKFCard.getDebug()), so recording a
+ * field costs a few array stores.
+ */
+public final class ParseTrace {
+    public static enum Level {
+	/** Nothing is recorded */
+	OFF,
+	/** Sector headers, fields and skipped bits */
+	FIELDS,
+	/** Everything, including identifiers and parser messages */
+	FULL
+    }
+
+    // entry kinds
+    public static final int TEXT = 0;
+    public static final int SECTOR = 1;
+    public static final int IDENT = 2;
+    public static final int TAG = 3;
+    public static final int FIELD = 4;
+    public static final int SKIP = 5;
+
+    private static final RKFObject.RKFType[] TYPES = RKFObject.RKFType.values();
+
+    private final boolean full;
+    private int size = 0;
+    private byte[] kind = new byte[256];
+    private int[] name = new int[256];
+    private int[] bitPos = new int[256];
+    private byte[] bitLen = new byte[256];
+    private long[] value = new long[256];
+    private byte[] type = new byte[256];
+
+    // parser messages, a TEXT entry refers to them by index. A FIELD entry
+    // has the layout id, field id and slot index packed instead.
+    private String[] names = new String[64];
+    private int nameCount = 0;
+    private final Map<String,Integer> nameIds = new HashMap<String,Integer>();
+
+    public ParseTrace(Level level) {
+	full = (Level.FULL == level);
+    }
+
+    public void text(final String s) {
+	if(full)
+	    add(TEXT, nameId(s), 0, 0, 0, 0);
+    }
+
+    public void sector(int n) {
+	add(SECTOR, -1, n*48*8, 0, n, 0);
+    }
+
+    public void ident(int pos, int id) {
+	if(full)
+	    add(IDENT, -1, pos, 8, id, 0);
+    }
+
+    public void tag(int pos, int id) {
+	if(full)
+	    add(TAG, -1, pos, 8, id, 0);
+    }
+
+    /** Records slot i of a field in a record of the given layout */
+    public void field(final RKFLayout layout, int field, int i, int pos, int length, long l) {
+	add(FIELD, (layout.getId() << 16) | (field << 8) | i, pos, length, l,
+	    layout.getType(field).ordinal());
+    }
+
+    public void skip(int pos, int length, long l) {
+	add(SKIP, -1, pos, length, l, 0);
+    }
+
+    public int size() { return size; }
+    public int getKind(int i) { return kind[i]; }
+    public String getName(int i) {
+	if(FIELD == kind[i]) {
+	    return getLayout(i).getFieldName(getField(i), name[i] & 0xFF);
+	}
+	return (name[i] < 0) ? null : names[name[i]];
+    }
+    /** Layout and field id of a FIELD entry */
+    public RKFLayout getLayout(int i) { return RKFLayout.byId(name[i] >>> 16); }
+    public int getField(int i) { return (name[i] >> 8) & 0xFF; }
+    public int getPos(int i) { return bitPos[i]; }
+    public int getLength(int i) { return bitLen[i]; }
+    public long getValue(int i) { return value[i]; }
+    public RKFObject.RKFType getType(int i) { return TYPES[type[i]]; }
+
+    private int nameId(final String s) {
+	Integer id = nameIds.get(s);
+	if(null != id) {
+	    return id;
+	}
+	if(nameCount == names.length) {
+	    names = Arrays.copyOf(names, nameCount*2);
+	}
+	names[nameCount] = s;
+	nameIds.put(s, nameCount);
+	return nameCount++;
+    }
+
+    private void add(int k, int n, int pos, int length, long l, int t) {
+	if(size == kind.length) {
+	    int c = size*2;
+	    kind = Arrays.copyOf(kind, c);
+	    name = Arrays.copyOf(name, c);
+	    bitPos = Arrays.copyOf(bitPos, c);
+	    bitLen = Arrays.copyOf(bitLen, c);
+	    value = Arrays.copyOf(value, c);
+	    type = Arrays.copyOf(type, c);
+	}
+	kind[size] = (byte)k;
+	name[size] = n;
+	bitPos[size] = pos;
+	bitLen[size] = (byte)length;
+	value[size] = l;
+	type[size] = (byte)t;
+	size++;
+    }
+}
@@ -0,0 +1,1276 @@
+/*
+ * Copyright 2014 Henning Norén
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package se.norenh.rkfread;
+
+import java.nio.ByteBuffer;
+import java.util.AbstractMap;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A card dump and its decoded applications.
+ *
+ * parseCard() decodes the first sector, the directory (TCDI) and the
+ * application status (TCAS) and notes in which sector each application
+ * is. The applications, and each copy of their dynamic data, are decoded
+ * the first time they are asked for and kept. With a trace level other
+ * than OFF the whole card is decoded at once, in sector order, so the
+ * trace reads like the card. A card being read block by block can be
+ * decoded as the sectors come in with parseReady(). Not thread safe.
+ *
+ * A card can also decode a dump in a ByteBuffer, such as a mapped dump
+ * archive, in place. Its bytes are then null and no blocks can be added.
+ */
+public class RKFCard {
+    /** Sectors kept and parsed, the 1K part of a card */
+    public static final int SECTORS = 16;
+    /** Sectors to add before getSectorsToRead(): the first sector and the
+	directory, which SL keeps in sector 2 */
+    public static final int DIRECTORY_SECTORS = 3;
+    /** Applications decoded by parseReady(), as bits */
+    public static final int APP_STATUS = 0x01;
+    public static final int APP_EVENT_LOG = 0x02;
+    public static final int APP_PURSE = 0x04;
+    public static final int APP_TICKET = 0x08;
+    public static final int APP_CONTRACT = 0x10;
+    public static final int APP_DISCOUNT = 0x20;
+    public static final int APP_CUSTOMER_PROFILE = 0x40;
+    public static final int APP_SPECIAL_TICKET = 0x80;
+    public byte[] bytes;
+    private int unit = 1;
+    public String currency = "Not set";
+    private int[] dynamicData = null;
+    private int[] tcdi = null;
+    private BitReader reader;
+    // the dump when it is decoded in place, bytes is then null
+    private ByteBuffer view = null;
+    private int viewOffset = 0;
+    private boolean viewTrailers = false;
+    /** These maps contains the RKFObjects or values of the card with the 
+	value name (as taken from the specifications, if it exist) for key.
+	If multiple values have the same name, the RKFObjects will form a 
+	single linked list. They are views of the records below, kept for
+	compatibility; new code should use the RKFRecord accessors. */
+    public Map<String,RKFObject> firstSector = null;
+    public Map<String,RKFObject> directory = null;
+    public Map<String,RKFObject> appStatus = null;
+    public Map<String,RKFObject> eventLog = null;
+    public Map<String,RKFObject> purse = null;
+    public Map<String,RKFObject> dynPurse = null;
+    public Map<String,RKFObject> dynPurseOld = null;
+    public Map<String,RKFObject> ticket = null;
+    public Map<String,RKFObject> dynTicket = null;
+    public Map<String,RKFObject> dynTicketOld = null;
+    public Map<String,RKFObject> contract = null;
+    public Map<String,RKFObject> dynContract = null;
+    public Map<String,RKFObject> dynContractOld = null;
+    public Map<String,RKFObject> discount = null;
+    public Map<String,RKFObject> customerProfile = null;
+    public Map<String,RKFObject> specialTicket = null;
+    private RKFRecord firstSectorRecord = null;
+    private RKFRecord directoryRecord = null;
+    private RKFRecord appStatusRecord = null;
+    private RKFRecord eventLogRecord = null;
+    private RKFRecord purseRecord = null;
+    private RKFRecord dynPurseRecord = null;
+    private RKFRecord dynPurseOldRecord = null;
+    private RKFRecord ticketRecord = null;
+    private RKFRecord dynTicketRecord = null;
+    private RKFRecord dynTicketOldRecord = null;
+    private RKFRecord contractRecord = null;
+    private RKFRecord dynContractRecord = null;
+    private RKFRecord dynContractOldRecord = null;
+    private RKFRecord discountRecord = null;
+    private RKFRecord customerProfileRecord = null;
+    private RKFRecord specialTicketRecord = null;
+    // sector of each application, -1 if it is not on the card
+    private int tcasSector = -1, tcelSector = -1, tcpuSector = -1, tctiSector = -1;
+    private int tccoSector = -1, tcdbSector = -1, tccpSector = -1, tcstSector = -1;
+    // sectors of every TCAS, an application gets its status from the
+    // last one before it like with the old parser
+    private long tcasSectors = 0;
+    // where the dynamic data copies of the ticket and contract are
+    private int ticketDynStart, ticketDynLen, contractDynStart, contractDynLen;
+    int pos; // package-private so the benchmarks can drive single field reads
+    private int cardVersion = -1;
+    private ParseTrace.Level traceLevel = ParseTrace.Level.OFF;
+    private ParseTrace trace = null;
+    private String debugString = null;
+    private boolean isSL = false;
+    private boolean isRejseKort = false;
+    // for parseReady(): blocks added, sectors added or skipped and the
+    // next sector to decode, -1 until the directory has been decoded
+    private long blocksAdded = 0;
+    private long sectorsDone = 0;
+    private int nextSector = -1;
+
+    // registers the schema programs share while decoding a card
+    private static final int REG_APP = RKFSchema.get().getRegister("app");
+    private static final int REG_VERSION = RKFSchema.get().getRegister("version");
+    private static final int REG_DYNSTART = RKFSchema.get().getRegister("dynstart");
+    private static final int REG_DYNLEN = RKFSchema.get().getRegister("dynlen");
+    private static final int REG_COUNT = RKFSchema.get().getRegisterCount();
+    private final long[] regs = new long[REG_COUNT];
+
+    public RKFCard() {
+	bytes = new byte[SECTORS*48];
+    }
+
+    /** A copy of the blocks added to a card being read and of which
+	sectors are in or skipped, not decoded yet like a new card */
+    public RKFCard(final RKFCard c) {
+	if(null == c.bytes) {
+	    throw new IllegalStateException("Card is decoded in place");
+	}
+	bytes = c.bytes.clone();
+	blocksAdded = c.blocksAdded;
+	sectorsDone = c.sectorsDone;
+    }
+
+    public RKFCard(byte[] b) {
+	bytes = b;
+	parseCard();
+    }
+
+    public RKFCard(byte[] b, ParseTrace.Level level) {
+	bytes = b;
+	traceLevel = level;
+	parseCard();
+    }
+
+    /**
+     * A card on the dump at offset in the buffer, decoded without copying
+     * it. The buffer must not change while the card is used.
+     *
+     * @param trailers true for the 1024 bytes of a whole card, with the
+     *        trailer after each sector, false for 768 bytes of data blocks
+     */
+    public RKFCard(final ByteBuffer b, int offset, boolean trailers) {
+	this(b, offset, trailers, ParseTrace.Level.OFF);
+    }
+
+    public RKFCard(final ByteBuffer b, int offset, boolean trailers, ParseTrace.Level level) {
+	bytes = null;
+	view = b;
+	viewOffset = offset;
+	viewTrailers = trailers;
+	traceLevel = level;
+	parseCard();
+    }
+
+    /** Sets what the next parseCard() records. Anything but
+	ParseTrace.Level.OFF decodes the whole card up front; getDebug()
+	works either way. */
+    public void setTraceLevel(ParseTrace.Level level) {
+	traceLevel = level;
+    }
+
+    public ParseTrace getTrace() { return trace; }
+
+    /** The decoded applications, null if not found on the card. Decoded
+	on the first call. */
+    public RKFRecord getFirstSector() { return firstSectorRecord; }
+    public RKFRecord getDirectory() { return directoryRecord; }
+    public RKFRecord getAppStatus() { return appStatusRecord; }
+
+    /** The card provider, null before parseCard() */
+    public RKFOperator getOperator() {
+	if(null == firstSectorRecord)
+	    return null;
+	return RKFOperator.get(firstSectorRecord.getInt(RKFLayout.FirstSector.CARD_PROVIDER));
+    }
+
+    public RKFRecord getEventLog() {
+	if(null == eventLogRecord && tcelSector >= 0)
+	    parseEventLog(sectorStart(tcelSector, 0x84));
+	return eventLogRecord;
+    }
+
+    /**
+     * The records of the event log, oldest first, as indexes of its
+     * repeated fields. The log is a ring and the event log record number
+     * of TCAS is the record written last; without it the records are
+     * taken in the order of the card.
+     */
+    public int[] getEventLogOrder() {
+	final RKFRecord e = getEventLog();
+	if(null == e) {
+	    return new int[0];
+	}
+	int n = e.count(RKFLayout.TCEL.EVENT_DATE_STAMP);
+	int last = n-1;
+	if(null != appStatusRecord && appStatusRecord.has(RKFLayout.TCAS.EVENT_LOG_RECORD_NUMBER) &&
+	   appStatusRecord.getInt(RKFLayout.TCAS.EVENT_LOG_RECORD_NUMBER) < n) {
+	    last = appStatusRecord.getInt(RKFLayout.TCAS.EVENT_LOG_RECORD_NUMBER);
+	}
+	int[] r = new int[n];
+	for(int i=0;i<n;i++) {
+	    r[i] = (last + 1 + i) % n;
+	}
+	return r;
+    }
+
+    public RKFRecord getPurse() {
+	if(null == purseRecord && tcpuSector >= 0)
+	    parsePurseHeader(sectorStart(tcpuSector, 0x85));
+	return purseRecord;
+    }
+
+    public RKFRecord getDynPurse() {
+	if(null == dynPurseRecord && tcpuSector >= 0) {
+	    int n = sectorStart(tcpuSector, 0x85);
+	    dynPurseRecord = parseDynPurse(n, latestPurse(n));
+	}
+	return dynPurseRecord;
+    }
+
+    public RKFRecord getDynPurseOld() {
+	if(null == dynPurseOldRecord && tcpuSector >= 0) {
+	    int n = sectorStart(tcpuSector, 0x85);
+	    dynPurseOldRecord = parseDynPurse(n, 3 - latestPurse(n));
+	}
+	return dynPurseOldRecord;
+    }
+
+    public RKFRecord getTicket() {
+	if(null == ticketRecord && tctiSector >= 0)
+	    parseTicketHeader(sectorStart(tctiSector, 0x86));
+	return ticketRecord;
+    }
+
+    public RKFRecord getDynTicket() {
+	if(null == dynTicketRecord && tctiSector >= 0)
+	    dynTicketRecord = parseDynTicket(latestCopy(tctiSector) - 1);
+	return dynTicketRecord;
+    }
+
+    public RKFRecord getDynTicketOld() {
+	if(null == dynTicketOldRecord && tctiSector >= 0)
+	    dynTicketOldRecord = parseDynTicket(2 - latestCopy(tctiSector));
+	return dynTicketOldRecord;
+    }
+
+    public RKFRecord getContract() {
+	if(null == contractRecord && tccoSector >= 0)
+	    parseContractHeader(sectorStart(tccoSector, 0x87));
+	return contractRecord;
+    }
+
+    public RKFRecord getDynContract() {
+	if(null == dynContractRecord && tccoSector >= 0)
+	    dynContractRecord = parseDynContract(latestCopy(tccoSector) - 1);
+	return dynContractRecord;
+    }
+
+    public RKFRecord getDynContractOld() {
+	if(null == dynContractOldRecord && tccoSector >= 0)
+	    dynContractOldRecord = parseDynContract(2 - latestCopy(tccoSector));
+	return dynContractOldRecord;
+    }
+
+    public RKFRecord getDiscount() {
+	if(null == discountRecord && tcdbSector >= 0)
+	    parseTCDB(sectorStart(tcdbSector, 0xA1));
+	return discountRecord;
+    }
+
+    public RKFRecord getCustomerProfile() {
+	if(null == customerProfileRecord && tccpSector >= 0)
+	    parseTCCP(sectorStart(tccpSector, 0xA2));
+	return customerProfileRecord;
+    }
+
+    public RKFRecord getSpecialTicket() {
+	if(null == specialTicketRecord && tcstSector >= 0)
+	    parseTCST(sectorStart(tcstSector, 0xA3));
+	return specialTicketRecord;
+    }
+
+    /** Decodes everything not decoded yet, e.g. before the card is handed
+	to another thread */
+    public void decodeAll() {
+	getEventLog();
+	getPurse();
+	getDynPurse();
+	getDynPurseOld();
+	getTicket();
+	getDynTicket();
+	getDynTicketOld();
+	getContract();
+	getDynContract();
+	getDynContractOld();
+	getDiscount();
+	getCustomerProfile();
+	getSpecialTicket();
+    }
+
+    public void addBlock(int sector, int block, byte[] b) {
+	if((sector >= SECTORS) || (block > 2)) // skip keyblocks and sectors above 16
+	    return;
+	if(null == bytes) {
+	    throw new IllegalStateException("Card is decoded in place");
+	}
+	int bytePos = (sector*48) + (block*16);
+	System.arraycopy(b, 0, bytes, bytePos, 16);
+	blocksAdded |= 1L << (sector*3 + block);
+	if(7L == ((blocksAdded >>> (sector*3)) & 7L)) {
+	    sectorsDone |= 1L << sector;
+	}
+    }
+
+    /** Whether all blocks of the sector have been added */
+    public boolean hasSector(int sector) {
+	return sector < SECTORS && 7L == ((blocksAdded >>> (sector*3)) & 7L);
+    }
+
+    /** The sectors all blocks have been added of, as bits */
+    public long getSectorsAdded() {
+	long added = 0;
+	for(int sector=0;sector<SECTORS;sector++) {
+	    if(hasSector(sector)) {
+		added |= 1L << sector;
+	    }
+	}
+	return added;
+    }
+
+    /** Notes a sector that will not be added, e.g. as its key failed, so
+	parseReady() does not wait for it */
+    public void skipSector(int sector) {
+	if(sector < SECTORS) {
+	    sectorsDone |= 1L << sector;
+	}
+    }
+
+    /**
+     * Decodes what the sectors added so far allow, for showing a card
+     * while it is still being read. The first sector and the directory
+     * are decoded once the first DIRECTORY_SECTORS are added or skipped,
+     * then each application once its sectors and those before it are, in
+     * sector order like with a trace. Sectors the directory does not want
+     * read are not waited for. parseCard() is still needed afterwards for
+     * the maps and the applications of sectors not decoded here.
+     *
+     * @return the APP_ bits of the applications decoded by this call
+     */
+    public int parseReady() {
+	if(nextSector < 0) {
+	    for(int i=0;i<DIRECTORY_SECTORS;i++) {
+		if(!isSectorDone(i))
+		    return 0;
+	    }
+	    clearApplications();
+	    // getSectorsToRead() decodes the first sector and directory
+	    sectorsDone |= ~getSectorsToRead() & ((1L << SECTORS) - 1);
+	    nextSector = 2;
+	}
+	else if(isSectorDone(nextSector)) {
+	    // the reader has a packed copy of the dump from before
+	    loadReader();
+	}
+	int ready = 0;
+	for(;nextSector<SECTORS && isSectorDone(nextSector);nextSector++) {
+	    int n = nextSector;
+	    int ident = getIdent(n);
+	    if(!isApplication(ident))
+		continue;
+	    // the dynamic data and Rejsekort purse copies go on in the
+	    // sectors after, up to the next application
+	    if(!isApplicationDone(n))
+		break;
+	    switch (ident) {
+	    case 0xA0:
+		tcasSector = n;
+		tcasSectors |= 1L << n;
+		ready |= APP_STATUS;
+		break;
+	    case 0xA1:
+		tcdbSector = n;
+		ready |= APP_DISCOUNT;
+		break;
+	    case 0xA2:
+		tccpSector = n;
+		ready |= APP_CUSTOMER_PROFILE;
+		break;
+	    case 0xA3:
+		tcstSector = n;
+		ready |= APP_SPECIAL_TICKET;
+		break;
+	    case 0x84:
+		tcelSector = n;
+		ready |= APP_EVENT_LOG;
+		break;
+	    case 0x85:
+		if(tcpuSector < 0) {
+		    tcpuSector = n;
+		    ready |= APP_PURSE;
+		}
+		break;
+	    case 0x86:
+		tctiSector = n;
+		ready |= APP_TICKET;
+		break;
+	    case 0x87:
+		if(tccoSector < 0) {
+		    tccoSector = n;
+		    ready |= APP_CONTRACT;
+		}
+		break;
+	    }
+	    parseSector(n);
+	}
+	return ready;
+    }
+
+    private boolean isSectorDone(int sector) {
+	return 0 != (sectorsDone & (1L << sector));
+    }
+
+    // application identifier of an added sector, 0 if not added or defective
+    private int getIdent(int sector) {
+	if(!hasSector(sector) || tcdi[sector] == 0x01)
+	    return 0;
+	return (int)reader.get(sector*48*8, 8);
+    }
+
+    private static boolean isApplication(int ident) {
+	return (ident >= 0x84 && ident <= 0x87) || (ident >= 0xA0 && ident <= 0xA3);
+    }
+
+    private boolean isApplicationDone(int sector) {
+	for(int i=sector+1;i<SECTORS;i++) {
+	    if(!isSectorDone(i))
+		return false;
+	    if(isApplication(getIdent(i)))
+		return true;
+	}
+	return true;
+    }
+
+    /**
+     * The sectors worth reading, as bits, once the first DIRECTORY_SECTORS
+     * have been added: those the directory (TCDI) has an application in,
+     * and on Rejsekort the sector after the purse where its second copy
+     * is. Free, reserved and defective sectors are left out. A directory
+     * without application status (TCAS) is not trusted and then all
+     * sectors are wanted.
+     */
+    public long getSectorsToRead() {
+	loadReader();
+	trace = null;
+	parseFirstSector();
+	if(isSL) {
+	    parseTCDI(256*3);
+	}
+	else {
+	    parseTCDI(128*3);
+	}
+	long wanted = (1L << DIRECTORY_SECTORS) - 1;
+	boolean hasStatus = false;
+	boolean hasPurse = false;
+	for(int i=1;i<SECTORS;i++) {
+	    int aid = (int)directoryRecord.get(RKFLayout.TCDI.AID, i-1);
+	    if(0x05 == aid) {
+		hasStatus = true;
+	    }
+	    // free, defective or reserved
+	    if(aid <= 0x02 || tcdi[i] == 0x01)
+		continue;
+	    wanted |= 1L << i;
+	    if(0x0B == aid && isRejseKort && !hasPurse && i+1 < SECTORS) {
+		wanted |= 1L << (i+1);
+	    }
+	    if(0x0B == aid) {
+		hasPurse = true;
+	    }
+	}
+	if(!hasStatus) {
+	    return (1L << SECTORS) - 1;
+	}
+	return wanted;
+    }
+
+    /** Sector of the application status (TCAS), -1 if none; after parseCard() */
+    public int getStatusSector() {
+	return tcasSector;
+    }
+
+    /**
+     * The sectors, as bits, that can have changed since this dump was
+     * read, given the TCAS sector as it is on the card now. Nothing has
+     * if TCAS is the same, as every transaction counts up its transaction
+     * number. Otherwise the sectors whose status changed and those of the
+     * applications written when the card is used have: event log, purse,
+     * ticket, contract and special ticket, with the sectors after them up
+     * to the next application where their dynamic data goes on. So have
+     * the first sector and directory, as they decide which sectors are
+     * read. The discount basis and customer profile are kept unless their
+     * status changed. Call after parseCard().
+     *
+     * @param status the 48 bytes of the TCAS sector read now
+     */
+    public long getChangedSectors(final byte[] status) {
+	if(tcasSector < 0) {
+	    return (1L << SECTORS) - 1;
+	}
+	boolean same = true;
+	for(int i=0;i<48;i++) {
+	    if(status[i] != byteAt(tcasSector*48 + i)) {
+		same = false;
+		break;
+	    }
+	}
+	if(same) {
+	    return 0;
+	}
+	final RKFRecord now = new RKFRecord(RKFLayout.TCAS.LAYOUT);
+	RKFLayout.TCAS.LAYOUT.getProgram().run(new BitReader(status), 8, 0, now, new long[REG_COUNT], null);
+	long changed = (1L << tcasSector) | ((1L << DIRECTORY_SECTORS) - 1);
+	boolean dynamic = false;
+	for(int i=2;i<SECTORS;i++) {
+	    if(getAppStatus().get(RKFLayout.TCAS.SECTOR_STATUS, i) != now.get(RKFLayout.TCAS.SECTOR_STATUS, i)) {
+		changed |= 1L << i;
+	    }
+	    int ident = (tcdi[i] == 0x01) ? 0 : (int)reader.get(i*48*8, 8);
+	    if(isApplication(ident)) {
+		dynamic = (0x84 == ident || 0x85 == ident || 0x86 == ident ||
+			   0x87 == ident || 0xA3 == ident);
+	    }
+	    if(dynamic) {
+		changed |= 1L << i;
+	    }
+	}
+	return changed;
+    }
+
+    public boolean parseCard() {
+	if(bytes == null && view == null) {
+	    return false;
+	}
+	loadReader();
+	pos = 0;
+	debugString = null;
+	trace = (ParseTrace.Level.OFF == traceLevel) ? null : new ParseTrace(traceLevel);
+	clearApplications();
+
+	debug("--- Start parsing ---");
+	debug("-- First Sector");
+	parseFirstSector();
+	debug("-- TCDI");
+	if(isSL) {
+	    // SL (or version 4) seems to have two TCDI and from the looks of it
+	    // the second one seems to be the valid one
+	    parseTCDI(256*3);
+	}
+	else {
+	    parseTCDI(128*3);
+	}
+	findApplications();
+
+	if(null == trace) {
+	    // the rest is decoded when asked for, but which dynamic data
+	    // copy is the latest is needed by all of them
+	    if(tcasSector >= 0)
+		parseTCAS(sectorStart(tcasSector, 0xA0));
+	}
+	else {
+	    for(int i=2;i<getDumpSectors();i++) {
+		if(i < 16 && tcdi[i] == 0x01)
+		    continue;
+		parseSector(i);
+	    }
+	}
+	debug("--- Finished parsing ---");
+
+	firstSector = firstSectorRecord.asMap();
+	directory = directoryRecord.asMap();
+	appStatus = (null == appStatusRecord) ? null : appStatusRecord.asMap();
+	eventLog = (tcelSector < 0) ? null : new AppMap() {
+		RKFRecord record() { return getEventLog(); } };
+	purse = (tcpuSector < 0) ? null : new AppMap() {
+		RKFRecord record() { return getPurse(); } };
+	dynPurse = (tcpuSector < 0) ? null : new AppMap() {
+		RKFRecord record() { return getDynPurse(); } };
+	dynPurseOld = (tcpuSector < 0) ? null : new AppMap() {
+		RKFRecord record() { return getDynPurseOld(); } };
+	ticket = (tctiSector < 0) ? null : new AppMap() {
+		RKFRecord record() { return getTicket(); } };
+	dynTicket = (tctiSector < 0) ? null : new AppMap() {
+		RKFRecord record() { return getDynTicket(); } };
+	dynTicketOld = (tctiSector < 0) ? null : new AppMap() {
+		RKFRecord record() { return getDynTicketOld(); } };
+	contract = (tccoSector < 0) ? null : new AppMap() {
+		RKFRecord record() { return getContract(); } };
+	dynContract = (tccoSector < 0) ? null : new AppMap() {
+		RKFRecord record() { return getDynContract(); } };
+	dynContractOld = (tccoSector < 0) ? null : new AppMap() {
+		RKFRecord record() { return getDynContractOld(); } };
+	discount = (tcdbSector < 0) ? null : new AppMap() {
+		RKFRecord record() { return getDiscount(); } };
+	customerProfile = (tccpSector < 0) ? null : new AppMap() {
+		RKFRecord record() { return getCustomerProfile(); } };
+	specialTicket = (tcstSector < 0) ? null : new AppMap() {
+		RKFRecord record() { return getSpecialTicket(); } };
+
+	return true;
+    }
+
+    /** Map view of an application that is decoded when first looked at */
+    private abstract static class AppMap extends AbstractMap<String,RKFObject> {
+	abstract RKFRecord record();
+
+	@Override
+	public RKFObject get(Object key) {
+	    return record().asMap().get(key);
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+	    return record().asMap().containsKey(key);
+	}
+
+	@Override
+	public Set<Map.Entry<String,RKFObject>> entrySet() {
+	    return record().asMap().entrySet();
+	}
+    }
+
+    private void clearApplications() {
+	dynamicData = null;
+	appStatusRecord = null;
+	eventLogRecord = null;
+	purseRecord = null;
+	dynPurseRecord = null;
+	dynPurseOldRecord = null;
+	ticketRecord = null;
+	dynTicketRecord = null;
+	dynTicketOldRecord = null;
+	contractRecord = null;
+	dynContractRecord = null;
+	dynContractOldRecord = null;
+	discountRecord = null;
+	customerProfileRecord = null;
+	specialTicketRecord = null;
+	tcasSector = tcelSector = tcpuSector = tctiSector = tccoSector = -1;
+	tcdbSector = tccpSector = tcstSector = -1;
+	tcasSectors = 0;
+	Arrays.fill(regs, 0);
+    }
+
+    // package-private so the benchmarks can read fields without a full parse
+    void loadReader() {
+	reader = (null == view) ? new BitReader(bytes) :
+	    new BitReader(view, viewOffset, SECTORS*48, viewTrailers);
+    }
+
+    private int getDumpSectors() {
+	return (null == view) ? bytes.length/48 : SECTORS;
+    }
+
+    private byte byteAt(int i) {
+	return (null == view) ? bytes[i] : (byte)reader.get(i*8, 8);
+    }
+
+    /** Notes the sector of each application from its identifier, the
+	same way parseSector() picks them: the first purse and contract, the
+	last of the others. */
+    private void findApplications() {
+	tcasSector = tcelSector = tcpuSector = tctiSector = tccoSector = -1;
+	tcdbSector = tccpSector = tcstSector = -1;
+	tcasSectors = 0;
+	for(int i=2;i<getDumpSectors();i++) {
+	    if(i < 16 && tcdi[i] == 0x01)
+		continue;
+	    switch ((int)reader.get(i*48*8, 8)) {
+	    case 0xA0:
+		tcasSector = i;
+		tcasSectors |= 1L << i;
+		break;
+	    case 0xA1:
+		tcdbSector = i;
+		break;
+	    case 0xA2:
+		tccpSector = i;
+		break;
+	    case 0xA3:
+		tcstSector = i;
+		break;
+	    case 0x84:
+		tcelSector = i;
+		break;
+	    case 0x85:
+		if(tcpuSector < 0)
+		    tcpuSector = i;
+		break;
+	    case 0x86:
+		tctiSector = i;
+		break;
+	    case 0x87:
+		if(tccoSector < 0)
+		    tccoSector = i;
+		break;
+	    }
+	}
+    }
+
+    // bit position of a sector, for decoding the application ident in it
+    private int sectorStart(int sector, int ident) {
+	regs[REG_APP] = ident;
+	return sector*48*8;
+    }
+
+    private void parseSector(int n) {
+	int sb = n*48;
+	int ident;
+	if(null != trace)
+	    trace.sector(n);
+	pos = sb*8;
+	ident = getIntFromPos(8);
+	if(null != trace)
+	    trace.ident(pos, ident);
+	regs[REG_APP] = ident;
+	switch (ident) {
+	case 0xA0:
+	    parseTCAS(sb*8);
+	    break;
+	case 0xA1:
+	    parseTCDB(sb*8);
+	    break;
+	case 0xA2:
+	    parseTCCP(sb*8);
+	    break;
+	case 0xA3:
+	    parseTCST(sb*8);
+	    break;
+	case 0x84:
+	    parseEventLog(sb*8);
+	    break;
+	case 0x85:
+	    parsePurse(sb*8);
+	    break;
+	case 0x86:
+	    parseTCTI(sb*8);
+	    break;
+	case 0x87:
+	    parseTCCO(sb*8);
+	    break;
+	default:
+	    debug("Unknown sector");
+	}	
+    }
+
+    private void parseFirstSector() {
+	firstSectorRecord = decode(RKFLayout.FirstSector.LAYOUT, 0, 0);
+	cardVersion = firstSectorRecord.getInt(RKFLayout.FirstSector.CARD_VERSION);
+	int provider = firstSectorRecord.getInt(RKFLayout.FirstSector.CARD_PROVIDER);
+	if(0x65 == provider) {
+	    isSL = true;
+	}
+	else if(0x7d0 == provider) {
+	    isRejseKort = true;
+	}
+	setCurrencyUnit(firstSectorRecord.getInt(RKFLayout.FirstSector.CURRENCY_UNIT));
+    }
+
+    // TCAS: Application Status 0xA0
+    private void parseTCAS(int n) {
+	appStatusRecord = decode(RKFLayout.TCAS.LAYOUT, n+8, 0);
+	dynamicData = new int[16];
+	for(int i=0;i<16;i++) {
+	    dynamicData[i] = (int)appStatusRecord.get(RKFLayout.TCAS.SECTOR_STATUS, i);
+	}
+    }
+
+    /** Which dynamic data copy of the application in the sector is the
+	latest, 1 or 2. When the card is decoded in sector order the status
+	is only known after TCAS has been passed; lazily decoded applications
+	get the same answer. */
+    private int latestCopy(int sector) {
+	// This is quite wrong, but if TCAS/dynamic data is not found, assume first field contains latest data.
+	return (2 == statusBefore(sector)) ? 2 : 1;
+    }
+
+    /** The status of the sector in the last TCAS before it, -1 if there
+	is none. That is the one the old parser had decoded when it got to
+	the sector, it did not look at a TCAS after. */
+    private int statusBefore(int sector) {
+	long before = tcasSectors & ((1L << sector) - 1);
+	if(0 == before)
+	    return -1;
+	int s = 63 - Long.numberOfLeadingZeros(before);
+	if(s == tcasSector && null != dynamicData)
+	    return dynamicData[sector];
+	// only on a card with more than one TCAS
+	final RKFRecord r = new RKFRecord(RKFLayout.TCAS.LAYOUT);
+	RKFLayout.TCAS.LAYOUT.getProgram().run(reader, s*48*8+8, 0, r, new long[REG_COUNT], null);
+	return (int)r.get(RKFLayout.TCAS.SECTOR_STATUS, sector);
+    }
+
+    // Directory
+    private void parseTCDI(int n) {
+	directoryRecord = decode(RKFLayout.TCDI.LAYOUT, n, 0);
+	tcdi = new int[16];
+	for(int s=1;s<16;s++) {
+	    tcdi[s] = (int)directoryRecord.get(RKFLayout.TCDI.PIX, s-1);
+	}
+    }
+
+    // TCEL: Event Log 0x84
+    private void parseEventLog(int n) {
+	eventLogRecord = decode(RKFLayout.TCEL.LAYOUT, n+8, 0);
+    }
+
+    // TCTI/TCCO: Dynamic Content
+    private RKFRecord parseDynamicTicketContract(int n, int end) {
+	return decode(RKFLayout.Dynamic.LAYOUT, n, end);
+    }
+
+    // TCTI: Ticket 0x86
+    private void parseTCTI(int n) {
+	parseTicketHeader(n);
+	if(latestCopy(n/(48*8)) == 2) {
+	    // Latest dynamic data in second field
+	    debug("- Old Ticket");
+	    dynTicketOldRecord = parseDynTicket(0);
+	    debug("- Current Ticket");
+	    dynTicketRecord = parseDynTicket(1);
+	}
+	else {
+	    debug("- Current Ticket");
+	    dynTicketRecord = parseDynTicket(0);
+	    debug("- Old Ticket");
+	    dynTicketOldRecord = parseDynTicket(1);
+	}
+    }
+
+    private void parseTicketHeader(int n) {
+	ticketRecord = decode(RKFLayout.TCTI.LAYOUT, n+8, 0);
+	ticketDynStart = n+(128*(int)regs[REG_DYNSTART]);
+	ticketDynLen = (int)regs[REG_DYNLEN] * 128;
+    }
+
+    // copy 0 or 1 of the ticket dynamic data
+    private RKFRecord parseDynTicket(int copy) {
+	getTicket();
+	regs[REG_APP] = 0x86;
+	int start = ticketDynStart + (copy*ticketDynLen);
+	return parseDynamicTicketContract(start, start+ticketDynLen);
+    }
+
+    // TCCO: Contract 0x87
+    private void parseTCCO(int n) {
+	if(null != contractRecord)  // skip any extra contract found (ugly fix for SL-cards with extra contract)
+	    return;
+	parseContractHeader(n);
+	if(latestCopy(n/(48*8)) == 2) {
+	    // Latest dynamic data in second field
+	    debug("-Old Contract");
+	    dynContractOldRecord = parseDynContract(0);
+	    debug("-Current Contract");
+	    dynContractRecord = parseDynContract(1);
+	}
+	else {
+	    debug("-Current Contract");
+	    dynContractRecord = parseDynContract(0);
+	    debug("-Old Contract");
+	    dynContractOldRecord = parseDynContract(1);
+	}
+    }
+
+    private void parseContractHeader(int n) {
+	contractRecord = decode(RKFLayout.TCCO.LAYOUT, n+8, 0);
+	contractDynStart = n+(128*(int)regs[REG_DYNSTART]);
+	contractDynLen = (int)regs[REG_DYNLEN] * 128;
+    }
+
+    // copy 0 or 1 of the contract dynamic data
+    private RKFRecord parseDynContract(int copy) {
+	getContract();
+	regs[REG_APP] = 0x87;
+	int start = contractDynStart + (copy*contractDynLen);
+	return parseDynamicTicketContract(start, start+contractDynLen);
+    }
+
+    // TCDB: Discount Basis 0xA1
+    private void parseTCDB(int n) {
+	discountRecord = decode(RKFLayout.TCDB.LAYOUT, n+8, 0);
+    }
+
+    // TCCP, Customer Profile 0xA2
+    private void parseTCCP(int n) {
+	customerProfileRecord = decode(RKFLayout.TCCP.LAYOUT, n+8, 0);
+    }
+
+    // TCST: Special Ticket 0xA3
+    private void parseTCST(int n) {
+	specialTicketRecord = decode(RKFLayout.TCST.LAYOUT, n+8, 0);
+    }
+
+    // TCPU: Purse 0x85
+    private void parsePurse(int n) {
+	if(null != purseRecord)  // skip any extra purse found (ugly fix for rejsekort with backup purse)
+	    return;
+	parsePurseHeader(n);
+	if(latestPurse(n) == 2) {
+	    // Latest data in second field
+	    dynPurseOldRecord = parseDynPurse(n, 1);
+	    dynPurseRecord = parseDynPurse(n, 2);
+	}
+	else {
+	    dynPurseRecord = parseDynPurse(n, 1);
+	    dynPurseOldRecord = parseDynPurse(n, 2);
+	}
+    }
+
+    private void parsePurseHeader(int n) {
+	purseRecord = decode(RKFLayout.TCPU.LAYOUT, n+8, 0);
+    }
+
+    private int purseBlockLen() {
+	return isRejseKort ? 256 : 128;
+    }
+
+    // which purse copy is the latest, 1 or 2
+    private int latestPurse(int n) {
+	int status = statusBefore(n/(48*8));
+	if(status >= 0) {
+	    return (2 == status) ? 2 : 1;
+	}
+	// determine latest by checking the higher TX number
+	int blockLen = purseBlockLen();
+	pos = n+blockLen;
+	int txnr1 = getIntFromPos(16);
+	pos += blockLen;
+	int txnr2 = getIntFromPos(16);
+	return (txnr2 > txnr1) ? 2 : 1;
+    }
+
+    // copy 1 or 2 of the purse dynamic data
+    private RKFRecord parseDynPurse(int n, int copy) {
+	// the dynamic data uses the version of the purse
+	regs[REG_VERSION] = getPurse().get(RKFLayout.TCPU.VERSION);
+	return decode(RKFLayout.DynPurse.LAYOUT, n+(copy*purseBlockLen()), 0);
+    }
+
+    /** Runs the schema program of the layout from bit start, end is where
+	its dynamic area ends */
+    // package-private so the benchmarks can call it directly
+    RKFRecord decode(final RKFLayout l, int start, int end) {
+	final RKFRecord r = new RKFRecord(l);
+	pos = l.getProgram().run(reader, start, end, r, regs, trace);
+	return r;
+    }
+
+    public static String getTimeFromInt(int i) {
+	return RKFFormat.time(i);
+    }
+
+    /** The Calendar versions of RKF dates are kept for compatibility, the
+	RKFFormat methods give the same text without them */
+    public static Calendar getDateFromInt(int i) {
+	Calendar base = new GregorianCalendar(1997,Calendar.JANUARY,1,0,0,0);
+	base.add(Calendar.DATE, i);
+	return base;
+    }
+
+    public static Calendar getDateTimeFromInt(int i) {
+	Calendar base = new GregorianCalendar(2000,Calendar.JANUARY,1,0,0,0);
+	base.add(Calendar.MINUTE, i);
+	return base;
+    }
+    
+
+    public static String getStringFromDate(final Calendar date) {
+	return RKFFormat.date(date.get(Calendar.YEAR), date.get(Calendar.MONTH)+1, date.get(Calendar.DAY_OF_MONTH));
+    }
+
+    public static String getStringFromDateTime(final Calendar date) {
+	return RKFFormat.dateTime(date.get(Calendar.YEAR), date.get(Calendar.MONTH)+1, date.get(Calendar.DAY_OF_MONTH),
+				  date.get(Calendar.HOUR_OF_DAY), date.get(Calendar.MINUTE));
+    }
+
+    public static String getRelStringFromDateTime(final Calendar date, int m) {
+	Calendar rdate = (Calendar)date.clone();
+	rdate.add(Calendar.MINUTE, m);
+	return getStringFromDateTime(rdate);
+    }
+
+    public static String getPassengerType(int i) {
+	switch (i) {
+	case 0:
+	    return "Unspecified";
+	case 1:
+	    return "Adult";
+	case 2:
+	    return "Child";
+	case 3:
+	    return "Student";
+	case 4:
+	    return "Old age pensioner";
+	default:
+	    return "Unknown - PTA specific";
+	}
+    }
+
+    private void setCurrencyUnit(int i) {
+	switch (i & 0xF000) {
+	case 0x0000:
+	    unit = 1;
+	    break;
+	case 0x1000:
+	    unit = 10;
+	    break;
+	case 0x2000:
+	    unit = 100;
+	    break;
+	case 0x9000:
+	    unit = 2;
+	    break;
+	default:
+	    unit = 1;
+	}
+
+	currency = getCurrency(i);
+    }
+
+    public static String getCurrency(int i) {
+	// ISO 4217 currency codes in hexadecimal
+	switch (i & 0xFFF) {
+	case 0x036:
+	    return "AUD";
+	case 0x124:
+	    return "CAD";
+	case 0x156:
+	    return "CNY";
+	case 0x208:
+	    return "DKK";
+	case 0x348:
+	    return "HUF";
+	case 0x352:
+	    return "ISK";
+	case 0x356:
+	    return "INR";
+	case 0x392:
+	    return "JPY";
+	case 0x578:
+	    return "NOK";
+	case 0x643:
+	    return "RUB";
+	case 0x752:
+	    return "SEK";
+	case 0x756:
+	    return "CHF";
+	case 0x826:
+	    return "GBP";
+	case 0x840:
+	    return "USD";
+	case 0x951:
+	    return "XCD";
+	case 0x959:
+	    return "Gold";
+	case 0x978:
+	    return "EUR";
+	default:
+	    return "Unknown";
+	}
+    }
+
+    public static String getUnit(int i) {
+	switch (i & 0xF000) {
+	case 0x0000:
+	    return "Main unit";
+	case 0x1000:
+	    return "Minor unit, 1/10 of main unit";
+	case 0x2000:
+	    return "Minor unit, 1/100 of main unit";
+	case 0x9000:
+	    return "Minor unit, 1/2 of main unit";
+	default:
+	    return "Unknown unit";
+	}
+    }
+
+    public static String getStatus(int i) {
+	switch (i) {
+	case 0x01:
+	    return "OK";
+	case 0x21:
+	    return "Disabled/Suspended but action pending";
+	case 0x3F:
+	    return "Temporarily disabled/suspended";
+	case 0x58:
+	    return "Not OK, disabled/suspended";
+	default:
+	    return "Unknown";
+	}
+    }
+
+    public static String getValModel(int i) {
+	switch (i) {
+	case 0:
+	    return "Undefined";
+	case 1:
+	    return "Check-in/Check-out)";
+	case 2:
+	    return "Destination specified at check-in";
+	case 3:
+	    return "RFU";
+	default:
+	    return "Invalid model";
+	}
+    }
+
+    public static String getValStatus(int i) {
+	switch (i) {
+	case 0:
+	    return "Undefined";
+	case 1:
+	    return "Open (after check-in)";
+	case 2:
+	    return "Closed (after check-out)";
+	case 3:
+	    return "RFU";
+	default:
+	    return "Invalid status";
+	}
+    }
+
+    private int getIntFromPos(int length) {
+	return (int)getLongFromPos(length);
+    }
+
+    long getLongFromPos(int length) {
+	return reader.get(pos, length);
+    }
+
+    public String getAmount(int i) {
+	return RKFFormat.appendAmount(new StringBuilder(16), i, unit).append(' ').append(currency).toString();
+    }
+
+    /** Names of AIDs, from RKFOperator. AIDs are 12 bits, higher bits are
+	ignored. */
+    public static String getTCDIAID(int i) {
+	return RKFOperator.getDirectoryName(i);
+    }
+
+    public static String getVendor(int i) {
+	return RKFOperator.getName(i);
+    }
+
+    private void debug(final String s) {
+	if(null != trace)
+	    trace.text(s);
+    }
+
+    /** Renders the trace of the last parseCard(), one line per entry. A
+	card parsed without a trace is decoded again in full, with one. */
+    public String getDebug() {
+	if(null != debugString)
+	    return debugString;
+	if(null == trace) {
+	    if(null == firstSectorRecord)
+		return "";
+	    debugString = ((null == view) ? new RKFCard(bytes, ParseTrace.Level.FULL) :
+			   new RKFCard(view, viewOffset, viewTrailers, ParseTrace.Level.FULL)).getDebug();
+	    return debugString;
+	}
+
+	final String nl = System.getProperty("line.separator");
+	StringBuilder sb = new StringBuilder(trace.size()*40);
+	int baseTime = 0; // used for relative TimeDate attributes
+	for(int i=0;i<trace.size();i++) {
+	    if(ParseTrace.FIELD == trace.getKind(i) && RKFObject.RKFType.DateTime == trace.getType(i)) {
+		baseTime = (int)trace.getValue(i);
+	    }
+	    appendEntry(sb.append(nl), i, baseTime);
+	}
+	debugString = sb.toString();
+	return debugString;
+    }
+
+    /** Renders entry i of the trace as getDebug() does, baseTime is the
+	last DateTime field before it for the relative times */
+    StringBuilder appendEntry(StringBuilder sb, int i, int baseTime) {
+	long l = trace.getValue(i);
+	switch(trace.getKind(i)) {
+	case ParseTrace.TEXT:
+	    sb.append(trace.getName(i));
+	    break;
+	case ParseTrace.SECTOR:
+	    sb.append("-- Parsing Sector ").append(l).append(':');
+	    break;
+	case ParseTrace.IDENT:
+	    sb.append("Identifer: ").append(Long.toHexString(l));
+	    break;
+	case ParseTrace.TAG:
+	    sb.append("Identifier: ").append(l).append(" (0x").append(Long.toHexString(l)).append(')');
+	    break;
+	case ParseTrace.SKIP:
+	    sb.append("Skipping ").append(trace.getLength(i)).append(" bits with value ").append(l)
+		.append(" (0x").append(Long.toHexString(l)).append(')');
+	    break;
+	case ParseTrace.FIELD:
+	    RKFObject.RKFType type = trace.getType(i);
+	    sb.append(trace.getName(i)).append(": ");
+	    appendValue(sb, type, l, baseTime).append(" (0x");
+	    if(RKFObject.RKFType.Amount == type) {
+		sb.append(Long.toHexString(l & 0x0000000000FFFFFFL));
+	    }
+	    else {
+		sb.append(Long.toHexString(l));
+	    }
+	    sb.append(')');
+	    break;
+	}
+	return sb;
+    }
+
+    private StringBuilder appendValue(StringBuilder sb, RKFObject.RKFType type, long l, int baseTime) {
+	switch(type) {
+	case AID:
+	    return sb.append(getVendor((int)l));
+	case Amount:
+	    return RKFFormat.appendAmount(sb, (int)l, unit).append(' ').append(currency);
+	case CurrencyUnit:
+	    return sb.append(getCurrency((int)l)).append(' ').append(getUnit((int)l));
+	case Date:
+	    return RKFFormat.appendDate(sb, (int)l);
+	case DateTime:
+	    return RKFFormat.appendDateTime(sb, (int)l);
+	case PassSubGroup:
+	    return sb.append(l&0xFF).append(" passengers of type ").append(getPassengerType((int)(l>>8)));
+	case RelTime:
+	    return RKFFormat.appendDateTime(sb, baseTime + (int)l);
+	case Status:
+	    return sb.append(getStatus((int)l));
+	case Time:
+	    return RKFFormat.appendTime(sb, (int)l);
+	case TCDIAID:
+	    return sb.append(getTCDIAID((int)l));
+	case ValidationModel:
+	    return sb.append(getValModel((int)l));
+	case ValidationStatus:
+	    return sb.append(getValStatus((int)l));
+	default:
+	    return sb.append(l);
+	}
+    }
+}
@@ -0,0 +1,322 @@
+/*
+ * Copyright 2014 Henning Norén
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package se.norenh.rkfread;
+
+import java.text.DecimalFormat;
+import java.text.DecimalFormatSymbols;
+import java.util.GregorianCalendar;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * Text of the RKF dates, times and amounts, written digit by digit.
+ *
+ * Dates are days from 1997-01-01 and date-times minutes from 2000-01-01,
+ * as on the card. The civil date of a day is looked up in a table covering
+ * all 14 bit dates. Amounts are fixed point with the currency unit
+ * deciding the decimals. The append methods only write to the given
+ * StringBuilder; the others return a String made from a per-thread buffer.
+ *
+ * The text is the same as the Calendar and DecimalFormat code this
+ * replaces gave: date-times follow the daylight saving time of the default
+ * time zone and digits, minus and decimal separator come from the default
+ * locale. The time zone is read once.
+ */
+public final class RKFFormat {
+    /** 1997-01-01, day 0 of RKF dates, in days from 1970-01-01 */
+    static final int DATE_EPOCH = 9862;
+    /** 2000-01-01, minute 0 of RKF date-times, in days from 1997-01-01 */
+    private static final int DATETIME_EPOCH = 1095;
+    private static final int MINUTES_PER_DAY = 24*60;
+
+    // (year-1997) << 9 | month << 5 | day for every 14 bit date
+    private static final int TABLE_DAYS = 1 << 14;
+    private static final char[] CIVIL = civilTable();
+
+    private static final ThreadLocal<char[]> BUF = new ThreadLocal<char[]>() {
+	@Override
+	protected char[] initialValue() {
+	    return new char[32];
+	}
+    };
+
+    private static volatile Symbols symbols = null;
+    private static volatile Zone zone = null;
+
+    private RKFFormat() {
+    }
+
+    /** yyyy/MM/dd of a date in days from 1997-01-01 */
+    public static String date(int days) {
+	final char[] b = BUF.get();
+	return new String(b, 0, writeDate(b, 0, days, symbols()));
+    }
+
+    /** yyyy/MM/dd HH:mm of a date-time in minutes from 2000-01-01 */
+    public static String dateTime(int minutes) {
+	final char[] b = BUF.get();
+	return new String(b, 0, writeDateTime(b, 0, minutes, symbols()));
+    }
+
+    /** HH:mm:ss of a packed time: hours, minutes and seconds/2 */
+    public static String time(int packed) {
+	final char[] b = BUF.get();
+	return new String(b, 0, writeTime(b, 0, packed, symbols()));
+    }
+
+    /** The amount in main units with two decimals, unit is the number of
+	minor units in a main unit (1, 2, 10 or 100) */
+    public static String amount(long value, int unit) {
+	final char[] b = BUF.get();
+	return new String(b, 0, writeAmount(b, 0, value, unit, symbols()));
+    }
+
+    public static StringBuilder appendDate(StringBuilder sb, int days) {
+	final char[] b = BUF.get();
+	return sb.append(b, 0, writeDate(b, 0, days, symbols()));
+    }
+
+    public static StringBuilder appendDateTime(StringBuilder sb, int minutes) {
+	final char[] b = BUF.get();
+	return sb.append(b, 0, writeDateTime(b, 0, minutes, symbols()));
+    }
+
+    public static StringBuilder appendTime(StringBuilder sb, int packed) {
+	final char[] b = BUF.get();
+	return sb.append(b, 0, writeTime(b, 0, packed, symbols()));
+    }
+
+    public static StringBuilder appendAmount(StringBuilder sb, long value, int unit) {
+	final char[] b = BUF.get();
+	return sb.append(b, 0, writeAmount(b, 0, value, unit, symbols()));
+    }
+
+    // for the Calendar based formatters of RKFCard
+    static String date(int year, int month, int day) {
+	final char[] b = BUF.get();
+	return new String(b, 0, writeCivil(b, 0, year, month, day, symbols()));
+    }
+
+    static String dateTime(int year, int month, int day, int hour, int minute) {
+	final char[] b = BUF.get();
+	final Symbols s = symbols();
+	int o = writeCivil(b, 0, year, month, day, s);
+	b[o++] = ' ';
+	o = writeNumber(b, o, hour, s.zero);
+	b[o++] = ':';
+	return new String(b, 0, writeNumber(b, o, minute, s.zero));
+    }
+
+    private static int writeDate(char[] b, int o, int days, final Symbols s) {
+	int c = civil(days);
+	return writeCivil(b, o, 1997 + (c >> 9), (c >> 5) & 0xF, c & 0x1F, s);
+    }
+
+    /** (year-1997) << 9 | month << 5 | day of a date in days from
+	1997-01-01 */
+    private static int civil(int days) {
+	if(days >= 0 && days < TABLE_DAYS) {
+	    return CIVIL[days];
+	}
+	// outside the table, days to civil from Howard Hinnant's algorithms
+	int z = days + DATE_EPOCH + 719468;
+	int era = (z >= 0 ? z : z - 146096) / 146097;
+	int doe = z - era*146097;
+	int yoe = (doe - doe/1460 + doe/36524 - doe/146096) / 365;
+	int doy = doe - (365*yoe + yoe/4 - yoe/100);
+	int mp = (5*doy + 2)/153;
+	int day = doy - (153*mp + 2)/5 + 1;
+	int month = (mp < 10) ? mp+3 : mp-9;
+	int year = yoe + era*400 + ((month <= 2) ? 1 : 0);
+	return ((year - 1997) << 9) | (month << 5) | day;
+    }
+
+    /** year*100 + month of a date in days from 1997-01-01 */
+    static int yearMonth(int days) {
+	int c = civil(days);
+	return (1997 + (c >> 9))*100 + ((c >> 5) & 0xF);
+    }
+
+    /** Minutes from 1997-01-01 00:00 of the wall clock time that
+	dateTime() shows for a date-time in minutes from 2000-01-01 */
+    static long wallMinutes(int minutes) {
+	final Zone z = zone();
+	long utc = z.base + minutes*60000L;
+	return (long)DATETIME_EPOCH*MINUTES_PER_DAY + minutes + (z.tz.getOffset(utc) - z.baseOffset)/60000;
+    }
+
+    private static int writeCivil(char[] b, int o, int year, int month, int day, final Symbols s) {
+	o = writeNumber(b, o, year, s.zero);
+	b[o++] = '/';
+	o = writeNumber(b, o, month, s.zero);
+	b[o++] = '/';
+	return writeNumber(b, o, day, s.zero);
+    }
+
+    private static int writeDateTime(char[] b, int o, int minutes, final Symbols s) {
+	// Minutes are added to the instant of 2000-01-01 00:00 local time,
+	// so the wall clock moves with daylight saving time like it did
+	// with Calendar.add().
+	final Zone z = zone();
+	long utc = z.base + minutes*60000L;
+	long wall = minutes + (z.tz.getOffset(utc) - z.baseOffset)/60000;
+	int days = (int)floorDiv(wall, MINUTES_PER_DAY);
+	int m = (int)(wall - (long)days*MINUTES_PER_DAY);
+	o = writeDate(b, o, DATETIME_EPOCH + days, s);
+	b[o++] = ' ';
+	o = writeNumber(b, o, m/60, s.zero);
+	b[o++] = ':';
+	return writeNumber(b, o, m%60, s.zero);
+    }
+
+    private static int writeTime(char[] b, int o, int packed, final Symbols s) {
+	o = writeNumber(b, o, (packed >> 11) & 0x1F, s.zero);
+	b[o++] = ':';
+	o = writeNumber(b, o, (packed >> 5) & 0x3F, s.zero);
+	b[o++] = ':';
+	return writeNumber(b, o, (packed & 0x1F)*2, s.zero);
+    }
+
+    private static int writeAmount(char[] b, int o, long value, int unit, final Symbols s) {
+	// in hundredths, exact for all the units of the currency field
+	long v = value * (100/unit);
+	boolean negative = v < 0;
+	if(negative) {
+	    s.minusPrefix.getChars(0, s.minusPrefix.length(), b, o);
+	    o += s.minusPrefix.length();
+	    v = -v;
+	}
+	o = writeNumber(b, o, v/100, 1, s.zero);
+	b[o++] = s.decimal;
+	o = writeNumber(b, o, v%100, s.zero);
+	if(negative) {
+	    s.minusSuffix.getChars(0, s.minusSuffix.length(), b, o);
+	    o += s.minusSuffix.length();
+	}
+	return o;
+    }
+
+    /** At least two digits, as DecimalFormat("00") */
+    private static int writeNumber(char[] b, int o, long v, char zero) {
+	return writeNumber(b, o, v, 2, zero);
+    }
+
+    private static int writeNumber(char[] b, int o, long v, int digits, char zero) {
+	int n = 0;
+	for(long t=v;t>0;t/=10) {
+	    n++;
+	}
+	for(int i=n;i<digits;i++) {
+	    b[o++] = zero;
+	}
+	int e = o + n;
+	for(int i=e-1;i>=o;i--) {
+	    b[i] = (char)(zero + (v % 10));
+	    v /= 10;
+	}
+	return e;
+    }
+
+    private static long floorDiv(long a, long b) {
+	long q = a / b;
+	return (a % b < 0) ? q-1 : q;
+    }
+
+    private static char[] civilTable() {
+	final char[] t = new char[TABLE_DAYS];
+	int y = 0, m = 1, d = 1;
+	for(int i=0;i<TABLE_DAYS;i++) {
+	    t[i] = (char)((y << 9) | (m << 5) | d);
+	    if(++d > monthLength(1997+y, m)) {
+		d = 1;
+		if(++m > 12) {
+		    m = 1;
+		    y++;
+		}
+	    }
+	}
+	return t;
+    }
+
+    private static int monthLength(int year, int month) {
+	switch(month) {
+	case 2:
+	    return ((year % 4 == 0 && year % 100 != 0) || year % 400 == 0) ? 29 : 28;
+	case 4:
+	case 6:
+	case 9:
+	case 11:
+	    return 30;
+	default:
+	    return 31;
+	}
+    }
+
+    // the symbols of the default locale, looked up again if it changes
+    private static Symbols symbols() {
+	Symbols s = symbols;
+	final Locale l = Locale.getDefault();
+	if(null == s || s.locale != l) {
+	    s = new Symbols(l);
+	    symbols = s;
+	}
+	return s;
+    }
+
+    private static Zone zone() {
+	Zone z = zone;
+	if(null == z) {
+	    z = new Zone(TimeZone.getDefault());
+	    zone = z;
+	}
+	return z;
+    }
+
+    private static final class Symbols {
+	final Locale locale;
+	final char zero;
+	final char decimal;
+	final String minusPrefix; // may be more than the minus sign
+	final String minusSuffix;
+
+	Symbols(final Locale l) {
+	    final DecimalFormatSymbols d = DecimalFormatSymbols.getInstance(l);
+	    final DecimalFormat f = new DecimalFormat("0.00", d);
+	    locale = l;
+	    zero = d.getZeroDigit();
+	    decimal = d.getDecimalSeparator();
+	    minusPrefix = f.getNegativePrefix();
+	    minusSuffix = f.getNegativeSuffix();
+	}
+    }
+
+    private static final class Zone {
+	final TimeZone tz;
+	final long base;       // instant of 2000-01-01 00:00 local time
+	final int baseOffset;  // offset from UTC at that instant
+
+	Zone(final TimeZone t) {
+	    tz = t;
+	    GregorianCalendar c = new GregorianCalendar(t);
+	    c.clear();
+	    c.set(2000, GregorianCalendar.JANUARY, 1, 0, 0, 0);
+	    base = c.getTimeInMillis();
+	    baseOffset = t.getOffset(base);
+	}
+    }
+}
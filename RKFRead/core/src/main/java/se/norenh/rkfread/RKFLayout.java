@@ -0,0 +1,355 @@
+/*
+ * Copyright 2014 Henning Norén
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package se.norenh.rkfread;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Fixed layout of an RKF application record.
+ *
+ * Every field has an int id (the constants in the nested classes), a name
+ * as taken from the specifications, an RKFType and a number of slots in
+ * the record's long[]. A field either repeats under the same name (like
+ * "Validity zone place") or is indexed, where every slot has its own name
+ * (like "Sector status(0)" to "Sector status(15)").
+ *
+ * The layouts and the programs decoding them come from the schema resource
+ * (see RKFSchema). The constants below are the ids of the fields the app
+ * uses; fields only in the schema are reached through field(key).
+ */
+public final class RKFLayout {
+    private static final List<RKFLayout> layouts = new ArrayList<RKFLayout>();
+
+    private final int id;
+    private final String name;
+    private final String[] fieldNames;
+    private final Map<String,Integer> keys;
+    private final RKFProgram program;
+    private final RKFObject.RKFType[] types;
+    private final int[] offsets;
+    private final int[] capacity;
+    private final int[] indexBase;
+    private final int slots;
+    private final Map<String,Integer> nameLookup = new HashMap<String,Integer>();
+
+    private RKFLayout(final Builder b) {
+	int n = b.names.size();
+	name = b.name;
+	fieldNames = b.names.toArray(new String[n]);
+	keys = b.keys;
+	program = b.program;
+	types = b.types.toArray(new RKFObject.RKFType[n]);
+	offsets = new int[n];
+	capacity = new int[n];
+	indexBase = new int[n];
+	int s = 0;
+	for(int f=0;f<n;f++) {
+	    offsets[f] = s;
+	    capacity[f] = b.capacity.get(f);
+	    indexBase[f] = b.indexBase.get(f);
+	    s += capacity[f];
+	    for(int i=0;i<(isIndexed(f) ? capacity[f] : 1);i++) {
+		nameLookup.put(getFieldName(f, i), (f << 8) | i);
+	    }
+	}
+	slots = s;
+	synchronized(layouts) {
+	    id = layouts.size();
+	    layouts.add(this);
+	}
+    }
+
+    /** @return the layout with the given key in the schema */
+    public static RKFLayout get(final String key) {
+	return RKFSchema.get().getLayout(key);
+    }
+
+    static RKFLayout byId(int id) {
+	synchronized(layouts) {
+	    return layouts.get(id);
+	}
+    }
+
+    int getId() { return id; }
+    int getSlots() { return slots; }
+    int getOffset(int field) { return offsets[field]; }
+    int getCapacity(int field) { return capacity[field]; }
+    RKFProgram getProgram() { return program; }
+
+    public String getName() { return name; }
+    public int getFieldCount() { return fieldNames.length; }
+    public RKFObject.RKFType getType(int field) { return types[field]; }
+    public boolean isIndexed(int field) { return indexBase[field] >= 0; }
+
+    /** @return the name of slot i of the field, as used by the old maps */
+    public String getFieldName(int field, int i) {
+	String s = fieldNames[field];
+	if(!isIndexed(field)) {
+	    return s;
+	}
+	int k = s.indexOf("%d");
+	return s.substring(0, k) + (indexBase[field]+i) + s.substring(k+2);
+    }
+
+    /** @return the id of the field with the given key in the schema */
+    public int field(final String key) {
+	Integer f = keys.get(key);
+	if(null == f) {
+	    throw new IllegalStateException(name+": no field "+key);
+	}
+	return f;
+    }
+
+    /** @return (field << 8) | index for a field name, or -1 if unknown */
+    public int lookup(final String fieldName) {
+	Integer r = nameLookup.get(fieldName);
+	return (null == r) ? -1 : r;
+    }
+
+    static final class Builder {
+	private final String name;
+	private final Map<String,Integer> keys = new HashMap<String,Integer>();
+	private final List<String> names = new ArrayList<String>();
+	private final List<RKFObject.RKFType> types = new ArrayList<RKFObject.RKFType>();
+	private final List<Integer> capacity = new ArrayList<Integer>();
+	private final List<Integer> indexBase = new ArrayList<Integer>();
+	private RKFProgram program = null;
+
+	Builder(final String n) {
+	    name = n;
+	}
+
+	/** A field with count slots, if base is not negative they are named
+	    by the name with %d replaced by base, base+1, ... */
+	Builder field(final String key, final String n, RKFObject.RKFType t, int count, int base) {
+	    keys.put(key, names.size());
+	    names.add(n);
+	    types.add(t);
+	    capacity.add(count);
+	    indexBase.add(base);
+	    return this;
+	}
+
+	boolean has(final String key) { return keys.containsKey(key); }
+	int get(final String key) { return keys.get(key); }
+	RKFObject.RKFType getType(int field) { return types.get(field); }
+
+	Builder program(final RKFProgram p) {
+	    program = p;
+	    return this;
+	}
+
+	RKFLayout build() {
+	    return new RKFLayout(this);
+	}
+    }
+
+    public static final class FirstSector {
+	public static final RKFLayout LAYOUT = get("FirstSector");
+
+	public static final int SERIAL_NUMBER = LAYOUT.field("SERIAL_NUMBER");
+	public static final int CARD_VERSION = LAYOUT.field("CARD_VERSION");
+	public static final int CARD_PROVIDER = LAYOUT.field("CARD_PROVIDER");
+	public static final int CARD_VALIDITY_END_DATE = LAYOUT.field("CARD_VALIDITY_END_DATE");
+	public static final int STATUS = LAYOUT.field("STATUS");
+	public static final int CURRENCY_UNIT = LAYOUT.field("CURRENCY_UNIT");
+	public static final int EVENT_LOG_VERSION = LAYOUT.field("EVENT_LOG_VERSION");
+    }
+
+    // Directory
+    public static final class TCDI {
+	public static final RKFLayout LAYOUT = get("TCDI");
+
+	public static final int AID = LAYOUT.field("AID");
+	public static final int PIX = LAYOUT.field("PIX");
+    }
+
+    // Application Status 0xA0
+    public static final class TCAS {
+	public static final RKFLayout LAYOUT = get("TCAS");
+
+	public static final int VERSION = LAYOUT.field("VERSION");
+	public static final int SECTOR_STATUS = LAYOUT.field("SECTOR_STATUS");
+	public static final int TRANSACTION_NUMBER = LAYOUT.field("TRANSACTION_NUMBER");
+	public static final int EVENT_LOG_RECORD_NUMBER = LAYOUT.field("EVENT_LOG_RECORD_NUMBER");
+	public static final int TICKET_LOG_AREA_SECTOR_POINTER = LAYOUT.field("TICKET_LOG_AREA_SECTOR_POINTER");
+	public static final int TICKET_LOG_SECTOR_POINTER = LAYOUT.field("TICKET_LOG_SECTOR_POINTER");
+    }
+
+    // Event Log 0x84, three records
+    public static final class TCEL {
+	public static final RKFLayout LAYOUT = get("TCEL");
+
+	public static final int EVENT_DATE_STAMP = LAYOUT.field("EVENT_DATE_STAMP");
+	public static final int EVENT_TIME_STAMP = LAYOUT.field("EVENT_TIME_STAMP");
+	public static final int AID = LAYOUT.field("AID");
+	public static final int DEVICE = LAYOUT.field("DEVICE");
+	public static final int DEVICE_TRANSACTION_NUMBER = LAYOUT.field("DEVICE_TRANSACTION_NUMBER");
+	public static final int EVENT_CODE = LAYOUT.field("EVENT_CODE");
+	public static final int EVENT_DATA = LAYOUT.field("EVENT_DATA");
+    }
+
+    // Purse 0x85
+    public static final class TCPU {
+	public static final RKFLayout LAYOUT = get("TCPU");
+
+	public static final int VERSION = LAYOUT.field("VERSION");
+	public static final int AID = LAYOUT.field("AID");
+	public static final int SERIAL_NUMBER = LAYOUT.field("SERIAL_NUMBER");
+	public static final int START_DATE = LAYOUT.field("START_DATE");
+    }
+
+    // Dynamic part of the purse
+    public static final class DynPurse {
+	public static final RKFLayout LAYOUT = get("DynPurse");
+
+	public static final int TRANSACTION_NUMBER = LAYOUT.field("TRANSACTION_NUMBER");
+	public static final int PURSE_EXPIRY_DATE = LAYOUT.field("PURSE_EXPIRY_DATE");
+	public static final int VALUE = LAYOUT.field("VALUE");
+	public static final int STATUS = LAYOUT.field("STATUS");
+	public static final int DEPOSIT = LAYOUT.field("DEPOSIT");
+    }
+
+    // Ticket 0x86
+    public static final class TCTI {
+	public static final RKFLayout LAYOUT = get("TCTI");
+
+	public static final int VERSION = LAYOUT.field("VERSION");
+    }
+
+    // Contract 0x87
+    public static final class TCCO {
+	public static final RKFLayout LAYOUT = get("TCCO");
+
+	public static final int VERSION = LAYOUT.field("VERSION");
+    }
+
+    // Dynamic content of TCTI and TCCO, one field set per information element
+    public static final class Dynamic {
+	public static final RKFLayout LAYOUT = get("Dynamic");
+
+	public static final int VALIDATION_MODEL = LAYOUT.field("VALIDATION_MODEL");
+	public static final int VALIDATION_STATUS = LAYOUT.field("VALIDATION_STATUS");
+	public static final int VALIDATION_LEVEL = LAYOUT.field("VALIDATION_LEVEL");
+	public static final int PASSENGER_CLASS = LAYOUT.field("PASSENGER_CLASS");
+	public static final int PASSENGER_SUBGROUP = LAYOUT.field("PASSENGER_SUBGROUP");
+	public static final int VALIDATION_TOTAL_ISSUED_JOURNEYS = LAYOUT.field("VALIDATION_TOTAL_ISSUED_JOURNEYS");
+	public static final int VALIDATION_TOTAL_ISSUED_JOURNEYS_WITHIN_PERIOD = LAYOUT.field("VALIDATION_TOTAL_ISSUED_JOURNEYS_WITHIN_PERIOD");
+	public static final int VALIDATION_LAST_DATE = LAYOUT.field("VALIDATION_LAST_DATE");
+	public static final int VALIDATION_LAST_TIME = LAYOUT.field("VALIDATION_LAST_TIME");
+	public static final int VALIDITY_ZONE_AID = LAYOUT.field("VALIDITY_ZONE_AID");
+	public static final int VALIDITY_ZONE_PLACE = LAYOUT.field("VALIDITY_ZONE_PLACE");
+	public static final int JOURNEY_ROUTE_AID = LAYOUT.field("JOURNEY_ROUTE_AID");
+	public static final int JOURNEY_ROUTE_NUMBER = LAYOUT.field("JOURNEY_ROUTE_NUMBER");
+	public static final int JOURNEY_ORIGIN_AID = LAYOUT.field("JOURNEY_ORIGIN_AID");
+	public static final int JOURNEY_ORIGIN_PLACE = LAYOUT.field("JOURNEY_ORIGIN_PLACE");
+	public static final int JOURNEY_DESTINATION_AID = LAYOUT.field("JOURNEY_DESTINATION_AID");
+	public static final int JOURNEY_DESTINATION_PLACE = LAYOUT.field("JOURNEY_DESTINATION_PLACE");
+	public static final int JOURNEY_DISTANCE = LAYOUT.field("JOURNEY_DISTANCE");
+	public static final int JOURNEY_RUN = LAYOUT.field("JOURNEY_RUN");
+	public static final int JOURNEY_VIA_1_AID = LAYOUT.field("JOURNEY_VIA_1_AID");
+	public static final int JOURNEY_VIA_1_PLACE = LAYOUT.field("JOURNEY_VIA_1_PLACE");
+	public static final int JOURNEY_VIA_2_AID = LAYOUT.field("JOURNEY_VIA_2_AID");
+	public static final int JOURNEY_VIA_2_PLACE = LAYOUT.field("JOURNEY_VIA_2_PLACE");
+	public static final int JOURNEY_INTERCHANGE = LAYOUT.field("JOURNEY_INTERCHANGE");
+	public static final int VALIDITY_START_DATE = LAYOUT.field("VALIDITY_START_DATE");
+	public static final int VALIDITY_START_TIME = LAYOUT.field("VALIDITY_START_TIME");
+	public static final int VALIDITY_END_DATE = LAYOUT.field("VALIDITY_END_DATE");
+	public static final int VALIDITY_END_TIME = LAYOUT.field("VALIDITY_END_TIME");
+	public static final int VALIDITY_DURATION = LAYOUT.field("VALIDITY_DURATION");
+	public static final int VALIDITY_LIMIT_TIME = LAYOUT.field("VALIDITY_LIMIT_TIME");
+	public static final int PERIOD_JOURNEYS = LAYOUT.field("PERIOD_JOURNEYS");
+	public static final int RESTRICT_DAY = LAYOUT.field("RESTRICT_DAY");
+	public static final int RESTRICT_TIME_CODE = LAYOUT.field("RESTRICT_TIME_CODE");
+	public static final int PURSE_POINTER = LAYOUT.field("PURSE_POINTER");
+	public static final int PRICE = LAYOUT.field("PRICE");
+	public static final int AID = LAYOUT.field("AID");
+	public static final int PIX = LAYOUT.field("PIX");
+	public static final int SALE_DEVICE = LAYOUT.field("SALE_DEVICE");
+	public static final int CONTRACT_SERIAL_NUMBER = LAYOUT.field("CONTRACT_SERIAL_NUMBER");
+	public static final int STATUS = LAYOUT.field("STATUS");
+	public static final int TRANSACTION_NUMBER = LAYOUT.field("TRANSACTION_NUMBER");
+    }
+
+    // Discount Basis 0xA1
+    public static final class TCDB {
+	public static final RKFLayout LAYOUT = get("TCDB");
+
+	public static final int VERSION = LAYOUT.field("VERSION");
+	public static final int AID = LAYOUT.field("AID");
+	public static final int DISCOUNT_TYPE = LAYOUT.field("DISCOUNT_TYPE");
+	public static final int STATUS = LAYOUT.field("STATUS");
+	public static final int FIRST_MONTH = LAYOUT.field("FIRST_MONTH");
+	public static final int DISCOUNT_BASIS_BLOCK = LAYOUT.field("DISCOUNT_BASIS_BLOCK");
+    }
+
+    // Customer Profile 0xA2
+    public static final class TCCP {
+	public static final RKFLayout LAYOUT = get("TCCP");
+
+	public static final int VERSION = LAYOUT.field("VERSION");
+	public static final int AID = LAYOUT.field("AID");
+	public static final int STATUS = LAYOUT.field("STATUS");
+	public static final int CUSTOMER_NUMBER = LAYOUT.field("CUSTOMER_NUMBER");
+	public static final int PASSENGER_CLASS = LAYOUT.field("PASSENGER_CLASS");
+	public static final int PASSENGER_SUBGROUP = LAYOUT.field("PASSENGER_SUBGROUP");
+	public static final int VALIDATION_LEVEL = LAYOUT.field("VALIDATION_LEVEL");
+	public static final int BIRTHDAY = LAYOUT.field("BIRTHDAY");
+	public static final int LANGUAGE = LAYOUT.field("LANGUAGE");
+	public static final int DIALOGUE_PREFERENCES = LAYOUT.field("DIALOGUE_PREFERENCES");
+	public static final int SUBSCRIPTION_OR_CREDIT_COMPANY = LAYOUT.field("SUBSCRIPTION_OR_CREDIT_COMPANY");
+	public static final int SUBSCRIPTION_OR_CREDIT_TYPE = LAYOUT.field("SUBSCRIPTION_OR_CREDIT_TYPE");
+    }
+
+    // Special Ticket 0xA3
+    public static final class TCST {
+	public static final RKFLayout LAYOUT = get("TCST");
+
+	public static final int VERSION = LAYOUT.field("VERSION");
+	public static final int AID = LAYOUT.field("AID");
+	public static final int PIX = LAYOUT.field("PIX");
+	public static final int STATUS = LAYOUT.field("STATUS");
+	public static final int PASSENGER_CLASS = LAYOUT.field("PASSENGER_CLASS");
+	public static final int PASSENGER_SUBGROUP = LAYOUT.field("PASSENGER_SUBGROUP");
+	public static final int VALIDATION_MODEL = LAYOUT.field("VALIDATION_MODEL");
+	public static final int VALIDATION_STATUS = LAYOUT.field("VALIDATION_STATUS");
+	public static final int VALIDATION_LEVEL = LAYOUT.field("VALIDATION_LEVEL");
+	public static final int PRICE = LAYOUT.field("PRICE");
+	public static final int PRICE_MODIFICATION_LEVEL = LAYOUT.field("PRICE_MODIFICATION_LEVEL");
+	public static final int JOURNEY_ORIGIN_AID = LAYOUT.field("JOURNEY_ORIGIN_AID");
+	public static final int JOURNEY_ORIGIN_PLACE = LAYOUT.field("JOURNEY_ORIGIN_PLACE");
+	public static final int JOURNEY_ORIGIN_DATE = LAYOUT.field("JOURNEY_ORIGIN_DATE");
+	public static final int JOURNEY_FURTHEST_AID = LAYOUT.field("JOURNEY_FURTHEST_AID");
+	public static final int JOURNEY_FURTHEST_PLACE = LAYOUT.field("JOURNEY_FURTHEST_PLACE");
+	public static final int FURTHEST_TIME = LAYOUT.field("FURTHEST_TIME");
+	public static final int JOURNEY_DESTINATION_AID = LAYOUT.field("JOURNEY_DESTINATION_AID");
+	public static final int JOURNEY_DESTINATION_PLACE = LAYOUT.field("JOURNEY_DESTINATION_PLACE");
+	public static final int JOURNEY_DESTINATION_TIME = LAYOUT.field("JOURNEY_DESTINATION_TIME");
+	public static final int SUPPLEMENT_STATUS = LAYOUT.field("SUPPLEMENT_STATUS");
+	public static final int SUPPLEMENT_TYPE = LAYOUT.field("SUPPLEMENT_TYPE");
+	public static final int SUPPLEMENT_ORIGIN_AID = LAYOUT.field("SUPPLEMENT_ORIGIN_AID");
+	public static final int SUPPLEMENT_ORIGIN_PLACE = LAYOUT.field("SUPPLEMENT_ORIGIN_PLACE");
+	public static final int SUPPLEMENT_DISTANCE = LAYOUT.field("SUPPLEMENT_DISTANCE");
+	public static final int LATEST_CONTROL_AID = LAYOUT.field("LATEST_CONTROL_AID");
+	public static final int LATEST_CONTROL_PLACE = LAYOUT.field("LATEST_CONTROL_PLACE");
+	public static final int LATEST_CONTROL_TIME = LAYOUT.field("LATEST_CONTROL_TIME");
+    }
+}
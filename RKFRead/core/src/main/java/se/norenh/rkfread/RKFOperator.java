@@ -0,0 +1,160 @@
+/*
+ * Copyright 2014 Henning Norén
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package se.norenh.rkfread;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+
+/**
+ * An RKF operator, known by the 12 bit AID the cards use for it.
+ *
+ * The operators are read from the rkf-operators.txt resource into a table
+ * with an entry for every AID, so a lookup is an array index and never
+ * null; AIDs without an operator get one named "Unknown". More operators
+ * can be added with load().
+ */
+public final class RKFOperator {
+    private static final String RESOURCE = "rkf-operators.txt";
+    private static final int AIDS = 1 << 12;
+
+    public final int aid;
+    public final String name;
+    /** ISO 4217 code of the currency of the operator's cards, null if not known */
+    public final String currency;
+    /** The card type whose keys read the operator's cards, null if not known */
+    public final CardType profile;
+
+    private static volatile RKFOperator[] operators;
+    private static volatile String[] directoryNames;
+
+    static {
+	InputStream in = RKFOperator.class.getResourceAsStream(RESOURCE);
+	if(null == in) {
+	    throw new IllegalStateException("Missing resource "+RESOURCE);
+	}
+	RKFOperator[] t = new RKFOperator[AIDS];
+	for(int i=0;i<AIDS;i++) {
+	    t[i] = new RKFOperator(i, "Unknown", null, null);
+	}
+	try {
+	    read(RESOURCE, in, t);
+	}
+	catch(IOException e) {
+	    throw new IllegalStateException("Could not read "+RESOURCE, e);
+	}
+	publish(t);
+    }
+
+    private RKFOperator(int a, final String n, final String c, final CardType p) {
+	aid = a;
+	name = n;
+	currency = c;
+	profile = p;
+    }
+
+    public boolean isKnown() {
+	return null != currency || null != profile || !"Unknown".equals(name);
+    }
+
+    /** The operator of an AID, only the low 12 bits are used */
+    public static RKFOperator get(int aid) {
+	return operators[aid & (AIDS-1)];
+    }
+
+    public static String getName(int aid) {
+	return operators[aid & (AIDS-1)].name;
+    }
+
+    /** Name of an AID in the directory (TCDI), where the lowest ones mark
+	free, defective and reserved sectors and the RKF applications */
+    public static String getDirectoryName(int aid) {
+	return directoryNames[aid & (AIDS-1)];
+    }
+
+    /** Adds the operators of a file in the format of rkf-operators.txt,
+	replacing those with the same AID */
+    public static synchronized void load(final String source, final InputStream in) throws IOException {
+	RKFOperator[] t = operators.clone();
+	read(source, in, t);
+	publish(t);
+    }
+
+    private static void read(final String source, final InputStream in, final RKFOperator[] t) throws IOException {
+	BufferedReader r = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+	try {
+	    String s;
+	    int n = 0;
+	    while(null != (s = r.readLine())) {
+		n++;
+		String[] w = RKFSchema.tokenize(source, s, n);
+		if(0 == w.length) {
+		    continue;
+		}
+		if(4 != w.length) {
+		    throw new IllegalStateException(source+":"+n+": expected <aid> <currency> <profile> \"<name>\"");
+		}
+		int aid;
+		try {
+		    aid = Integer.decode(w[0]);
+		}
+		catch(NumberFormatException e) {
+		    throw new IllegalStateException(source+":"+n+": bad AID "+w[0]);
+		}
+		if(aid < 0 || aid >= AIDS) {
+		    throw new IllegalStateException(source+":"+n+": AID "+w[0]+" is not 12 bits");
+		}
+		CardType profile = null;
+		if(null != optional(w[2])) {
+		    try {
+			profile = CardType.valueOf(w[2]);
+		    }
+		    catch(IllegalArgumentException e) {
+			throw new IllegalStateException(source+":"+n+": no card type "+w[2]);
+		    }
+		}
+		t[aid] = new RKFOperator(aid, w[3], optional(w[1]), profile);
+	    }
+	}
+	finally {
+	    r.close();
+	}
+    }
+
+    private static String optional(final String s) {
+	return "-".equals(s) ? null : s;
+    }
+
+    private static void publish(final RKFOperator[] t) {
+	String[] d = new String[AIDS];
+	for(int i=0;i<AIDS;i++) {
+	    d[i] = t[i].name;
+	}
+	d[0x00] = "Sector free";
+	d[0x01] = "Sector defective";
+	d[0x02] = "Sector reserved";
+	d[0x05] = "Application Status (TCAS)";
+	d[0x06] = "Directory (TCDI)";
+	d[0x0A] = "Event Log (TCEL)";
+	d[0x0B] = "Purse (TCPU)";
+	d[0x0C] = "PTA-specific area for Purse (TCPU)";
+	operators = t;
+	directoryNames = d;
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright 2014 Henning Norén
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package se.norenh.rkfread;
+
+/**
+ * Decoding program of a layout, compiled from the schema by RKFSchema.
+ *
+ * An instruction is one int: the opcode in the low 8 bits, a small operand
+ * (a length, a count, a comparison) in the next 8 and a large one (a
+ * register, a jump target) in the high 16. FIELDS, IF and TAGS are
+ * followed by extra words with their fields, values and targets.
+ *
+ * Repeats are unrolled when compiling and fields read one after the other
+ * are merged into one FIELDS, so most of a program is a plain loop over
+ * field words and the only other branches are ifs and the identifier
+ * dispatch.
+ */
+final class RKFProgram {
+    static final int FIELDS = 0;   // a = count, then one word per field
+    static final int SKIP = 2;     // a = bits
+    static final int ADVANCE = 3;  // b = bits
+    static final int AT = 4;       // b = bits from start
+    static final int SAVE = 5;     // b = register, gets the last value read
+    static final int TEXT = 6;     // b = text
+    static final int IF = 7;       // a = comparison, b = register, then value and else target
+    static final int JUMP = 8;     // b = target
+    static final int TAGS = 9;     // a = first id, b = last id, then until and one target per id
+    static final int STOP = 10;
+    static final int RET = 11;
+
+    // a field word of FIELDS: bits, sign flag and field id
+    static final int FIELD_BITS = 0x7F;
+    static final int FIELD_AMOUNT24 = 0x80; // 24 bit signed amount
+    static final int FIELD_SHIFT = 8;
+
+    static final int EQ = 0;
+    static final int NE = 1;
+    static final int LT = 2;
+    static final int LE = 3;
+    static final int GT = 4;
+    static final int GE = 5;
+
+    private final int[] code;
+    private final String[] texts;
+
+    RKFProgram(final int[] c, final String[] t) {
+	code = c;
+	texts = t;
+    }
+
+    int size() { return code.length; }
+
+    /**
+     * Decodes into r starting at bit start. The identifier dispatch stops
+     * when less than its until bits are left before end.
+     *
+     * @return the bit position after the last thing decoded
+     */
+    int run(final BitReader reader, int start, int end, final RKFRecord r,
+	    final long[] regs, final ParseTrace trace) {
+	final int[] c = code;
+	final RKFLayout layout = r.getLayout();
+	int pc = 0;
+	int pos = start;
+	long last = 0;
+
+	for(;;) {
+	    int w = c[pc];
+	    int op = w & 0xFF;
+	    if(FIELDS == op) {
+		int e = pc + 1 + ((w >>> 8) & 0xFF);
+		for(pc++;pc<e;pc++) {
+		    int f = c[pc];
+		    int len = f & FIELD_BITS;
+		    last = reader.get(pos, len);
+		    // MoneyAmount can be either of length 20 or 24 where the
+		    // latter can also be negative.
+		    if(0 != (f & FIELD_AMOUNT24) && 0x800000 == (last & 0x800000)) {
+			last = (last ^ 0xFFFFFFFFFF000000L);
+		    }
+		    int i = r.add(f >>> FIELD_SHIFT, last);
+		    if(null != trace)
+			trace.field(layout, f >>> FIELD_SHIFT, i, pos, len, last);
+		    pos += len;
+		}
+		continue;
+	    }
+	    switch(op) {
+	    case SKIP: {
+		int len = (w >>> 8) & 0xFF;
+		last = reader.get(pos, len);
+		if(null != trace)
+		    trace.skip(pos, len, last);
+		pos += len;
+		pc++;
+		break;
+	    }
+	    case ADVANCE:
+		pos += w >>> 16;
+		pc++;
+		break;
+	    case AT:
+		pos = start + (w >>> 16);
+		pc++;
+		break;
+	    case SAVE:
+		regs[w >>> 16] = last;
+		pc++;
+		break;
+	    case TEXT:
+		if(null != trace)
+		    trace.text(texts[w >>> 16]);
+		pc++;
+		break;
+	    case IF:
+		if(test((w >>> 8) & 0xFF, regs[w >>> 16], c[pc+1])) {
+		    pc += 3;
+		}
+		else {
+		    pc = c[pc+2];
+		}
+		break;
+	    case JUMP:
+		pc = w >>> 16;
+		break;
+	    case TAGS: {
+		int lo = (w >>> 8) & 0xFF;
+		int hi = w >>> 16;
+		int limit = end - c[pc+1];
+		int next = pc + 2 + (hi - lo + 1); // after the dispatch
+		// unknown identifiers have no content, so they are read here
+		// until one with content or the end of the area shows up
+		while(pos < limit) {
+		    int id = (int)reader.get(pos, 8);
+		    if(null != trace)
+			trace.tag(pos, id);
+		    pos += 8;
+		    if(id >= lo && id <= hi && c[pc+2+id-lo] >= 0) {
+			next = c[pc+2+id-lo];
+			break;
+		    }
+		}
+		pc = next;
+		break;
+	    }
+	    case STOP:
+		pos = end;
+		pc++;
+		break;
+	    case RET:
+		return pos;
+	    default:
+		throw new IllegalStateException("Bad instruction "+w+" at "+pc);
+	    }
+	}
+    }
+
+    private static boolean test(int cmp, long a, long b) {
+	switch(cmp) {
+	case EQ: return a == b;
+	case NE: return a != b;
+	case LT: return a < b;
+	case LE: return a <= b;
+	case GT: return a > b;
+	default: return a >= b;
+	}
+    }
+}
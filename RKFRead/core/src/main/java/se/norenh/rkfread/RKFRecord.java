@@ -0,0 +1,177 @@
+/*
+ * Copyright 2014 Henning Norén
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package se.norenh.rkfread;
+
+import java.util.AbstractMap;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The decoded values of one application, stored in a single long[] with
+ * the slots given by its RKFLayout.
+ *
+ * A field that was decoded more times than it has slots keeps all its
+ * values, the ones past its slots in an array of its own that grows, so
+ * e.g. an indexed field of a repeated element has each value the old map
+ * had in its list.
+ */
+public final class RKFRecord {
+    private final RKFLayout layout;
+    private final long[] slots;
+    private final int[] added; // number of times each field was decoded
+    private long[][] more = null; // per field, the values past its slots
+    private Map<String,RKFObject> map = null;
+
+    public RKFRecord(final RKFLayout l) {
+	layout = l;
+	slots = new long[l.getSlots()];
+	added = new int[l.getFieldCount()];
+    }
+
+    public RKFLayout getLayout() { return layout; }
+
+    /** Stores a decoded value, returns the slot index used within the field */
+    int add(int field, long value) {
+	int n = added[field]++;
+	int c = layout.getCapacity(field);
+	if(n < c) {
+	    slots[layout.getOffset(field)+n] = value;
+	    return n;
+	}
+	if(null == more) {
+	    more = new long[added.length][];
+	}
+	long[] m = more[field];
+	if(null == m) {
+	    m = more[field] = new long[c];
+	}
+	else if(n-c == m.length) {
+	    m = more[field] = Arrays.copyOf(m, 2*m.length);
+	}
+	m[n-c] = value;
+	return n % c;
+    }
+
+    // the n:th value of the field in decoding order
+    private long value(int field, int n) {
+	int c = layout.getCapacity(field);
+	if(n < c) {
+	    return slots[layout.getOffset(field)+n];
+	}
+	return more[field][n-c];
+    }
+
+    public boolean has(int field) {
+	return added[field] > 0;
+    }
+
+    /** @return number of values of a repeated field, of indexes of an
+	indexed one */
+    public int count(int field) {
+	if(layout.isIndexed(field)) {
+	    return Math.min(added[field], layout.getCapacity(field));
+	}
+	return added[field];
+    }
+
+    /** @return the latest value of the field, 0 if it was never decoded */
+    public long get(int field) {
+	if(0 == added[field])
+	    return 0;
+	return value(field, added[field]-1);
+    }
+
+    public int getInt(int field) {
+	return (int)get(field);
+    }
+
+    /**
+     * For an indexed field this is the latest value of index i, for a
+     * repeated field the i:th value in decoding order (0 is the oldest).
+     */
+    public long get(int field, int i) {
+	int c = layout.getCapacity(field);
+	if(layout.isIndexed(field) && added[field] > c) {
+	    // the index of the last element it is in
+	    return value(field, i + c*((added[field]-1-i)/c));
+	}
+	return value(field, i);
+    }
+
+    public RKFObject.RKFType getType(int field) {
+	return layout.getType(field);
+    }
+
+    /**
+     * View of the record in the old map form, keyed by value name with
+     * repeated values as a linked list of RKFObjects, latest first.
+     */
+    public Map<String,RKFObject> asMap() {
+	if(null == map) {
+	    map = new RecordMap();
+	}
+	return map;
+    }
+
+    private RKFObject getObject(int field, int i) {
+	RKFObject.RKFType t = layout.getType(field);
+	RKFObject o = null;
+	if(layout.isIndexed(field)) {
+	    // the value of the index in each element, latest first
+	    for(int n=i;n<added[field];n+=layout.getCapacity(field)) {
+		o = new RKFObject(value(field, n), t, o);
+	    }
+	    return o;
+	}
+	for(int k=0;k<count(field);k++) {
+	    o = new RKFObject(get(field, k), t, o);
+	}
+	return o;
+    }
+
+    private final class RecordMap extends AbstractMap<String,RKFObject> {
+	@Override
+	public RKFObject get(Object key) {
+	    if(!(key instanceof String))
+		return null;
+	    int r = layout.lookup((String)key);
+	    if(r < 0)
+		return null;
+	    return getObject(r >> 8, r & 0xFF);
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+	    return null != get(key);
+	}
+
+	@Override
+	public Set<Map.Entry<String,RKFObject>> entrySet() {
+	    Map<String,RKFObject> m = new HashMap<String,RKFObject>();
+	    for(int f=0;f<layout.getFieldCount();f++) {
+		int n = layout.isIndexed(f) ? count(f) : Math.min(1, count(f));
+		for(int i=0;i<n;i++) {
+		    m.put(layout.getFieldName(f, i), getObject(f, i));
+		}
+	    }
+	    return m.entrySet();
+	}
+    }
+}
@@ -0,0 +1,493 @@
+/*
+ * Copyright 2014 Henning Norén
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package se.norenh.rkfread;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The RKF layouts and their decoding programs, read from the
+ * rkf-layouts.txt resource the first time a layout is asked for. The
+ * resource documents its own format.
+ */
+final class RKFSchema {
+    private static final String RESOURCE = "rkf-layouts.txt";
+    private static RKFSchema schema = null;
+
+    private final String source;
+    private final List<String[]> lines = new ArrayList<String[]>();
+    private final List<Integer> lineNumbers = new ArrayList<Integer>();
+    private final Map<String,RKFLayout> layouts = new HashMap<String,RKFLayout>();
+    private final Map<String,Integer> registers = new HashMap<String,Integer>();
+
+    // state of the layout being compiled
+    private int line;
+    private RKFLayout.Builder builder;
+    private int[] code;
+    private int size;
+    private int fields; // last FIELDS instruction
+    private List<String> texts;
+
+    static synchronized RKFSchema get() {
+	if(null == schema) {
+	    InputStream in = RKFSchema.class.getResourceAsStream(RESOURCE);
+	    if(null == in) {
+		throw new IllegalStateException("Missing resource "+RESOURCE);
+	    }
+	    try {
+		schema = new RKFSchema(RESOURCE, in);
+	    }
+	    catch(IOException e) {
+		throw new IllegalStateException("Could not read "+RESOURCE, e);
+	    }
+	}
+	return schema;
+    }
+
+    RKFSchema(final String name, final InputStream in) throws IOException {
+	source = name;
+	BufferedReader r = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+	try {
+	    String s;
+	    int n = 0;
+	    while(null != (s = r.readLine())) {
+		n++;
+		String[] t = tokenize(source, s, n);
+		if(t.length > 0) {
+		    lines.add(t);
+		    lineNumbers.add(n);
+		}
+	    }
+	}
+	finally {
+	    r.close();
+	}
+	parse();
+    }
+
+    RKFLayout getLayout(final String key) {
+	RKFLayout l = layouts.get(key);
+	if(null == l) {
+	    throw new IllegalStateException(source+": no layout "+key);
+	}
+	return l;
+    }
+
+    int getRegister(final String name) {
+	Integer r = registers.get(name);
+	if(null == r) {
+	    throw new IllegalStateException(source+": no register "+name);
+	}
+	return r;
+    }
+
+    int getRegisterCount() { return registers.size(); }
+
+    private void parse() {
+	line = 0;
+	while(line < lines.size()) {
+	    String[] t = lines.get(line);
+	    if("register".equals(t[0])) {
+		expect(t, 2);
+		registers.put(t[1], registers.size());
+		line++;
+	    }
+	    else if("layout".equals(t[0])) {
+		parseLayout(t);
+	    }
+	    else {
+		throw error("unexpected "+t[0]);
+	    }
+	}
+    }
+
+    private void parseLayout(final String[] head) {
+	expect(head, 3);
+	if(layouts.containsKey(head[1])) {
+	    throw error("layout "+head[1]+" defined twice");
+	}
+	builder = new RKFLayout.Builder(head[2]);
+	line++;
+	while(line < lines.size() && "field".equals(lines.get(line)[0])) {
+	    parseField(lines.get(line));
+	    line++;
+	}
+	if(line == lines.size() || !"decode".equals(lines.get(line)[0])) {
+	    throw error("expected decode");
+	}
+	line++;
+
+	code = new int[64];
+	size = 0;
+	fields = -1;
+	texts = new ArrayList<String>();
+	String[] t = block();
+	if(!"end".equals(t[0])) {
+	    throw error("unexpected "+t[0]);
+	}
+	emit(RKFProgram.RET);
+	builder.program(new RKFProgram(Arrays.copyOf(code, size), texts.toArray(new String[texts.size()])));
+	layouts.put(head[1], builder.build());
+	builder = null;
+    }
+
+    // field <ID> "<name>" [type] [repeat <n> | indexed <n> from <base>]
+    private void parseField(final String[] t) {
+	if(t.length < 3) {
+	    throw error("field needs an id and a name");
+	}
+	RKFObject.RKFType type = RKFObject.RKFType.Long;
+	int count = 1;
+	int base = -1;
+	int i = 3;
+	if(i < t.length && !"repeat".equals(t[i]) && !"indexed".equals(t[i])) {
+	    try {
+		type = RKFObject.RKFType.valueOf(t[i]);
+	    }
+	    catch(IllegalArgumentException e) {
+		throw error("unknown type "+t[i]);
+	    }
+	    i++;
+	}
+	if(i < t.length && "repeat".equals(t[i]) && i+2 == t.length) {
+	    count = number(t[i+1]);
+	}
+	else if(i < t.length && "indexed".equals(t[i]) && i+4 == t.length && "from".equals(t[i+2])) {
+	    count = number(t[i+1]);
+	    base = number(t[i+3]);
+	    if(!t[2].contains("%d")) {
+		throw error("indexed field name needs a %d");
+	    }
+	}
+	else if(i != t.length) {
+	    throw error("unexpected "+t[i]);
+	}
+	if(count < 1) {
+	    throw error("field needs at least one slot");
+	}
+	if(builder.has(t[1])) {
+	    throw error("field "+t[1]+" defined twice");
+	}
+	builder.field(t[1], t[2], type, count, base);
+    }
+
+    /** Compiles statements up to and including the line that ends the
+	block (end, else or tag), which is returned */
+    private String[] block() {
+	while(line < lines.size()) {
+	    String[] t = lines.get(line);
+	    String s = t[0];
+	    if("end".equals(s) || "else".equals(s) || "tag".equals(s)) {
+		line++;
+		return t;
+	    }
+	    else if("repeat".equals(s)) {
+		expect(t, 2);
+		int n = number(t[1]);
+		int body = ++line;
+		for(int k=0;k<n;k++) {
+		    line = body;
+		    if(!"end".equals(block()[0])) {
+			throw error("repeat must end with end");
+		    }
+		}
+		if(0 == n) {
+		    skipBlock(body);
+		}
+	    }
+	    else if("if".equals(s)) {
+		compileIf(t);
+	    }
+	    else if("tags".equals(s)) {
+		compileTags(t);
+	    }
+	    else if("skip".equals(s)) {
+		int len = bits(t, 1);
+		emit(RKFProgram.SKIP | (len << 8));
+		save(t, 2);
+		line++;
+	    }
+	    else if("advance".equals(s)) {
+		expect(t, 2);
+		emit(RKFProgram.ADVANCE | (operand(t[1]) << 16));
+		line++;
+	    }
+	    else if("at".equals(s)) {
+		expect(t, 2);
+		emit(RKFProgram.AT | (operand(t[1]) << 16));
+		line++;
+	    }
+	    else if("text".equals(s)) {
+		expect(t, 2);
+		texts.add(t[1]);
+		emit(RKFProgram.TEXT | ((texts.size()-1) << 16));
+		line++;
+	    }
+	    else if("stop".equals(s)) {
+		expect(t, 1);
+		emit(RKFProgram.STOP);
+		line++;
+	    }
+	    else if(builder.has(s)) {
+		int f = builder.get(s);
+		int len = bits(t, 1);
+		int w = len | (f << RKFProgram.FIELD_SHIFT);
+		if(RKFObject.RKFType.Amount == builder.getType(f) && 24 == len) {
+		    w |= RKFProgram.FIELD_AMOUNT24;
+		}
+		// add to the FIELDS right before, if nothing came after it
+		if(fields >= 0 && fields+1+((code[fields] >>> 8) & 0xFF) == size
+		   && 0xFF != ((code[fields] >>> 8) & 0xFF)) {
+		    code[fields] += 1 << 8;
+		}
+		else {
+		    fields = emit(RKFProgram.FIELDS | (1 << 8));
+		}
+		emit(w);
+		save(t, 2);
+		line++;
+	    }
+	    else {
+		throw error("unknown field or statement "+s);
+	    }
+	}
+	throw error("missing end");
+    }
+
+    private void skipBlock(int body) {
+	int depth = 0;
+	for(line = body; line < lines.size(); line++) {
+	    String s = lines.get(line)[0];
+	    if("repeat".equals(s) || "if".equals(s) || "tags".equals(s)) {
+		depth++;
+	    }
+	    else if("end".equals(s) && 0 == depth--) {
+		line++;
+		return;
+	    }
+	}
+	throw error("missing end");
+    }
+
+    // if <register> <op> <value> ... [else ...] end
+    private void compileIf(final String[] t) {
+	expect(t, 4);
+	int reg = register(t[1]);
+	int cmp;
+	if("==".equals(t[2])) cmp = RKFProgram.EQ;
+	else if("!=".equals(t[2])) cmp = RKFProgram.NE;
+	else if("<".equals(t[2])) cmp = RKFProgram.LT;
+	else if("<=".equals(t[2])) cmp = RKFProgram.LE;
+	else if(">".equals(t[2])) cmp = RKFProgram.GT;
+	else if(">=".equals(t[2])) cmp = RKFProgram.GE;
+	else throw error("unknown comparison "+t[2]);
+	int value = number(t[3]);
+	line++;
+
+	int at = emit(RKFProgram.IF | (cmp << 8) | (reg << 16));
+	emit(value);
+	emit(0); // else target
+	String[] e = block();
+	if("else".equals(e[0])) {
+	    int jump = emit(RKFProgram.JUMP);
+	    code[at+2] = here();
+	    if(!"end".equals(block()[0])) {
+		throw error("else must end with end");
+	    }
+	    code[jump] |= target(here()) << 16;
+	}
+	else if("end".equals(e[0])) {
+	    code[at+2] = here();
+	}
+	else {
+	    throw error("if must end with end");
+	}
+    }
+
+    // tags <until> / tag <id> ... / end
+    // The bodies come first, each jumping back to the dispatch after them
+    private void compileTags(final String[] t) {
+	expect(t, 2);
+	int until = number(t[1]);
+	line++;
+
+	int[] targets = new int[256];
+	Arrays.fill(targets, -1);
+	List<Integer> jumps = new ArrayList<Integer>();
+	jumps.add(emit(RKFProgram.JUMP));
+	if(line == lines.size()) {
+	    throw error("missing end");
+	}
+	String[] e = lines.get(line++);
+	if(!"tag".equals(e[0]) && !"end".equals(e[0])) {
+	    throw error("expected tag");
+	}
+	while("tag".equals(e[0])) {
+	    expect(e, 2);
+	    int id = number(e[1]);
+	    if(id < 0 || id > 0xFF || targets[id] >= 0) {
+		throw error("bad or repeated tag "+e[1]);
+	    }
+	    targets[id] = here();
+	    e = block();
+	    jumps.add(emit(RKFProgram.JUMP));
+	}
+	if(!"end".equals(e[0])) {
+	    throw error("tags must end with end");
+	}
+
+	int lo = 0xFF;
+	int hi = 0;
+	for(int i=0;i<256;i++) {
+	    if(targets[i] >= 0) {
+		lo = Math.min(lo, i);
+		hi = Math.max(hi, i);
+	    }
+	}
+	if(lo > hi) {
+	    lo = hi = 0;
+	}
+	int dispatch = emit(RKFProgram.TAGS | (lo << 8) | (hi << 16));
+	for(int j : jumps) {
+	    code[j] |= target(dispatch) << 16;
+	}
+	emit(until);
+	for(int i=lo;i<=hi;i++) {
+	    emit(targets[i]);
+	}
+    }
+
+    // length in bits of a field or skip, with an optional "-> register"
+    private int bits(final String[] t, int i) {
+	if(i >= t.length) {
+	    throw error("missing length");
+	}
+	int len = number(t[i]);
+	if(len < 1 || len > 64) {
+	    throw error("length must be 1 to 64");
+	}
+	return len;
+    }
+
+    private void save(final String[] t, int i) {
+	if(i == t.length) {
+	    return;
+	}
+	if(i+2 != t.length || !"->".equals(t[i])) {
+	    throw error("expected -> register");
+	}
+	emit(RKFProgram.SAVE | (register(t[i+1]) << 16));
+    }
+
+    private int register(final String name) {
+	Integer r = registers.get(name);
+	if(null == r) {
+	    throw error("no register "+name);
+	}
+	return r;
+    }
+
+    private int operand(final String s) {
+	int n = number(s);
+	if(n < 0 || n > 0xFFFF) {
+	    throw error("value out of range "+s);
+	}
+	return n;
+    }
+
+    private int target(int pc) {
+	if(pc > 0xFFFF) {
+	    throw error("program too long");
+	}
+	return pc;
+    }
+
+    private int number(final String s) {
+	try {
+	    return Integer.decode(s);
+	}
+	catch(NumberFormatException e) {
+	    throw error("not a number: "+s);
+	}
+    }
+
+    /** @return the next pc, as a jump target no FIELDS may run into it */
+    private int here() {
+	fields = -1;
+	return size;
+    }
+
+    private int emit(int w) {
+	if(size == code.length) {
+	    code = Arrays.copyOf(code, size*2);
+	}
+	code[size] = w;
+	return size++;
+    }
+
+    private void expect(final String[] t, int n) {
+	if(t.length != n) {
+	    throw error(t[0]+" takes "+(n-1)+" arguments");
+	}
+    }
+
+    private IllegalStateException error(final String msg) {
+	int n = lineNumbers.get(Math.min(line, lineNumbers.size()-1));
+	return new IllegalStateException(source+":"+n+": "+msg);
+    }
+
+    /** Words separated by blanks, "quoted" strings and # comments, the
+	format of the bundled data files */
+    static String[] tokenize(final String source, final String s, int n) {
+	List<String> t = new ArrayList<String>();
+	int i = 0;
+	while(i < s.length()) {
+	    char ch = s.charAt(i);
+	    if(Character.isWhitespace(ch)) {
+		i++;
+	    }
+	    else if('#' == ch) {
+		break;
+	    }
+	    else if('"' == ch) {
+		int e = s.indexOf('"', i+1);
+		if(e < 0) {
+		    throw new IllegalStateException(source+":"+n+": missing \"");
+		}
+		t.add(s.substring(i+1, e));
+		i = e+1;
+	    }
+	    else {
+		int e = i;
+		while(e < s.length() && !Character.isWhitespace(s.charAt(e)) && '#' != s.charAt(e)) {
+		    e++;
+		}
+		t.add(s.substring(i, e));
+		i = e;
+	    }
+	}
+	return t.toArray(new String[t.size()]);
+    }
+}
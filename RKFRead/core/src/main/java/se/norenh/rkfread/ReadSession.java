@@ -0,0 +1,79 @@
+/*
+ * Copyright 2014 Henning Norén
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package se.norenh.rkfread;
+
+import java.util.Arrays;
+
+/**
+ * A read of a card that the card left before it was done.
+ *
+ * The sectors read so far are kept in the card for a short WINDOW after
+ * the last of them, so if the same tag comes back in time only the
+ * missing sectors need to be read, without probing for the card type
+ * again. Times are in milliseconds of whatever clock the caller uses.
+ */
+public final class ReadSession {
+    /** How long a session can be resumed after its last read */
+    public static final long WINDOW = 20000;
+
+    private final byte[] uid;
+    private final CardType type;
+    private final RKFCard card;
+    private long failedSectors = 0;
+    private long lastRead;
+
+    public ReadSession(final byte[] u, final CardType t, long now) {
+	uid = u.clone();
+	type = t;
+	card = new RKFCard();
+	lastRead = now;
+    }
+
+    public CardType getType() { return type; }
+    public RKFCard getCard() { return card; }
+
+    /** Whether the tag is the card of this session and it can be resumed */
+    public boolean isResumable(final byte[] u, long now) {
+	return Arrays.equals(uid, u) && now - lastRead <= WINDOW;
+    }
+
+    /** Notes that a sector was read, or given up on, at now */
+    public void touch(long now) {
+	lastRead = now;
+    }
+
+    /** Sectors, as bits, whose key failed in this session */
+    public long getFailedSectors() { return failedSectors; }
+
+    public void sectorFailed(int sector) {
+	failedSectors |= 1L << sector;
+    }
+
+    /** A copy of the sectors read so far, to show while the session can
+	still be resumed and add to its card */
+    public RKFCard copyCard() {
+	// with the sectors it has, so the copy can be shown as a partial read
+	return new RKFCard(card);
+    }
+
+    /** Whether the sector is read or its key failed, so is not read again */
+    public boolean isDone(int sector) {
+	return card.hasSector(sector) || 0 != (failedSectors & (1L << sector));
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright 2014 Henning Norén
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package se.norenh.rkfread;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * A Mifare Classic 1K card in memory, made from a dump and the key A of
+ * each sector, for running reads without a card.
+ *
+ * Nothing waits: every command adds its cost to a simulated clock, so
+ * getElapsed() is how long the tap would have taken. Defaults are rough
+ * figures of a phone at 106 kbit/s. A failed authentication halts a real
+ * card, so it also costs the re-select. With a field loss probability
+ * each command can lose the card, which then fails every command until
+ * connect(), as when the card is tapped again.
+ */
+public final class SimulatedCard implements CardTransport {
+    private static final int BLOCKS_PER_SECTOR = 4;
+
+    private final byte[] uid;
+    private final byte[][] keys;
+    private final byte[] blocks = new byte[RKFCard.SECTORS*BLOCKS_PER_SECTOR*16];
+
+    // costs in microseconds
+    private long connectCost = 10000;
+    private long authCost = 3000;
+    private long readCost = 2000;
+    private long reselectCost = 15000;
+    private double fieldLoss = 0;
+    private Random random = new Random(0);
+
+    private boolean connected = false;
+    private boolean present = true;
+    private int authenticated = -1;
+    private long elapsed = 0;
+    private int auths = 0;
+    private int failedAuths = 0;
+    private int reads = 0;
+
+    /**
+     * @param dump 768 bytes of the data blocks, as RKFCard.bytes, or the
+     *        1024 bytes of the whole card
+     * @param k key A of each sector, null for a sector no key opens
+     */
+    public SimulatedCard(final byte[] u, final byte[] dump, final byte[][] k) {
+	uid = u.clone();
+	keys = new byte[RKFCard.SECTORS][];
+	for(int s=0;s<RKFCard.SECTORS && s<k.length;s++) {
+	    keys[s] = (null == k[s]) ? null : k[s].clone();
+	}
+	if(dump.length >= blocks.length) {
+	    System.arraycopy(dump, 0, blocks, 0, blocks.length);
+	}
+	else {
+	    for(int s=0;s<RKFCard.SECTORS;s++) {
+		System.arraycopy(dump, s*48, blocks, s*BLOCKS_PER_SECTOR*16, 48);
+	    }
+	}
+    }
+
+    /** A card of the type, with the keys its plan reads it with */
+    public static SimulatedCard of(final CardType type, final byte[] uid, final byte[] dump) {
+	KeyPlan plan = KeyPlan.get(type);
+	byte[][] k = new byte[RKFCard.SECTORS][];
+	for(int s=0;null != plan && s<RKFCard.SECTORS;s++) {
+	    k[s] = plan.getKey(s);
+	}
+	return new SimulatedCard(uid, dump, k);
+    }
+
+    /** Costs of selecting the card, an authentication and a block read,
+	in microseconds */
+    public void setLatency(long connect, long auth, long read) {
+	connectCost = connect;
+	authCost = auth;
+	readCost = read;
+    }
+
+    /** Extra cost of a failed authentication, for selecting the card again */
+    public void setReselectCost(long micros) {
+	reselectCost = micros;
+    }
+
+    /** Chance of each command losing the card, drawn from a seeded random */
+    public void setFieldLoss(double probability, long seed) {
+	fieldLoss = probability;
+	random = new Random(seed);
+    }
+
+    /** Simulated time of the commands so far, in microseconds */
+    public long getElapsed() { return elapsed; }
+    public int getAuths() { return auths; }
+    public int getFailedAuths() { return failedAuths; }
+    public int getBlockReads() { return reads; }
+
+    @Override
+    public void connect() throws IOException {
+	elapsed += connectCost;
+	present = true;
+	connected = true;
+	authenticated = -1;
+    }
+
+    @Override
+    public void close() {
+	connected = false;
+	authenticated = -1;
+    }
+
+    @Override
+    public byte[] getUid() {
+	return uid.clone();
+    }
+
+    @Override
+    public int getSectorCount() {
+	return RKFCard.SECTORS;
+    }
+
+    @Override
+    public int sectorToBlock(int sector) {
+	return sector*BLOCKS_PER_SECTOR;
+    }
+
+    @Override
+    public boolean authenticateSectorWithKeyA(int sector, final byte[] key) throws IOException {
+	command(authCost);
+	auths++;
+	if(sector >= 0 && sector < RKFCard.SECTORS && null != keys[sector] && Arrays.equals(keys[sector], key)) {
+	    authenticated = sector;
+	    return true;
+	}
+	failedAuths++;
+	elapsed += reselectCost;
+	authenticated = -1;
+	return false;
+    }
+
+    @Override
+    public byte[] readBlock(int block) throws IOException {
+	command(readCost);
+	if(block/BLOCKS_PER_SECTOR != authenticated) {
+	    throw new IOException("Block "+block+" is not authenticated");
+	}
+	reads++;
+	return Arrays.copyOfRange(blocks, block*16, (block+1)*16);
+    }
+
+    private void command(long cost) throws IOException {
+	if(!connected) {
+	    throw new IOException("Not connected");
+	}
+	if(!present) {
+	    throw new IOException("Tag was lost");
+	}
+	elapsed += cost;
+	if(fieldLoss > 0 && random.nextDouble() < fieldLoss) {
+	    present = false;
+	    authenticated = -1;
+	    throw new IOException("Tag was lost");
+	}
+    }
+}
@@ -0,0 +1,310 @@
+/*
+ * Copyright 2014 Henning Norén
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package se.norenh.rkfread;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * The read of a card on one tap, through a CardTransport so the same read
+ * runs against a phone's reader and a SimulatedCard.
+ *
+ * The card type comes from the type cache or is probed for. A session
+ * the card left on an earlier tap is resumed; a card with a stored dump
+ * only has the sectors read again that its application status (TCAS)
+ * says can have changed. Then the first sector and the directory are
+ * read, and after them the sectors the directory has applications in.
+ */
+public final class TapRead {
+    /** Gets the sectors in the order they are read or taken */
+    public interface Listener {
+	/** blocks is null if the sector could not be read */
+	void onSector(int sector, byte[][] blocks);
+    }
+
+    private static final String NL = System.getProperty("line.separator");
+
+    private final CardTransport tag;
+    private final CardTypeCache typeCache;
+    private final DumpStore dumpStore;
+    private final Listener listener;
+    private ReadSession session;
+    private boolean resumed = false;
+    private CardType cardType = CardType.UNINITIALIZED;
+    private KeyPlan plan = null;
+    private CardTypeCache.Entry known = null; // from the cache, null if probed
+    private RKFCard card = null;
+    private int auths = 0;
+    private long failed = 0;
+    private boolean skippedFailed = false;
+    private int keyed = 0; // sectors with a key, all tried without the cache
+    private int read = 0;
+    private int reused = 0;
+    private final StringBuilder log = new StringBuilder();
+    private final TapStats.Tap times = new TapStats.Tap();
+
+    /**
+     * @param d stored dumps to read changes against and store the card
+     *        in, may be null
+     * @param s the session of an earlier tap that may be of this card,
+     *        may be null
+     * @param l may be null
+     */
+    public TapRead(final CardTransport t, final CardTypeCache c, final DumpStore d,
+		   final ReadSession s, final Listener l) {
+	tag = t;
+	typeCache = c;
+	dumpStore = d;
+	session = s;
+	listener = l;
+    }
+
+    /**
+     * Reads the card, which has to be connected.
+     *
+     * @return false if the card is of no known type
+     * @throws IOException when the card is lost, getSession() then has
+     *         what was read for the next tap
+     */
+    public boolean read() throws IOException {
+	final byte[] uid = tag.getUid();
+
+	if(null != session && session.isResumable(uid, now())) {
+	    // the card left during the last read, only the rest is read
+	    resumed = true;
+	    times.retry();
+	    cardType = session.getType();
+	    plan = KeyPlan.get(cardType);
+	    log.append("Resumed the read of the last tap").append(NL);
+	}
+	else {
+	    session = null;
+	    if(!detectCardType(uid)) {
+		typeCache.countTap(cardType, false, auths, 0);
+		return false;
+	    }
+	    session = new ReadSession(uid, cardType, now());
+	}
+	card = session.getCard();
+	if(!resumed && null != dumpStore) {
+	    final DumpStore.Dump previous = dumpStore.get(uid);
+	    if(null != previous) {
+		reused = readChanges(previous);
+		log.append("Delta read, ").append(reused*3).append(" block reads saved").append(NL);
+	    }
+	}
+	// only read the sectors the card keeps, first the directory and
+	// then the sectors it has applications in
+	int sectors = Math.min(tag.getSectorCount(), RKFCard.SECTORS);
+	for(int sector=0;sector<sectors && sector<RKFCard.DIRECTORY_SECTORS;sector++) {
+	    readSector(sector);
+	}
+	long wanted = card.getSectorsToRead();
+	for(int sector=RKFCard.DIRECTORY_SECTORS;sector<sectors;sector++) {
+	    if(0 != (wanted & (1L << sector))) {
+		readSector(sector);
+	    }
+	    else {
+		// still counted, the skip shows as saved auths
+		if(null != plan.getKey(sector)) {
+		    keyed++;
+		}
+		log.append("Skipped sector ").append(sector).append(", not in the directory").append(NL);
+	    }
+	}
+	if(null != known && 0 == read) {
+	    // same UID but not the card we remember
+	    typeCache.forget(uid);
+	}
+	else {
+	    typeCache.put(uid, cardType, failed, skippedFailed);
+	}
+	session = null;
+	// a sector that failed is zeros in the dump, so only whole reads
+	// are stored
+	if(null != dumpStore && 0 != read && 0 == failed) {
+	    dumpStore.put(uid, System.currentTimeMillis(), card.getSectorsAdded(), card.bytes);
+	}
+	typeCache.countTap(cardType, null != known || resumed, auths, keyed);
+	return true;
+    }
+
+    public CardType getCardType() { return cardType; }
+
+    /** The card as read, null before the type is known */
+    public RKFCard getCard() { return card; }
+
+    /** The session to resume on the next tap, null once the card is read */
+    public ReadSession getSession() { return session; }
+
+    public boolean isResumed() { return resumed; }
+
+    public int getAuths() { return auths; }
+
+    /** Sectors taken from the stored dump instead of read */
+    public int getSectorsReused() { return reused; }
+
+    /** What was skipped and failed, a line each */
+    public String getLog() { return log.toString(); }
+
+    /** How long the probing, authentications and block reads took */
+    public TapStats.Tap getTimes() { return times; }
+
+    private void readSector(int sector) throws IOException {
+	byte[] key = plan.getKey(sector);
+	if(null != key) {
+	    keyed++;
+	}
+	if(session.isDone(sector)) {
+	    // from the last tap or the stored dump
+	    if(card.hasSector(sector)) {
+		byte[][] blocks = new byte[3][];
+		for(int block=0;block<3;block++) {
+		    int start = (sector*48) + (block*16);
+		    blocks[block] = Arrays.copyOfRange(card.bytes, start, start+16);
+		}
+		read++;
+		sectorRead(sector, blocks);
+	    }
+	    else {
+		failed |= 1L << sector;
+		sectorRead(sector, null);
+	    }
+	}
+	else if(null != key && null != known && !known.isRetryDue() && known.hasFailed(sector)) {
+	    // kept as failed until it is tried again
+	    failed |= 1L << sector;
+	    skippedFailed = true;
+	    session.sectorFailed(sector);
+	    log.append("Skipped sector ").append(sector).append(", its key failed before").append(NL);
+	    sectorRead(sector, null);
+	}
+	else if(null != key && authenticate(sector, key)) {
+	    int startBlock = tag.sectorToBlock(sector);
+	    byte[][] blocks = new byte[3][];
+	    for(int block=startBlock;block<(startBlock + 3);block++) {
+		blocks[block%4] = readBlock(sector, block);
+		card.addBlock(sector, (block%4), blocks[block%4]);
+	    }
+	    read++;
+	    session.touch(now());
+	    sectorRead(sector, blocks);
+	}
+	else {
+	    if(null != key) {
+		failed |= 1L << sector;
+		session.sectorFailed(sector);
+	    }
+	    log.append("Failed authenticate sector ").append(sector).append(NL);
+	    sectorRead(sector, null);
+	}
+    }
+
+    private void sectorRead(int sector, final byte[][] blocks) {
+	if(null != listener) {
+	    listener.onSector(sector, blocks);
+	}
+    }
+
+    /**
+     * Reads the application status (TCAS) of a card read before and
+     * takes the sectors that cannot have changed since from the dump
+     * stored then, they are not read again. Nothing is taken if there is
+     * no TCAS or it cannot be read, and sectors the dump does not have
+     * are read as usual, so one that failed before is tried again.
+     *
+     * @return the number of sectors taken from the dump
+     */
+    private int readChanges(final DumpStore.Dump previous) throws IOException {
+	final byte[] dump = previous.bytes;
+	RKFCard stored = new RKFCard(dump);
+	int tcas = stored.getStatusSector();
+	byte[] key = (tcas < 0) ? null : plan.getKey(tcas);
+	if(null == key) {
+	    return 0;
+	}
+	if(!authenticate(tcas, key)) {
+	    session.sectorFailed(tcas);
+	    return 0;
+	}
+	int startBlock = tag.sectorToBlock(tcas);
+	for(int block=startBlock;block<(startBlock + 3);block++) {
+	    card.addBlock(tcas, (block%4), readBlock(tcas, block));
+	}
+	final byte[] status = Arrays.copyOfRange(card.bytes, tcas*48, (tcas+1)*48);
+	long kept = stored.getSectorsToRead() & previous.sectors &
+	    ~stored.getChangedSectors(status) & ~(1L << tcas);
+	for(int sector=0;sector<RKFCard.SECTORS;sector++) {
+	    if(0 == (kept & (1L << sector)))
+		continue;
+	    for(int block=0;block<3;block++) {
+		int start = (sector*48) + (block*16);
+		card.addBlock(sector, block, Arrays.copyOfRange(dump, start, start+16));
+	    }
+	}
+	return Long.bitCount(kept);
+    }
+
+    private boolean authenticate(int sector, final byte[] key) throws IOException {
+	auths++;
+	long start = System.nanoTime();
+	boolean ok = tag.authenticateSectorWithKeyA(sector, key);
+	times.auth(sector, System.nanoTime() - start, ok);
+	return ok;
+    }
+
+    private byte[] readBlock(int sector, int block) throws IOException {
+	long start = System.nanoTime();
+	byte[] b = tag.readBlock(block);
+	times.block(sector, System.nanoTime() - start);
+	return b;
+    }
+
+    private boolean detectCardType(final byte[] uid) throws IOException {
+	known = typeCache.get(uid);
+	if(null != known && null != KeyPlan.get(known.type)) {
+	    // seen before, no need to probe
+	    cardType = known.type;
+	    plan = KeyPlan.get(cardType);
+	    return true;
+	}
+	known = null;
+	long start = System.nanoTime();
+	try {
+	    for(KeyPlan p : typeCache.getProbeOrder()) {
+		if(authenticate(p.getProbeSector(), p.getProbeKey())) {
+		    cardType = p.getType();
+		    plan = p;
+		    return true;
+		}
+	    }
+	}
+	finally {
+	    times.add(TapStats.Phase.PROBE, System.nanoTime() - start);
+	}
+	// we could try brute force of known keys here in the future
+	cardType = CardType.UNKNOWN;
+	return false;
+    }
+
+    // for the session window, which only needs a clock that never goes back
+    private static long now() {
+	return System.nanoTime()/1000000;
+    }
+}
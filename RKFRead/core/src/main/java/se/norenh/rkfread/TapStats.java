@@ -0,0 +1,347 @@
+/*
+ * Copyright 2014 Henning Norén
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package se.norenh.rkfread;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * How long the phases of a tap take, in histograms per card type, to see
+ * where the time of a slow tap went.
+ *
+ * A tap gathers its times in a Tap as it goes, and they are added here
+ * once the card type is known. The histograms are of fixed size with
+ * buckets of an eighth of a power of two, so a percentile is off by at
+ * most 1/16 of its value, and histograms of many phones add up bucket by
+ * bucket. Kept in a small text file between runs, see read() and write(),
+ * which is also what is exported.
+ */
+public final class TapStats {
+    /** The timed phases of a tap */
+    public static enum Phase {
+	/** The whole tap, from the tag found to the card ready to show */
+	TAP,
+	CONNECT,
+	/** Finding the card type of a card not in the type cache */
+	PROBE,
+	/** A sector authentication that succeeded */
+	AUTH,
+	/** A sector authentication with a wrong key */
+	AUTH_FAILED,
+	/** A block read */
+	BLOCK,
+	/** Decoding the card once all is read */
+	PARSE,
+	/** Making the texts to show */
+	RENDER
+    }
+
+    private static final Phase[] PHASES = Phase.values();
+    private static final CardType[] TYPES = CardType.values();
+    // 0-15 us one by one, then 8 buckets a power of two up to 2^26 us
+    private static final int LINEAR = 16;
+    private static final int MAX_EXP = 26;
+    private static final int BUCKETS = LINEAR + (MAX_EXP - 3)*8;
+
+    /** The times of one tap, before its card type is known */
+    public static final class Tap {
+	private final long[][] times = new long[PHASES.length][];
+	private final int[] counts = new int[PHASES.length];
+	// per sector: the last authentication, whether it worked, and the
+	// block reads after it
+	private final long[] sectorAuth = new long[RKFCard.SECTORS];
+	private final long[] sectorRead = new long[RKFCard.SECTORS];
+	private long authed = 0;
+	private long authOk = 0;
+	private int retries = 0;
+
+	public Tap() {
+	    for(int i=0;i<times.length;i++) {
+		times[i] = new long[4];
+	    }
+	}
+
+	/** Adds a time, in ns */
+	public void add(final Phase p, long nanos) {
+	    int i = p.ordinal();
+	    if(counts[i] == times[i].length) {
+		times[i] = Arrays.copyOf(times[i], counts[i]*2);
+	    }
+	    times[i][counts[i]++] = nanos;
+	}
+
+	/** Adds an authentication of a sector and its outcome */
+	public void auth(int sector, long nanos, boolean ok) {
+	    add(ok ? Phase.AUTH : Phase.AUTH_FAILED, nanos);
+	    if(sector < RKFCard.SECTORS) {
+		sectorAuth[sector] = nanos;
+		authed |= 1L << sector;
+		authOk = ok ? (authOk | (1L << sector)) : (authOk & ~(1L << sector));
+	    }
+	}
+
+	/** Adds a block read of a sector */
+	public void block(int sector, long nanos) {
+	    add(Phase.BLOCK, nanos);
+	    if(sector < RKFCard.SECTORS) {
+		sectorRead[sector] += nanos;
+	    }
+	}
+
+	/** Counts a tap that goes on with the read of one before it */
+	public void retry() {
+	    retries++;
+	}
+
+	/** A line per sector authenticated, with the time and outcome of it
+	    and of the block reads after */
+	public String getSectorLog() {
+	    final String nl = System.getProperty("line.separator");
+	    StringBuilder sb = new StringBuilder();
+	    for(int s=0;s<RKFCard.SECTORS;s++) {
+		if(0 == (authed & (1L << s))) {
+		    continue;
+		}
+		sb.append("Sector ").append(s).append(": auth ").append(ms(sectorAuth[s]))
+		    .append(" ms ").append((0 != (authOk & (1L << s))) ? "ok" : "failed");
+		if(0 != sectorRead[s]) {
+		    sb.append(", blocks ").append(ms(sectorRead[s])).append(" ms");
+		}
+		sb.append(nl);
+	    }
+	    return sb.toString();
+	}
+    }
+
+    /** Counts of times in fixed buckets, in us */
+    public static final class Histogram {
+	private final int[] buckets = new int[BUCKETS];
+	private long count = 0;
+	private long sum = 0;
+	private long max = 0;
+
+	public void add(long micros) {
+	    buckets[bucket(micros)]++;
+	    count++;
+	    sum += micros;
+	    max = Math.max(max, micros);
+	}
+
+	public long getCount() { return count; }
+	public long getMax() { return max; }
+
+	public double getMean() {
+	    return (0 == count) ? 0.0 : (double)sum/count;
+	}
+
+	/** The time, in us, that the given share of the times are within,
+	    the middle of its bucket */
+	public long getPercentile(double p) {
+	    if(0 == count) {
+		return 0;
+	    }
+	    long rank = Math.max(1, (long)Math.ceil(p*count));
+	    long seen = 0;
+	    for(int i=0;i<BUCKETS;i++) {
+		seen += buckets[i];
+		if(seen >= rank) {
+		    return Math.min(max, (low(i) + low(i+1))/2);
+		}
+	    }
+	    return max;
+	}
+
+	static int bucket(long v) {
+	    if(v < LINEAR) {
+		return (int)Math.max(v, 0);
+	    }
+	    int e = 63 - Long.numberOfLeadingZeros(v);
+	    if(e > MAX_EXP) {
+		return BUCKETS-1;
+	    }
+	    return LINEAR + (e-4)*8 + (int)((v >>> (e-3)) & 7);
+	}
+
+	// the smallest value of bucket i
+	static long low(int i) {
+	    if(i < LINEAR) {
+		return i;
+	    }
+	    int e = 4 + (i-LINEAR)/8;
+	    return (8L + (i-LINEAR)%8) << (e-3);
+	}
+    }
+
+    private final Histogram[][] histograms = new Histogram[TYPES.length][PHASES.length];
+    private final long[] taps = new long[TYPES.length];
+    private final long[] retries = new long[TYPES.length];
+
+    /** Adds the times of a tap of a card of the given type */
+    public synchronized void add(final CardType type, final Tap t) {
+	int k = type.ordinal();
+	taps[k]++;
+	retries[k] += t.retries;
+	for(int p=0;p<PHASES.length;p++) {
+	    for(int i=0;i<t.counts[p];i++) {
+		get(k, p).add(t.times[p][i]/1000);
+	    }
+	}
+    }
+
+    private Histogram get(int type, int phase) {
+	if(null == histograms[type][phase]) {
+	    histograms[type][phase] = new Histogram();
+	}
+	return histograms[type][phase];
+    }
+
+    /** The histogram of a phase, null if it has no times */
+    public synchronized Histogram getHistogram(final CardType type, final Phase p) {
+	return histograms[type.ordinal()][p.ordinal()];
+    }
+
+    /** A table of the phases of each card type tapped, in ms */
+    public synchronized String getStats() {
+	final String nl = System.getProperty("line.separator");
+	StringBuilder sb = new StringBuilder();
+	for(int k=0;k<TYPES.length;k++) {
+	    if(0 == taps[k]) {
+		continue;
+	    }
+	    sb.append(TYPES[k]).append(": ").append(taps[k]).append(" taps, ")
+		.append(retries[k]).append(" resumed").append(nl);
+	    sb.append("  phase            n     p50     p95     p99     max").append(nl);
+	    for(int p=0;p<PHASES.length;p++) {
+		Histogram h = histograms[k][p];
+		if(null == h) {
+		    continue;
+		}
+		sb.append(String.format("  %-12s %7d %7s %7s %7s %7s", PHASES[p].toString().toLowerCase(Locale.ROOT),
+					h.getCount(), ms(1000*h.getPercentile(0.50)), ms(1000*h.getPercentile(0.95)),
+					ms(1000*h.getPercentile(0.99)), ms(1000*h.getMax()))).append(nl);
+	    }
+	}
+	return sb.toString();
+    }
+
+    private static String ms(long nanos) {
+	return String.format("%.1f", nanos/1e6);
+    }
+
+    /**
+     * Reads what write() wrote, adding to the times already here, lines of
+     *
+     *   taps <type> <taps> <resumed>
+     *   hist <type> <phase> <count> <sum> <max> <bucket>:<count>...
+     *
+     * with the times in us. Unknown lines, types and phases are skipped
+     * so an old file never stops a card from being read.
+     */
+    public synchronized void read(final InputStream in) throws IOException {
+	BufferedReader r = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+	try {
+	    String s;
+	    int n = 0;
+	    while(null != (s = r.readLine())) {
+		n++;
+		String[] w = RKFSchema.tokenize("tap stats", s, n);
+		try {
+		    if(4 == w.length && "taps".equals(w[0])) {
+			int k = CardType.valueOf(w[1]).ordinal();
+			taps[k] += Long.parseLong(w[2]);
+			retries[k] += Long.parseLong(w[3]);
+		    }
+		    else if(w.length >= 6 && "hist".equals(w[0])) {
+			readHistogram(w);
+		    }
+		}
+		catch(IllegalArgumentException e) {
+		    // skipped, see above
+		}
+	    }
+	}
+	finally {
+	    r.close();
+	}
+    }
+
+    private void readHistogram(final String[] w) {
+	int k = CardType.valueOf(w[1]).ordinal();
+	int p = Phase.valueOf(w[2]).ordinal();
+	// parsed in full first, a bad line adds nothing
+	int[] b = new int[BUCKETS];
+	for(int i=6;i<w.length;i++) {
+	    int c = w[i].indexOf(':');
+	    if(c < 0) {
+		throw new IllegalArgumentException(w[i]);
+	    }
+	    int bucket = Integer.parseInt(w[i].substring(0, c));
+	    if(bucket < 0 || bucket >= BUCKETS) {
+		throw new IllegalArgumentException(w[i]);
+	    }
+	    b[bucket] += Integer.parseInt(w[i].substring(c+1));
+	}
+	long count = Long.parseLong(w[3]);
+	long sum = Long.parseLong(w[4]);
+	long max = Long.parseLong(w[5]);
+	Histogram h = get(k, p);
+	for(int i=0;i<BUCKETS;i++) {
+	    h.buckets[i] += b[i];
+	}
+	h.count += count;
+	h.sum += sum;
+	h.max = Math.max(h.max, max);
+    }
+
+    public synchronized void write(final OutputStream out) throws IOException {
+	Writer w = new OutputStreamWriter(out, "UTF-8");
+	try {
+	    for(int k=0;k<TYPES.length;k++) {
+		if(0 != taps[k]) {
+		    w.write("taps "+TYPES[k]+" "+taps[k]+" "+retries[k]+"\n");
+		}
+		for(int p=0;p<PHASES.length;p++) {
+		    Histogram h = histograms[k][p];
+		    if(null == h) {
+			continue;
+		    }
+		    StringBuilder sb = new StringBuilder();
+		    sb.append("hist ").append(TYPES[k]).append(' ').append(PHASES[p]).append(' ')
+			.append(h.count).append(' ').append(h.sum).append(' ').append(h.max);
+		    for(int i=0;i<BUCKETS;i++) {
+			if(0 != h.buckets[i]) {
+			    sb.append(' ').append(i).append(':').append(h.buckets[i]);
+			}
+		    }
+		    w.write(sb.append('\n').toString());
+		}
+	    }
+	}
+	finally {
+	    w.close();
+	}
+    }
+}
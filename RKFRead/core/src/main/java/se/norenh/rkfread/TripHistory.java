@@ -0,0 +1,423 @@
+/*
+ * Copyright 2014 Henning Norén
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package se.norenh.rkfread;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TimeZone;
+import java.util.TreeMap;
+
+/**
+ * The trips of the cards read, built up from their event logs and
+ * tickets on every tap.
+ *
+ * A card only keeps its last three events and two tickets, so each tap
+ * merges them into the history of the card, skipping those it already
+ * has. The records of a card are kept in columns of primitives sorted
+ * by time, which is the index: a time range is two binary searches and
+ * what is summed over it is read straight from the columns.
+ *
+ * Times are seconds from 1997-01-01 00:00 on the wall clock of the card,
+ * as RKFFormat shows them. Kept between runs with write() and read().
+ */
+public final class TripHistory {
+    /** Cards remembered, the least recently seen are dropped first */
+    public static final int MAX_CARDS = 64;
+    /** Records kept of a card, the oldest are dropped first */
+    public static final int MAX_RECORDS = 4096;
+
+    /** A record of the event log (TCEL) */
+    public static final int EVENT = 0;
+    /** A ticket (TCTI dynamic data or TCST) */
+    public static final int TICKET = 1;
+
+    private static final int MAGIC = 0x524b4648; // "RKFH"
+    private static final int VERSION = 1;
+    private static final int DAY = 24*60*60;
+
+    /** A record, as handed out by getTrips() */
+    public static final class Trip {
+	public final int time;
+	/** EVENT or TICKET */
+	public final int kind;
+	public final int aid;
+	/** Device of an event, 0 for a ticket */
+	public final int device;
+	/** Event code, 0 for a ticket */
+	public final int code;
+	/** Event data, or the price of a ticket in minor units */
+	public final int value;
+	/** Origin and destination place of a ticket, 0 for an event */
+	public final int origin;
+	public final int destination;
+
+	Trip(int t, int k, int a, int dev, int c, int v, int o, int d) {
+	    time = t;
+	    kind = k;
+	    aid = a;
+	    device = dev;
+	    code = c;
+	    value = v;
+	    origin = o;
+	    destination = d;
+	}
+
+	/** yyyy/MM/dd HH:mm:ss */
+	public String getTimeString() {
+	    return RKFFormat.date(time/DAY)+" "+RKFFormat.time(packTime(time % DAY));
+	}
+    }
+
+    /** The records of a card, one array per field, sorted by time */
+    private static final class Card {
+	int n = 0;
+	int[] time = new int[8];
+	byte[] kind = new byte[8];
+	short[] aid = new short[8];
+	int[] device = new int[8];
+	int[] code = new int[8];
+	int[] value = new int[8];
+	int[] origin = new int[8];
+	int[] destination = new int[8];
+
+	void grow() {
+	    int c = time.length*2;
+	    time = Arrays.copyOf(time, c);
+	    kind = Arrays.copyOf(kind, c);
+	    aid = Arrays.copyOf(aid, c);
+	    device = Arrays.copyOf(device, c);
+	    code = Arrays.copyOf(code, c);
+	    value = Arrays.copyOf(value, c);
+	    origin = Arrays.copyOf(origin, c);
+	    destination = Arrays.copyOf(destination, c);
+	}
+
+	/** Adds a record unless the card has it, returns true if added */
+	boolean add(int t, int k, int a, int dev, int c, int v, int o, int d) {
+	    int i = upper(t);
+	    // records of the same second are after the upper bound of those before
+	    for(int j=i-1;j>=0 && time[j] == t;j--) {
+		if(kind[j] == k && aid[j] == (short)a && device[j] == dev && code[j] == c &&
+		   value[j] == v && origin[j] == o && destination[j] == d) {
+		    return false;
+		}
+	    }
+	    if(n == MAX_RECORDS) {
+		if(0 == i) {
+		    return false; // older than all that are kept
+		}
+		remove(0);
+		i--;
+	    }
+	    if(n == time.length) {
+		grow();
+	    }
+	    int m = n - i;
+	    System.arraycopy(time, i, time, i+1, m);
+	    System.arraycopy(kind, i, kind, i+1, m);
+	    System.arraycopy(aid, i, aid, i+1, m);
+	    System.arraycopy(device, i, device, i+1, m);
+	    System.arraycopy(code, i, code, i+1, m);
+	    System.arraycopy(value, i, value, i+1, m);
+	    System.arraycopy(origin, i, origin, i+1, m);
+	    System.arraycopy(destination, i, destination, i+1, m);
+	    time[i] = t;
+	    kind[i] = (byte)k;
+	    aid[i] = (short)a;
+	    device[i] = dev;
+	    code[i] = c;
+	    value[i] = v;
+	    origin[i] = o;
+	    destination[i] = d;
+	    n++;
+	    return true;
+	}
+
+	private void remove(int i) {
+	    int m = n - i - 1;
+	    System.arraycopy(time, i+1, time, i, m);
+	    System.arraycopy(kind, i+1, kind, i, m);
+	    System.arraycopy(aid, i+1, aid, i, m);
+	    System.arraycopy(device, i+1, device, i, m);
+	    System.arraycopy(code, i+1, code, i, m);
+	    System.arraycopy(value, i+1, value, i, m);
+	    System.arraycopy(origin, i+1, origin, i, m);
+	    System.arraycopy(destination, i+1, destination, i, m);
+	    n--;
+	}
+
+	/** Index of the first record at or after t */
+	int lower(int t) {
+	    int lo = 0, hi = n;
+	    while(lo < hi) {
+		int mid = (lo + hi) >>> 1;
+		if(time[mid] < t)
+		    lo = mid+1;
+		else
+		    hi = mid;
+	    }
+	    return lo;
+	}
+
+	/** Index of the first record after t */
+	int upper(int t) {
+	    return (t == Integer.MAX_VALUE) ? n : lower(t+1);
+	}
+    }
+
+    private final LinkedHashMap<String,Card> cards = new LinkedHashMap<String,Card>(16, 0.75f, true) {
+	@Override
+	protected boolean removeEldestEntry(Map.Entry<String,TripHistory.Card> eldest) {
+	    return size() > MAX_CARDS;
+	}
+    };
+
+    /**
+     * Merges the event log and tickets of a parsed card into its history.
+     *
+     * @return the number of records that were new
+     */
+    public synchronized int merge(final byte[] uid, final RKFCard c) {
+	String key = CardTypeCache.toHex(uid);
+	Card h = cards.get(key);
+	if(null == h) {
+	    h = new Card();
+	}
+	int added = 0;
+	final RKFRecord e = c.getEventLog();
+	for(int i : c.getEventLogOrder()) {
+	    int date = (int)e.get(RKFLayout.TCEL.EVENT_DATE_STAMP, i);
+	    int time = (int)e.get(RKFLayout.TCEL.EVENT_TIME_STAMP, i);
+	    int code = (int)e.get(RKFLayout.TCEL.EVENT_CODE, i);
+	    if(0 == date && 0 == time && 0 == code)
+		continue; // never written
+	    if(h.add(date*DAY + seconds(time), EVENT, (int)e.get(RKFLayout.TCEL.AID, i),
+		     (int)e.get(RKFLayout.TCEL.DEVICE, i), code, (int)e.get(RKFLayout.TCEL.EVENT_DATA, i), 0, 0))
+		added++;
+	}
+	// the older copy first, as the log
+	added += addTicket(h, c.getDynTicketOld());
+	added += addTicket(h, c.getDynTicket());
+	final RKFRecord st = c.getSpecialTicket();
+	if(null != st && st.has(RKFLayout.TCST.JOURNEY_ORIGIN_DATE)) {
+	    int t = (int)(RKFFormat.wallMinutes(st.getInt(RKFLayout.TCST.JOURNEY_ORIGIN_DATE))*60);
+	    if(h.add(t, TICKET, st.getInt(RKFLayout.TCST.AID), 0, 0, st.getInt(RKFLayout.TCST.PRICE),
+		     st.getInt(RKFLayout.TCST.JOURNEY_ORIGIN_PLACE), st.getInt(RKFLayout.TCST.JOURNEY_DESTINATION_PLACE)))
+		added++;
+	}
+	if(0 != h.n) {
+	    cards.put(key, h);
+	}
+	return added;
+    }
+
+    private static int addTicket(final Card h, final RKFRecord t) {
+	if(null == t || !t.has(RKFLayout.Dynamic.VALIDATION_LAST_DATE) ||
+	   0 == t.getInt(RKFLayout.Dynamic.VALIDATION_LAST_DATE)) {
+	    return 0;
+	}
+	int time = t.getInt(RKFLayout.Dynamic.VALIDATION_LAST_DATE)*DAY +
+	    seconds(t.getInt(RKFLayout.Dynamic.VALIDATION_LAST_TIME));
+	return h.add(time, TICKET, t.getInt(RKFLayout.Dynamic.AID), 0, 0, t.getInt(RKFLayout.Dynamic.PRICE),
+		     t.getInt(RKFLayout.Dynamic.JOURNEY_ORIGIN_PLACE),
+		     t.getInt(RKFLayout.Dynamic.JOURNEY_DESTINATION_PLACE)) ? 1 : 0;
+    }
+
+    /** Number of records of a card */
+    public synchronized int size(final byte[] uid) {
+	Card h = cards.get(CardTypeCache.toHex(uid));
+	return (null == h) ? 0 : h.n;
+    }
+
+    /** The records of a card from from to before to, oldest first */
+    public synchronized List<Trip> getTrips(final byte[] uid, int from, int to) {
+	Card h = cards.get(CardTypeCache.toHex(uid));
+	List<Trip> l = new ArrayList<Trip>();
+	if(null == h) {
+	    return l;
+	}
+	for(int i=h.lower(from);i<h.n && h.time[i] < to;i++) {
+	    l.add(new Trip(h.time[i], h.kind[i], h.aid[i] & 0xFFFF, h.device[i], h.code[i], h.value[i],
+			   h.origin[i], h.destination[i]));
+	}
+	return l;
+    }
+
+    /** Number of records of a card from from to before to */
+    public synchronized int count(final byte[] uid, int from, int to) {
+	Card h = cards.get(CardTypeCache.toHex(uid));
+	if(null == h) {
+	    return 0;
+	}
+	return Math.max(0, h.lower(to) - h.lower(from));
+    }
+
+    /**
+     * The prices of the tickets of a card from from to before to, summed
+     * per month.
+     *
+     * @return minor units of the card's currency by year*100 + month
+     */
+    public synchronized SortedMap<Integer,Long> getSpendPerMonth(final byte[] uid, int from, int to) {
+	SortedMap<Integer,Long> m = new TreeMap<Integer,Long>();
+	Card h = cards.get(CardTypeCache.toHex(uid));
+	if(null == h) {
+	    return m;
+	}
+	int month = -1;
+	long sum = 0;
+	for(int i=h.lower(from);i<h.n && h.time[i] < to;i++) {
+	    if(TICKET != h.kind[i])
+		continue;
+	    int ym = RKFFormat.yearMonth(h.time[i]/DAY);
+	    if(ym != month) {
+		if(month >= 0)
+		    m.put(month, sum);
+		month = ym;
+		sum = 0;
+	    }
+	    sum += h.value[i];
+	}
+	if(month >= 0)
+	    m.put(month, sum);
+	return m;
+    }
+
+    /** A time as used here of an instant in ms from 1970, for query
+	ranges such as the last 90 days */
+    public static int toTime(long millis) {
+	long wall = millis + TimeZone.getDefault().getOffset(millis);
+	return (int)(wall/1000 - (long)RKFFormat.DATE_EPOCH*DAY);
+    }
+
+    /** Reads what write() wrote, replacing the history. A file of
+	another version is skipped so it never stops a card from being
+	read. */
+    public synchronized void read(final InputStream in) throws IOException {
+	DataInputStream d = new DataInputStream(new BufferedInputStream(in));
+	try {
+	    if(MAGIC != d.readInt() || VERSION != d.readInt())
+		return;
+	    int count = d.readInt();
+	    cards.clear();
+	    for(int c=0;c<count;c++) {
+		byte[] uid = new byte[d.readUnsignedByte()];
+		d.readFully(uid);
+		Card h = new Card();
+		int n = d.readInt();
+		if(n < 0 || n > MAX_RECORDS) {
+		    throw new IOException("Bad trip history, "+n+" records");
+		}
+		while(h.time.length < n) {
+		    h.grow();
+		}
+		readInts(d, h.time, n);
+		d.readFully(h.kind, 0, n);
+		for(int i=0;i<n;i++) {
+		    h.aid[i] = d.readShort();
+		}
+		readInts(d, h.device, n);
+		readInts(d, h.code, n);
+		readInts(d, h.value, n);
+		readInts(d, h.origin, n);
+		readInts(d, h.destination, n);
+		h.n = n;
+		cards.put(CardTypeCache.toHex(uid), h);
+	    }
+	}
+	finally {
+	    d.close();
+	}
+    }
+
+    /** Writes the history a column at a time, least recently seen card
+	first so reading it back keeps the order */
+    public synchronized void write(final OutputStream out) throws IOException {
+	DataOutputStream d = new DataOutputStream(new BufferedOutputStream(out));
+	try {
+	    d.writeInt(MAGIC);
+	    d.writeInt(VERSION);
+	    d.writeInt(cards.size());
+	    Iterator<Map.Entry<String,Card>> it = cards.entrySet().iterator();
+	    while(it.hasNext()) {
+		Map.Entry<String,Card> e = it.next();
+		byte[] uid = fromHex(e.getKey());
+		d.writeByte(uid.length);
+		d.write(uid);
+		Card h = e.getValue();
+		int n = h.n;
+		d.writeInt(n);
+		writeInts(d, h.time, n);
+		d.write(h.kind, 0, n);
+		for(int i=0;i<n;i++) {
+		    d.writeShort(h.aid[i]);
+		}
+		writeInts(d, h.device, n);
+		writeInts(d, h.code, n);
+		writeInts(d, h.value, n);
+		writeInts(d, h.origin, n);
+		writeInts(d, h.destination, n);
+	    }
+	}
+	finally {
+	    d.close();
+	}
+    }
+
+    private static void readInts(final DataInputStream d, final int[] a, int n) throws IOException {
+	for(int i=0;i<n;i++) {
+	    a[i] = d.readInt();
+	}
+    }
+
+    private static void writeInts(final DataOutputStream d, final int[] a, int n) throws IOException {
+	for(int i=0;i<n;i++) {
+	    d.writeInt(a[i]);
+	}
+    }
+
+    // seconds of the day of a packed time: hours, minutes and seconds/2
+    private static int seconds(int packed) {
+	return ((packed >> 11) & 0x1F)*3600 + ((packed >> 5) & 0x3F)*60 + (packed & 0x1F)*2;
+    }
+
+    private static int packTime(int s) {
+	return ((s/3600) << 11) | (((s/60) % 60) << 5) | ((s % 60)/2);
+    }
+
+    private static byte[] fromHex(final String s) {
+	byte[] b = new byte[s.length()/2];
+	for(int i=0;i<b.length;i++) {
+	    b[i] = (byte)Integer.parseInt(s.substring(2*i, 2*i+2), 16);
+	}
+	return b;
+    }
+}
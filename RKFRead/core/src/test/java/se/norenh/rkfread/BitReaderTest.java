@@ -0,0 +1,185 @@
+/*
+ * Copyright 2014 Henning Norén
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package se.norenh.rkfread;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class BitReaderTest {
+    private static final int DUMP = RKFCard.SECTORS*48;
+
+    private static byte[] random(int length, long seed) {
+	byte[] b = new byte[length];
+	new Random(seed).nextBytes(b);
+	return b;
+    }
+
+    /** The byte loop of RKFCard.getLongFromPos that BitReader replaced,
+	exact for fields of up to 57 bits at any bit offset */
+    private static long byteLoop(final byte[] bytes, int pos, int length) {
+	int sByte, eByte, sBit, eBits, mask;
+	long r;
+	sByte = pos/8;          // get start byte
+	eByte = (pos+length)/8; // get end byte
+
+	sBit = pos % 8;             // Find what bit to start on
+	eBits = (pos + length) % 8; // number of bits to read for last byte
+
+	// process first byte
+	mask = (0xFF << sBit) & 0xFF;
+	if(sByte == eByte) {
+	    mask = (0xFF >> 8-eBits) & mask;
+	    return (bytes[sByte] & mask) >> sBit;
+	}
+	r = (bytes[sByte] & mask) >> sBit;
+
+	// build up long from whole bytes
+	int bPos = 1;
+	for(int i = sByte+1; i < eByte; i++) {
+	    r = ((long)(bytes[i] & 0xFF) << ((bPos*8)-sBit)) | r;
+	    bPos++;
+	}
+
+	// add last bits
+	if(0 == eBits)    // if there is zero bits left to read we are done
+	    return r;
+	else
+	    mask = (0xFF >> (8-eBits));
+	r = ((long)(bytes[eByte] & mask) << ((bPos*8)-sBit)) | r;
+
+	return r;
+    }
+
+    // one bit at a time, for the lengths the byte loop cannot do
+    private static long bitLoop(final byte[] bytes, int pos, int length) {
+	long r = 0;
+	for(int i=0;i<length;i++) {
+	    int p = pos + i;
+	    r |= (long)((bytes[p/8] >> (p%8)) & 1) << i;
+	}
+	return r;
+    }
+
+    // the dump with a trailer of garbage after each sector, as in a
+    // whole card image, at offset in a larger buffer
+    private static ByteBuffer withTrailers(final byte[] dump, int offset) {
+	ByteBuffer b = ByteBuffer.allocate(offset + (dump.length/48)*64 + 16);
+	byte[] garbage = random(b.capacity(), 99);
+	b.put(garbage);
+	for(int s=0;s<dump.length/48;s++) {
+	    b.position(offset + s*64);
+	    b.put(dump, s*48, 48);
+	}
+	b.clear();
+	return b;
+    }
+
+    private static void assertSameFields(final byte[] dump, final BitReader r, int maxLength) {
+	int bits = dump.length*8;
+	for(int pos=0;pos<bits;pos++) {
+	    for(int len=0;len<=maxLength && pos+len<=bits;len++) {
+		long expected = (len <= 57) ? byteLoop(dump, pos, len) : bitLoop(dump, pos, len);
+		long got = r.get(pos, len);
+		if(expected != got) {
+		    assertEquals("bits "+pos+"/"+len, expected, got);
+		}
+	    }
+	}
+    }
+
+    @Test
+    public void matchesTheByteLoopOnWords() {
+	byte[] dump = random(DUMP, 1);
+	assertSameFields(dump, new BitReader(dump), 64);
+    }
+
+    @Test
+    public void matchesTheByteLoopOnABuffer() {
+	byte[] dump = random(DUMP, 2);
+	ByteBuffer b = ByteBuffer.allocateDirect(DUMP);
+	b.put(dump);
+	assertSameFields(dump, new BitReader(b, 0, DUMP, false), 64);
+    }
+
+    @Test
+    public void skipsTheSectorTrailers() {
+	byte[] dump = random(DUMP, 3);
+	assertSameFields(dump, new BitReader(withTrailers(dump, 0), 0, DUMP, true), 64);
+	assertSameFields(dump, new BitReader(withTrailers(dump, 13), 13, DUMP, true), 64);
+    }
+
+    @Test
+    public void readsAPartOfAnArray() {
+	// lengths that are no whole number of words, so the last word of
+	// the reader is only partly filled
+	byte[] b = random(64, 4);
+	for(int length=1;length<=20;length++) {
+	    byte[] part = new byte[length];
+	    System.arraycopy(b, 5, part, 0, length);
+	    BitReader r = new BitReader(b, 5, length);
+	    assertEquals(length*8, r.length());
+	    assertSameFields(part, r, 64);
+	}
+    }
+
+    @Test
+    public void readsUpToTheLastBit() {
+	byte[] dump = random(DUMP, 5);
+	BitReader r = new BitReader(dump);
+	assertEquals(bitLoop(dump, DUMP*8-64, 64), r.get(DUMP*8-64, 64));
+	assertEquals((dump[DUMP-1] >> 7) & 1, r.get(DUMP*8-1, 1));
+	assertEquals(0, r.get(DUMP*8, 0));
+    }
+
+    private static void assertRefused(final BitReader r, int pos, int length) {
+	try {
+	    r.get(pos, length);
+	    fail("bits "+pos+"/"+length+" read from a dump of "+r.length());
+	}
+	catch(IndexOutOfBoundsException e) {
+	    // expected
+	}
+    }
+
+    @Test
+    public void refusesFieldsPastTheEnd() {
+	byte[] dump = random(DUMP, 6);
+	ByteBuffer b = ByteBuffer.allocate(DUMP);
+	b.put(dump);
+	BitReader[] readers = { new BitReader(dump), new BitReader(b, 0, DUMP, false),
+				new BitReader(withTrailers(dump, 0), 0, DUMP, true) };
+	for(BitReader r : readers) {
+	    assertRefused(r, DUMP*8-8, 9);
+	    assertRefused(r, DUMP*8-1, 64);
+	    assertRefused(r, DUMP*8, 1);
+	    assertRefused(r, -1, 8);
+	}
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void refusesADumpOutsideTheBuffer() {
+	// with the trailers of its sectors the dump takes 1024 bytes
+	new BitReader(ByteBuffer.allocate(DUMP + 200), 0, DUMP, true);
+    }
+}
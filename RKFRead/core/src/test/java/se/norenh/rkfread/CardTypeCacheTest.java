@@ -0,0 +1,185 @@
+/*
+ * Copyright 2014 Henning Norén
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package se.norenh.rkfread;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class CardTypeCacheTest {
+    private static byte[] uid(int card) {
+	return new byte[] { 0x04, (byte)(card >> 8), (byte)card, 0x7F };
+    }
+
+    private static CardTypeCache copy(final CardTypeCache c) throws IOException {
+	ByteArrayOutputStream out = new ByteArrayOutputStream();
+	c.write(out);
+	CardTypeCache r = new CardTypeCache();
+	r.read(new ByteArrayInputStream(out.toByteArray()));
+	return r;
+    }
+
+    private static CardTypeCache read(final String s) throws IOException {
+	CardTypeCache c = new CardTypeCache();
+	c.read(new ByteArrayInputStream(s.getBytes("UTF-8")));
+	return c;
+    }
+
+    @Test
+    public void retriesFailedSectorsAfterSkippedTaps() {
+	CardTypeCache c = new CardTypeCache();
+	long failed = 1L << 4;
+	c.put(uid(1), CardType.SL, failed, false);
+	assertEquals(0, c.get(uid(1)).skips);
+	for(int tap=1;tap<=CardTypeCache.RETRY_FAILED;tap++) {
+	    assertFalse("tap "+tap, c.get(uid(1)).isRetryDue());
+	    c.put(uid(1), CardType.SL, failed, true);
+	    assertEquals(tap, c.get(uid(1)).skips);
+	}
+	CardTypeCache.Entry e = c.get(uid(1));
+	assertTrue(e.isRetryDue());
+	assertTrue(e.hasFailed(4));
+	assertFalse(e.hasFailed(5));
+
+	// the retry read the sector, it is not skipped any more
+	c.put(uid(1), CardType.SL, 0, false);
+	e = c.get(uid(1));
+	assertEquals(0, e.failedSectors);
+	assertEquals(0, e.skips);
+	assertFalse(e.isRetryDue());
+    }
+
+    @Test
+    public void retryThatFailsAgainStartsOver() {
+	CardTypeCache c = new CardTypeCache();
+	c.put(uid(1), CardType.SL, 1L << 4, false);
+	for(int tap=0;tap<CardTypeCache.RETRY_FAILED;tap++) {
+	    c.put(uid(1), CardType.SL, 1L << 4, true);
+	}
+	// tried and failed again, so skipped for another RETRY_FAILED taps
+	c.put(uid(1), CardType.SL, 1L << 4, false);
+	assertEquals(0, c.get(uid(1)).skips);
+	assertTrue(c.get(uid(1)).hasFailed(4));
+    }
+
+    @Test
+    public void skippedOnANewCardIsNotCounted() {
+	CardTypeCache c = new CardTypeCache();
+	c.put(uid(1), CardType.JOJO, 1L << 2, true);
+	assertEquals(0, c.get(uid(1)).skips);
+    }
+
+    @Test
+    public void writesAndReadsBack() throws IOException {
+	CardTypeCache c = new CardTypeCache();
+	c.put(uid(1), CardType.SL, 0, false);
+	c.put(uid(2), CardType.JOJO, 0x8030L, false);
+	c.put(uid(2), CardType.JOJO, 0x8030L, true);
+	c.put(uid(2), CardType.JOJO, 0x8030L, true);
+	c.put(uid(3), CardType.SL, 0, false);
+	c.countTap(CardType.SL, true, 12, 14);
+	c.countTap(CardType.UNKNOWN, false, 6, 0);
+
+	CardTypeCache r = copy(c);
+	for(int card=1;card<=3;card++) {
+	    CardTypeCache.Entry a = c.get(uid(card));
+	    CardTypeCache.Entry b = r.get(uid(card));
+	    assertNotNull("card "+card, b);
+	    assertEquals(a.type, b.type);
+	    assertEquals(a.failedSectors, b.failedSectors);
+	    assertEquals(a.skips, b.skips);
+	}
+	assertEquals(2, r.get(uid(2)).skips);
+	assertEquals(c.getProbeOrder(), r.getProbeOrder());
+	assertEquals(CardType.JOJO, r.getProbeOrder().get(0).getType());
+	assertEquals(2, r.getTaps());
+	assertEquals(1, r.getHits());
+	assertEquals(18, r.getAuths());
+	assertEquals(c.getAuthsSaved(), r.getAuthsSaved());
+	assertEquals(c.getStats(), r.getStats());
+    }
+
+    @Test
+    public void readsCardLinesWithoutSkips() throws IOException {
+	CardTypeCache c = read("seen SL 3\n"+
+			       "card 0400017f SL 10\n"+
+			       "card 0400027f JOJO 0\n"+
+			       "stats 3 2 30 12\n");
+	CardTypeCache.Entry e = c.get(uid(1));
+	assertEquals(CardType.SL, e.type);
+	assertEquals(0x10, e.failedSectors);
+	assertEquals(0, e.skips);
+	assertFalse(e.isRetryDue());
+	assertEquals(CardType.JOJO, c.get(uid(2)).type);
+	assertEquals(3, c.getTaps());
+
+	// a skip on it counts from there
+	c.put(uid(1), CardType.SL, 0x10, true);
+	assertEquals(1, c.get(uid(1)).skips);
+    }
+
+    @Test
+    public void skipsLinesItDoesNotKnow() throws IOException {
+	CardTypeCache c = read("# a comment\n"+
+			       "card 0400017f NO_SUCH_TYPE 0\n"+
+			       "card 0400027f SL zz\n"+
+			       "card 0400037f SL 0 many\n"+
+			       "card 0400047f SL\n"+
+			       "flags 1 2 3\n"+
+			       "\n"+
+			       "card 0400057f SL 4 2\n");
+	for(int card=1;card<=4;card++) {
+	    assertNull("card "+card, c.get(uid(card)));
+	}
+	assertEquals(2, c.get(uid(5)).skips);
+    }
+
+    @Test
+    public void keepsTheLeastRecentlySeenOrder() throws IOException {
+	CardTypeCache c = new CardTypeCache();
+	for(int card=0;card<CardTypeCache.MAX_CARDS;card++) {
+	    c.put(uid(card), CardType.SL, 0, false);
+	}
+	// card 0 is seen again, card 1 is then the one seen longest ago
+	c.get(uid(0));
+
+	CardTypeCache r = copy(c);
+	r.put(uid(CardTypeCache.MAX_CARDS), CardType.SL, 0, false);
+	assertNotNull(r.get(uid(0)));
+	assertNull(r.get(uid(1)));
+	assertNotNull(r.get(uid(2)));
+
+	// the gets above saw cards 0 and 2 again, so card 3 goes next
+	// after another write and read
+	r = copy(r);
+	r.put(uid(CardTypeCache.MAX_CARDS+1), CardType.SL, 0, false);
+	assertNull(r.get(uid(3)));
+	for(int card=4;card<=CardTypeCache.MAX_CARDS+1;card++) {
+	    assertNotNull("card "+card, r.get(uid(card)));
+	}
+    }
+}
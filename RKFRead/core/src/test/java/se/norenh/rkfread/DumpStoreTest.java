@@ -0,0 +1,200 @@
+/*
+ * Copyright 2014 Henning Norén
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package se.norenh.rkfread;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class DumpStoreTest {
+    private static final int CAPACITY = 8;
+    private static final long ALL = (1L << RKFCard.SECTORS) - 1;
+
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+	file = File.createTempFile("dumpstore", ".bin");
+	file.delete();
+    }
+
+    @After
+    public void tearDown() {
+	file.delete();
+    }
+
+    private static byte[] uid(int card) {
+	return new byte[] { 0x04, (byte)card, 0x2A, (byte)~card };
+    }
+
+    // a dump telling the card and which of its reads it is
+    private static byte[] dump(int card, int read) {
+	byte[] b = new byte[DumpStore.DUMP_BYTES];
+	Arrays.fill(b, (byte)card);
+	b[0] = (byte)read;
+	return b;
+    }
+
+    private static void assertLatest(final DumpStore s, int card, int read) {
+	DumpStore.Dump d = s.get(uid(card));
+	assertNotNull("card "+card, d);
+	assertEquals(1000L*card + read, d.time);
+	assertEquals(ALL & ~(1L << read), d.sectors);
+	assertArrayEquals(dump(card, read), d.bytes);
+    }
+
+    private static void put(final DumpStore s, int card, int read) {
+	s.put(uid(card), 1000L*card + read, ALL & ~(1L << read), dump(card, read));
+    }
+
+    @Test
+    public void keepsTheLatestDumpOfEachCard() throws IOException {
+	DumpStore s = new DumpStore(file, CAPACITY);
+	put(s, 1, 0);
+	put(s, 2, 0);
+	put(s, 1, 1);
+	assertEquals(2, s.size());
+	assertEquals(3, s.getRecords());
+	assertLatest(s, 1, 1);
+	assertLatest(s, 2, 0);
+	assertNull(s.get(uid(3)));
+	s.close();
+    }
+
+    @Test
+    public void compactsToTheCardsReadLast() throws IOException {
+	DumpStore s = new DumpStore(file, CAPACITY);
+	// card 1 is read again before the file is full, so the compaction
+	// drops card 2 and keeps three quarters of the capacity
+	for(int card=1;card<CAPACITY;card++) {
+	    put(s, card, 0);
+	}
+	put(s, 1, 1);
+	assertEquals(CAPACITY, s.getRecords());
+	put(s, CAPACITY, 0);
+	assertEquals(CAPACITY - (CAPACITY/4) + 1, s.getRecords());
+	put(s, CAPACITY+1, 0);
+	assertNull(s.get(uid(2)));
+	assertLatest(s, 1, 1);
+	for(int card=3;card<=CAPACITY+1;card++) {
+	    assertLatest(s, card, 0);
+	}
+	assertEquals(CAPACITY, s.size());
+
+	// it never grows, however many reads
+	long length = file.length();
+	for(int read=0;read<3*CAPACITY;read++) {
+	    put(s, 20 + read%3, read%RKFCard.SECTORS);
+	}
+	assertEquals(length, file.length());
+	assertLatest(s, 20 + (3*CAPACITY-1)%3, (3*CAPACITY-1)%RKFCard.SECTORS);
+	s.close();
+    }
+
+    @Test
+    public void reopensWithTheSameDumps() throws IOException {
+	DumpStore s = new DumpStore(file, CAPACITY);
+	// five cards read in turn, past the capacity so it is compacted
+	int[] last = new int[6];
+	for(int read=0;read<2*CAPACITY;read++) {
+	    put(s, 1 + read%5, read);
+	    last[1 + read%5] = read;
+	}
+	int records = s.getRecords();
+	s.close();
+
+	s = new DumpStore(file, CAPACITY);
+	assertEquals(5, s.size());
+	assertEquals(records, s.getRecords());
+	for(int card=1;card<=5;card++) {
+	    assertLatest(s, card, last[card]);
+	}
+	put(s, 6, 0);
+	assertLatest(s, 6, 0);
+	s.close();
+    }
+
+    @Test
+    public void startsOverOnABadHeader() throws IOException {
+	DumpStore s = new DumpStore(file, CAPACITY);
+	put(s, 1, 0);
+	s.close();
+	RandomAccessFile f = new RandomAccessFile(file, "rw");
+	f.seek(0);
+	f.writeInt(0x12345678);
+	f.close();
+
+	s = new DumpStore(file, CAPACITY);
+	assertEquals(0, s.size());
+	assertEquals(0, s.getRecords());
+	assertNull(s.get(uid(1)));
+	put(s, 2, 0);
+	assertLatest(s, 2, 0);
+	s.close();
+    }
+
+    @Test
+    public void startsOverWithAnotherCapacity() throws IOException {
+	DumpStore s = new DumpStore(file, CAPACITY);
+	put(s, 1, 0);
+	s.close();
+
+	s = new DumpStore(file, 2*CAPACITY);
+	assertEquals(0, s.size());
+	assertNull(s.get(uid(1)));
+	s.close();
+    }
+
+    @Test
+    public void startsOverOnABadCount() throws IOException {
+	DumpStore s = new DumpStore(file, CAPACITY);
+	put(s, 1, 0);
+	s.close();
+	RandomAccessFile f = new RandomAccessFile(file, "rw");
+	f.seek(12);
+	f.writeInt(CAPACITY + 1);
+	f.close();
+
+	s = new DumpStore(file, CAPACITY);
+	assertEquals(0, s.getRecords());
+	assertNull(s.get(uid(1)));
+	s.close();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void refusesALongUid() throws IOException {
+	DumpStore s = new DumpStore(file, CAPACITY);
+	try {
+	    s.put(new byte[DumpStore.MAX_UID + 1], 0, ALL, dump(1, 0));
+	}
+	finally {
+	    s.close();
+	}
+    }
+}